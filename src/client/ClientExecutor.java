@@ -94,6 +94,7 @@ public class ClientExecutor {
 			
 			//Enable DH anon cipher suite for subsequent HTTPS things:
 			Util.enableDHanonCipherSuite();
+			Util.enablePersistentHttpConnections();
 			
 			//) check for forced updates:
 			notify.incrementLaunchProgress("Performing forced update check (if applicable)...");
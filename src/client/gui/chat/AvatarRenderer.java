@@ -7,6 +7,7 @@ import java.awt.Font;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 
 import javax.imageio.ImageIO;
 import javax.swing.BorderFactory;
@@ -145,7 +146,12 @@ public class AvatarRenderer extends JPanel implements TableCellRenderer {
 	private boolean loadFromIndexnode(IndexNodeClient client) {
 		try {
 			if (client.getAvatarhash().length()!=32) return false; //don't try to get from the indexnode unless it looks plausible.
-			Util.writeStreamToFile(client.getIconStreamFromIndexNode(), getIconOnDisk(client.getAvatarhash()));
+			InputStream is = client.getIconStreamFromIndexNode();
+			try {
+				Util.writeStreamToFile(is, getIconOnDisk(client.getAvatarhash()));
+			} finally {
+				is.close(); //the request is held against the indexnode until this is closed.
+			}
 			//so, we've put it into the filesystem now try to load it:
 			return loadFromDisk(client);
 		} catch (IOException e) {
@@ -0,0 +1,125 @@
+package client.indexnode;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import common.CompactListing;
+import common.Logger;
+import common.Sxml.SXMLException;
+
+/**
+ * Reads the filelist out of an indexnode's browse, search or alternatives page with a pull parser,
+ * passing each entry to a visitor as it is read, just as CompactListing does for indexnodes that send the compact format.
+ *
+ * No DOM is built and nothing is searched for: the element with the id 'fs2-filelist' is picked out in one pass,
+ * each of its children with an fs2-type attribute is an entry, and the rest of the page is ignored.
+ *
+ * @author gary
+ */
+class FilelistReader {
+
+	private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+	static {
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	/**
+	 * Reads the filelist from the page in the stream. The stream is not closed, and is not read past the end of the filelist.
+	 * @throws SXMLException if the page is malformed or has no filelist.
+	 */
+	static void read(InputStream is, CompactListing.Visitor visitor) throws SXMLException {
+		XMLStreamReader reader = null;
+		try {
+			synchronized (factory) {
+				reader = factory.createXMLStreamReader(is);
+			}
+			int depth = -1; //within the filelist, or -1 before it.
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event==XMLStreamConstants.START_ELEMENT) {
+					if (depth<0) {
+						if ("fs2-filelist".equals(reader.getAttributeValue(null, "id"))) depth = 0;
+					} else {
+						depth++;
+						if (depth==1 && reader.getAttributeValue(null, "fs2-type")!=null) entry(reader, visitor); //ignore formatting elements
+					}
+				} else if (event==XMLStreamConstants.END_ELEMENT && depth>=0) {
+					if (depth==0) return; //the end of the filelist, the rest of the page isn't needed.
+					depth--;
+				}
+			}
+			throw new SXMLException("No filelist in the page.");
+		} catch (XMLStreamException e) {
+			throw new SXMLException(e);
+		} finally {
+			if (reader!=null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					Logger.log(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Passes the entry the reader is on to the visitor, or skips it if it isn't valid.
+	 */
+	private static void entry(XMLStreamReader reader, CompactListing.Visitor visitor) {
+		boolean isDirectory;
+		long size;
+		String name;
+		String hash = "";
+		int linkCount = 0;
+		String clientAlias = "";
+		String path = "";
+		int alternativesCount = 1;
+
+		try {
+			isDirectory = attribute(reader, "fs2-type").equalsIgnoreCase("directory");
+			if (!hasAttribute(reader, "fs2-size")) return;
+			size = Long.parseLong(attribute(reader, "fs2-size")); //even directories have a size!
+			if (!hasAttribute(reader, "fs2-name")) return;
+			name = attribute(reader, "fs2-name");
+			if (!isDirectory) {
+				//Hash is essential for files.
+				if (!hasAttribute(reader, "fs2-hash")) return;
+				hash = attribute(reader, "fs2-hash");
+				if (hasAttribute(reader, "fs2-clientalias")) clientAlias = attribute(reader, "fs2-clientalias");
+				if (hasAttribute(reader, "fs2-alternativescount")) alternativesCount = Integer.parseInt(attribute(reader, "fs2-alternativescount"));
+			} else {
+				//path is essential for directories:
+				if (!hasAttribute(reader, "fs2-path")) return;
+				path = attribute(reader, "fs2-path");
+				if (hasAttribute(reader, "fs2-linkcount")) linkCount = Integer.parseInt(attribute(reader, "fs2-linkcount"));
+			}
+		} catch (Exception e) {
+			Logger.warn("Indexnode supplied an invalid filesystem entry to us: "+e);
+			return;
+		}
+
+		if (isDirectory) {
+			visitor.directory(name, size, path, linkCount);
+		} else {
+			visitor.file(name, size, hash, clientAlias, alternativesCount, attribute(reader, "href"));
+		}
+	}
+
+	private static boolean hasAttribute(XMLStreamReader reader, String name) {
+		return reader.getAttributeValue(null, name)!=null;
+	}
+
+	/**
+	 * Returns the attribute's value or "" if it is missing, like DOM does.
+	 */
+	private static String attribute(XMLStreamReader reader, String name) {
+		String ret = reader.getAttributeValue(null, name);
+		return (ret==null ? "" : ret);
+	}
+}
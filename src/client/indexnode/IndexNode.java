@@ -1,6 +1,7 @@
 package client.indexnode;
 
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
@@ -8,6 +9,7 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -29,6 +31,7 @@ import common.Sxml.SXMLException;
 import common.httpserver.HttpExchange;
 
 import common.ChatMessage;
+import common.CompactListing;
 import common.FS2Constants;
 import common.FS2Filter;
 import common.HttpUtil;
@@ -41,7 +44,7 @@ import common.Sxml;
 public class IndexNode {
 	
 	public enum Status {ACTIVE, STARTING, SHUTDOWN, UNCONTACTABLE, FIREWALLED, INCOMPATIBLE, AUTHREQUIRED};
-	private Status status = Status.STARTING;
+	private volatile Status status = Status.STARTING;
 	private URL location;
 	
 	/**
@@ -64,19 +67,21 @@ public class IndexNode {
 	/**
 	 * Related to security, amAdmin is true if we are an admin on this indexnode.
 	 */
-	private boolean amAdmin = false;
+	private volatile boolean amAdmin = false;
 	
 	/**
 	 * The MD5 of our password for this indexnode. Required to attempt registration with secure nodes.
 	 */
-	private String passwordMD5 = "";
+	private volatile String passwordMD5 = "";
 	
-	private String alias = "unknown";
+	private volatile String alias = "unknown";
 	private Timer utilityTimer = new Timer("Indexnode utility timer (ping & chat & stats)", true);
 	private PingTimerTask ping;
 	private ShareServer ssvr;
 	private IndexNodeStats stats = new IndexNodeStats();
 	private StatsUpdateTask statsUpdater = new StatsUpdateTask();
+	/** Requests are made of the indexnode concurrently, up to a limit, rather than one at a time.*/
+	private final IndexNodeRequestLimiter requests = new IndexNodeRequestLimiter();
 	private Date lastSeen = new Date(0);
 	/** cltoken is used to ensure that only indexnodes we have registered with may access our file list */
 	private final Long cltoken = (new Random()).nextLong();
@@ -183,7 +188,7 @@ public class IndexNode {
 			synchronized (chatActionMutex) {
 				try {
 					if (!isWritable()) return; //dont bother even trying unless the indexnode is chattable
-					Sxml xml = getXmlFromIndexnode(getChatURL(lastId, outMessage));
+					Sxml xml = getXmlFromIndexnode(getChatURL(lastId, outMessage), IndexNodeRequestLimiter.Lane.BACKGROUND);
 					
 					int newLastId = dispatchNewMessagesFromXml(xml);
 					lastId = (newLastId==-1 ? lastId : newLastId);
@@ -192,6 +197,8 @@ public class IndexNode {
 						dispatchMessageReturn(xml);
 					}
 					
+				} catch (IndexNodeRequestLimiter.BusyException e) {
+					if (outMessage!=null) Logger.warn("Unable to send a new chat message: "+e);
 				} catch (IOException e) {
 					if (outMessage==null) {
 						Logger.warn("Unable to check for new chat messages: "+e);
@@ -274,7 +281,8 @@ public class IndexNode {
 	}
 	
 	private HashSet<ChatListener> chatListeners = new HashSet<ChatListener>();
-	private boolean isAutomaticNode; //true iff this node was automatically started.
+	private volatile boolean isAutomaticNode; //true iff this node was automatically started.
+	private volatile int bulkAlternatives = 0; //the most files this indexnode will look up the alternatives of in one request, zero if it only does one at a time.
 	
 	public void registerChatListener(ChatListener l) {
 		synchronized (chatListeners) {
@@ -500,8 +508,10 @@ public class IndexNode {
 	 * 
 	 * This doesn't use the getXmlFromIndexnode helper as it needs to inspect the connection properties more closely.
 	 * 
+	 * Only one hello is made at a time, but the hello doesn't wait for other requests to the indexnode as it's urgent.
 	 */
 	private synchronized void contactIndexNode() {
+		boolean mustSendAvatar = false;
 		try {
 			if (status==Status.SHUTDOWN || status==Status.INCOMPATIBLE) return;
 			
@@ -517,59 +527,76 @@ public class IndexNode {
 			}
 			
 			URL helloURL = new URL(getActiveLocation().toString()+"/hello");
-			HttpURLConnection conn = (HttpURLConnection)helloURL.openConnection();
-			
-			ssvr.getFS2Filter().fs2FixupURLConnectionForClient(conn, cltoken);
-			if (secure) conn.setRequestProperty("fs2-auth", passwordMD5);
-			conn.connect();
-			int status = conn.getResponseCode();
-			//Only accept a successful message from the search node.
-			if (status != 200) {
-				if (status==412) {
-					if (getNodeStatus()!=Status.FIREWALLED) {
-						Logger.warn("Indexnode cannot connect to us, ensure ports are mapped and firewalls are open on the correct ports");
-						setStatus(Status.FIREWALLED);
-					}
-					conn.getErrorStream().close();
-					return;
-				} if (status==403) {
-					if (getNodeStatus()!=Status.AUTHREQUIRED) {
-						Logger.warn("Indexnode '"+getName()+"' rejects our credentials.");
-						setStatus(Status.AUTHREQUIRED);
-					}
-					conn.getErrorStream().close();
-					return;
-				} else {
-					Logger.warn("Failure status from indexnode: "+Integer.toString(status));
-					setStatus(Status.INCOMPATIBLE);
-					conn.getErrorStream().close();
-					return;
-				}
-			}
+			requests.acquire(IndexNodeRequestLimiter.Lane.URGENT);
 			try {
-				if (!conn.getHeaderField("fs2-version").equals(FS2Constants.FS2_PROTOCOL_VERSION)) { //TODO: change this to an acceptable range in the future.
-					Logger.severe("Indexnode "+alias+" uses an incompatible protocol version: "+conn.getHeaderField("fs2-version")+", we need: "+ FS2Constants.FS2_PROTOCOL_VERSION+"\n Consider updating fs2!");
-					setStatus(Status.INCOMPATIBLE);
-					return;
-				}
-				amAdmin = Boolean.parseBoolean(conn.getHeaderField("fs2-indexnodeadmin"));
-				isAutomaticNode = Boolean.parseBoolean(conn.getHeaderField("fs2-automatic"));
+				HttpURLConnection conn = (HttpURLConnection)helloURL.openConnection();
 				
-				String indexNodeAvatar = conn.getHeaderField("fs2-avatarhash");
-				String nAvatarHash = ssvr.getIndexNodeCommunicator().encodedAvatarMD5;
-				if (indexNodeAvatar == null || !indexNodeAvatar.equals(nAvatarHash)) {
-					if (nAvatarHash!=null && nAvatarHash.length()==32) sendAvatar();
+				ssvr.getFS2Filter().fs2FixupURLConnectionForClient(conn, cltoken);
+				if (secure) conn.setRequestProperty("fs2-auth", passwordMD5);
+				conn.connect();
+				int status = conn.getResponseCode();
+				//Only accept a successful message from the search node.
+				if (status != 200) {
+					if (status==412) {
+						if (getNodeStatus()!=Status.FIREWALLED) {
+							Logger.warn("Indexnode cannot connect to us, ensure ports are mapped and firewalls are open on the correct ports");
+							setStatus(Status.FIREWALLED);
+						}
+						conn.getErrorStream().close();
+						return;
+					} if (status==403) {
+						if (getNodeStatus()!=Status.AUTHREQUIRED) {
+							Logger.warn("Indexnode '"+getName()+"' rejects our credentials.");
+							setStatus(Status.AUTHREQUIRED);
+						}
+						conn.getErrorStream().close();
+						return;
+					} else {
+						Logger.warn("Failure status from indexnode: "+Integer.toString(status));
+						setStatus(Status.INCOMPATIBLE);
+						conn.getErrorStream().close();
+						return;
+					}
 				}
-				
-				setStatus(Status.ACTIVE);
-			} finally {
 				try {
-					conn.getInputStream().close();
-				} catch (IOException e) {
-					Logger.warn("Exception closing hello input stream: "+e);
-					Logger.log(e);
+					if (!conn.getHeaderField("fs2-version").equals(FS2Constants.FS2_PROTOCOL_VERSION)) { //TODO: change this to an acceptable range in the future.
+						Logger.severe("Indexnode "+alias+" uses an incompatible protocol version: "+conn.getHeaderField("fs2-version")+", we need: "+ FS2Constants.FS2_PROTOCOL_VERSION+"\n Consider updating fs2!");
+						setStatus(Status.INCOMPATIBLE);
+						return;
+					}
+					amAdmin = Boolean.parseBoolean(conn.getHeaderField("fs2-indexnodeadmin"));
+					isAutomaticNode = Boolean.parseBoolean(conn.getHeaderField("fs2-automatic"));
+					int bulk = 0; //one at a time, unless the indexnode says sensibly that it can do more.
+					String bulkHeader = conn.getHeaderField("fs2-bulkalternatives");
+					if (bulkHeader!=null) {
+						try {
+							bulk = Math.max(0, Integer.parseInt(bulkHeader.trim()));
+						} catch (NumberFormatException e) {
+							Logger.warn("Indexnode "+alias+" sent a malformed fs2-bulkalternatives header: "+bulkHeader);
+						}
+					}
+					bulkAlternatives = bulk;
+					
+					String indexNodeAvatar = conn.getHeaderField("fs2-avatarhash");
+					String nAvatarHash = ssvr.getIndexNodeCommunicator().encodedAvatarMD5;
+					if (indexNodeAvatar == null || !indexNodeAvatar.equals(nAvatarHash)) {
+						if (nAvatarHash!=null && nAvatarHash.length()==32) mustSendAvatar = true; //once this request is done with.
+					}
+					
+					setStatus(Status.ACTIVE);
+				} finally {
+					try {
+						conn.getInputStream().close();
+					} catch (IOException e) {
+						Logger.warn("Exception closing hello input stream: "+e);
+						Logger.log(e);
+					}
 				}
+			} finally {
+				requests.release();
 			}
+		} catch (IndexNodeRequestLimiter.BusyException e) {
+			Logger.fine("Indexnode '"+alias+"' wasn't said hello to: "+e.getMessage());
 		} catch (IOException e){
 			Logger.fine("Indexnode '"+alias+"' can't be contacted ("+e.getMessage()+").");
 			setStatus(Status.UNCONTACTABLE);
@@ -578,6 +605,7 @@ public class IndexNode {
 			setStatus(Status.UNCONTACTABLE);
 			Logger.log(e);
 		}
+		if (mustSendAvatar) sendAvatar();
 	}
 	
 	/**
@@ -586,7 +614,7 @@ public class IndexNode {
 	private void sendAvatar() {
 		URL asu = getAvatarSubmissionURL();
 		try {
-			getInputStreamFromIndexnode(asu).close();
+			getInputStreamFromIndexnode(asu, IndexNodeRequestLimiter.Lane.URGENT).close();
 		} catch (IOException e) {
 			Logger.warn("Couldn't submit avatar to indexnode: "+e);
 		}
@@ -685,14 +713,83 @@ public class IndexNode {
 	/**
 	 * Safely gets an input stream from the indexnode.
 	 * 
-	 * It is important to remember to close the stream that is retreived!
+	 * It is important to remember to close the stream that is retreived! The request counts against the indexnode's limit until it is,
+	 * or until the response has been read to its end or failed.
 	 * 
 	 * @param path
+	 * @param lane the priority of the request.
 	 * @return
 	 * @throws IOException
 	 * @throws NotChangedException 
 	 */
-	private synchronized InputStream getInputStreamFromIndexnode(URL path) throws IOException, NotChangedException {
+	private InputStream getInputStreamFromIndexnode(URL path, IndexNodeRequestLimiter.Lane lane) throws IOException, NotChangedException {
+		requests.acquire(lane);
+		try {
+			return new FilterInputStream(getConnectionToIndexnode(path, false).getInputStream()) {
+				private boolean released = false;
+				
+				/**
+				 * Gives the request back to the limiter, only the first call does anything.
+				 */
+				private void release() {
+					synchronized (this) {
+						if (released) return;
+						released = true;
+					}
+					requests.release();
+				}
+				
+				@Override
+				public int read() throws IOException {
+					try {
+						int ret = super.read();
+						if (ret==-1) release();
+						return ret;
+					} catch (IOException e) {
+						release();
+						throw e;
+					}
+				}
+				
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					try {
+						int ret = super.read(b, off, len);
+						if (ret==-1) release();
+						return ret;
+					} catch (IOException e) {
+						release();
+						throw e;
+					}
+				}
+				
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						release();
+					}
+				}
+			};
+		} catch (IOException e) {
+			requests.release();
+			throw e;
+		} catch (RuntimeException e) {
+			requests.release();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Safely makes a request of the indexnode, returning the connection once the response has arrived.
+	 * The caller must have acquired a request from the limiter.
+	 * 
+	 * It is important to remember to close the connection's input stream!
+	 * 
+	 * @param compact true to ask for a CompactListing rather than the page, the content type of the response says which was sent.
+	 */
+	private HttpURLConnection getConnectionToIndexnode(URL path, boolean compact) throws IOException, NotChangedException {
 		if (!secureTested) {
 			throw new IllegalStateException("Indexnode: '"+getName()+"' was used before secure testing!");
 		}
@@ -702,6 +799,7 @@ public class IndexNode {
 		try {
 			ssvr.getFS2Filter().fs2FixupURLConnectionForClient(conn, cltoken);
 			if (secure) conn.setRequestProperty("fs2-auth", passwordMD5);
+			if (compact) conn.setRequestProperty("Accept", CompactListing.CONTENT_TYPE+", text/html;q=0.5");
 			
 			String newAlias = conn.getHeaderField("fs2-alias");
 			if (newAlias!=null && !newAlias.equals(alias)) {
@@ -712,14 +810,14 @@ public class IndexNode {
 			
 			int status = conn.getResponseCode();
 			if (status==304) {
-				conn.getInputStream().close();
+				HttpUtil.drainAndClose(conn.getInputStream());
 				throw new NotChangedException();
 			}
 			
-			return conn.getInputStream();
+			conn.getInputStream(); //so errors are thrown here, as they always were.
+			return conn;
 		} finally {
-			InputStream es = conn.getErrorStream();
-			if (es!=null) es.close();
+			HttpUtil.drainAndClose(conn.getErrorStream());
 		}
 	}
 	
@@ -731,13 +829,35 @@ public class IndexNode {
 	 * @throws SXMLException 
 	 * @throws NotChangedException 
 	 */
-	private synchronized Sxml getXmlFromIndexnode(URL path) throws IOException, SXMLException, NotChangedException {
+	private Sxml getXmlFromIndexnode(URL path, IndexNodeRequestLimiter.Lane lane) throws IOException, SXMLException, NotChangedException {
 		InputStream is = null;
 		try {
-			is = getInputStreamFromIndexnode(path);
+			is = getInputStreamFromIndexnode(path, lane);
 			return new Sxml(is);
 		} finally {
-			if (is!=null) is.close();
+			HttpUtil.drainAndClose(is);
+		}
+	}
+	
+	/**
+	 * Reads the filelist from a page of the indexnode, passing each entry to the visitor as it's read.
+	 * The compact listing is asked for, but indexnodes that don't send it have the filelist read out of their page instead.
+	 * This is much cheaper than getting the page's XML, so is used for browsing, searching and alternatives.
+	 */
+	private void readListingFromIndexnode(URL path, CompactListing.Visitor visitor, IndexNodeRequestLimiter.Lane lane) throws IOException, SXMLException, NotChangedException {
+		InputStream is = null;
+		requests.acquire(lane);
+		try {
+			HttpURLConnection conn = getConnectionToIndexnode(path, true);
+			is = conn.getInputStream();
+			if (CompactListing.CONTENT_TYPE.equals(conn.getContentType())) {
+				CompactListing.read(is, visitor);
+			} else {
+				FilelistReader.read(is, visitor);
+			}
+		} finally {
+			HttpUtil.drainAndClose(is);
+			requests.release();
 		}
 	}
 	
@@ -758,37 +878,30 @@ public class IndexNode {
 					}
 					return; 
 				}
-				Sxml xml = getXmlFromIndexnode(getStatsURL());
+				StatsReader read = readStatsFromIndexnode();
 				
-				//Now process the XML:
+				//Now process the statistics:
 				synchronized (stats) {
 					
 					//1) get normal stats items:
-					stats.started = new Date(getStatisticValue(xml, "indexnode-started"));
-					stats.indexedFiles = (int) getStatisticValue(xml, "file-count");
-					stats.uniqueFiles = (int) getStatisticValue(xml, "unique-file-count");
-					stats.totalRequestedBytes = getStatisticValue(xml, "total-transfer");
-					stats.size = getStatisticValue(xml, "total-size");
-					stats.uniqueSize = getStatisticValue(xml, "total-unique-size");
+					stats.started = new Date(read.get("indexnode-started"));
+					stats.indexedFiles = (int) read.get("file-count");
+					stats.uniqueFiles = (int) read.get("unique-file-count");
+					stats.totalRequestedBytes = read.get("total-transfer");
+					stats.size = read.get("total-size");
+					stats.uniqueSize = read.get("total-unique-size");
 					
-					Element clients = xml.getElementById("clients");
 					HashSet<String> knownAliases = new HashSet<String>(stats.peers.keySet());
 					
 					boolean newPeers = false;
 					
-					for (Node onNode=clients.getFirstChild(); onNode!=null; onNode=onNode.getNextSibling()) {
-						if (onNode.getNodeType()!=Element.ELEMENT_NODE) continue;
-						Element elem = (Element)onNode;
-						if (!elem.getTagName().equals("span")) continue;
-						String alias = elem.getAttribute("fs2-clientalias");
-						long shareSize = Long.parseLong(elem.getAttribute("value"));
-						String avatarHash = elem.getAttribute("fs2-avatarhash");
-						if (knownAliases.remove(alias)) { //IndexNodeClients are hashed by their aliases.
-							IndexNodeClient c = stats.peers.get(alias);
-							c.setAvatarhash(avatarHash);
-							c.setTotalShareSize(shareSize);
+					for (IndexNodeClient client : read.clients) {
+						if (knownAliases.remove(client.getAlias())) { //IndexNodeClients are hashed by their aliases.
+							IndexNodeClient c = stats.peers.get(client.getAlias());
+							c.setAvatarhash(client.getAvatarhash());
+							c.setTotalShareSize(client.getTotalShareSize());
 						} else {
-							stats.peers.put(alias,new IndexNodeClient(elem.getAttribute("fs2-clientalias"), Long.parseLong(elem.getAttribute("value")), elem.getAttribute("avatarhash"), IndexNode.this));
+							stats.peers.put(client.getAlias(), client);
 							newPeers = true;
 						}
 					}
@@ -802,6 +915,8 @@ public class IndexNode {
 				
 				updateStatsListeners();
 				
+			} catch (IndexNodeRequestLimiter.BusyException e) {
+				Logger.fine("Stats from indexnode '"+getName()+"' skipped: "+e.getMessage()); //they'll be asked for again soon.
 			} catch (IOException e) {
 				Logger.warn("Unable to get stats from indexnode '"+getName()+"': "+e);
 				contactIndexNode();
@@ -820,8 +935,65 @@ public class IndexNode {
 		}
 	}
 	
-	private long getStatisticValue(Sxml xml, String key) {
-		return Long.parseLong(xml.getElementById(key).getAttribute("value"));
+	/**
+	 * Collects the statistics the indexnode sends, in whichever form it sends them.
+	 */
+	private class StatsReader extends CompactListing.Adapter {
+		final HashMap<String, Long> values = new HashMap<String, Long>();
+		final LinkedList<IndexNodeClient> clients = new LinkedList<IndexNodeClient>();
+		
+		@Override
+		public void value(String name, long value) {
+			values.put(name, value);
+		}
+		
+		@Override
+		public void client(String alias, String avatarHash, long totalShareSize) {
+			clients.add(new IndexNodeClient(alias, totalShareSize, avatarHash, IndexNode.this));
+		}
+		
+		long get(String key) {
+			Long ret = values.get(key);
+			if (ret==null) throw new IllegalArgumentException("The statistic '"+key+"' is missing.");
+			return ret;
+		}
+	}
+	
+	/**
+	 * Gets the statistics from the indexnode, as a compact listing if it will send one, otherwise from the statistics page.
+	 */
+	private StatsReader readStatsFromIndexnode() throws IOException, SXMLException, NotChangedException {
+		StatsReader ret = new StatsReader();
+		InputStream is = null;
+		requests.acquire(IndexNodeRequestLimiter.Lane.BACKGROUND);
+		try {
+			HttpURLConnection conn = getConnectionToIndexnode(getStatsURL(), true);
+			is = conn.getInputStream();
+			if (CompactListing.CONTENT_TYPE.equals(conn.getContentType())) {
+				CompactListing.read(is, ret);
+			} else {
+				readStatsFromXml(new Sxml(is), ret);
+			}
+		} finally {
+			HttpUtil.drainAndClose(is);
+			requests.release();
+		}
+		return ret;
+	}
+	
+	private void readStatsFromXml(Sxml xml, CompactListing.Visitor visitor) {
+		for (String key : new String[] {"indexnode-started", "file-count", "unique-file-count", "total-transfer", "total-size", "total-unique-size"}) {
+			Element elem = xml.getElementById(key);
+			if (elem!=null) visitor.value(key, Long.parseLong(elem.getAttribute("value")));
+		}
+		
+		Element clients = xml.getElementById("clients");
+		for (Node onNode=clients.getFirstChild(); onNode!=null; onNode=onNode.getNextSibling()) {
+			if (onNode.getNodeType()!=Element.ELEMENT_NODE) continue;
+			Element elem = (Element)onNode;
+			if (!elem.getTagName().equals("span")) continue;
+			visitor.client(elem.getAttribute("fs2-clientalias"), elem.getAttribute("fs2-avatarhash"), Long.parseLong(elem.getAttribute("value")));
+		}
 	}
 	
 	/**
@@ -839,14 +1011,14 @@ public class IndexNode {
 			} else {
 				query = getBrowseURL(parent.getIndexNodePath());
 			}
-			Sxml xml = getXmlFromIndexnode(query);
-			
 			//3) build and add fse objects
-			addFileListItemsToList(xml, ret, parent);
+			readListingFromIndexnode(query, filelistItemAdder(ret, parent), IndexNodeRequestLimiter.Lane.INTERACTIVE);
 			
 		} catch (FileNotFoundException e) {
 			//This is normal when we attempt to get children for a node that no longer exists.
 			//The empty list is returned and this is correct.
+		} catch (IndexNodeRequestLimiter.BusyException e) {
+			Logger.warn("Couldn't get updated filelists from indexnode '"+getName()+"': "+e.getMessage());
 		} catch (IOException e) {
 			Logger.warn("Couldn't get updated filelists from indexnode '"+getName()+"': "+e);
 			contactIndexNode();
@@ -857,58 +1029,21 @@ public class IndexNode {
 		return ret;
 	}
 	
-	private void addFileListItemsToList(Sxml xml, LinkedList<FileSystemEntry> ret, FileSystemEntry parent) {
-		Element filelist = xml.getElementById("fs2-filelist");
-		
-		Node onNode = filelist.getFirstChild();
-		while (onNode!=null) {
-			try {
-				if (onNode.getNodeType()!=Element.ELEMENT_NODE) continue;
-				Element cFile = (Element)onNode;
-				
-				boolean isDirectory;
-				long size;
-				String name;
-				String hash = "";
-				int linkCount = 0;
-				String clientAlias = "";
-				String path = "";
-				int alternativesCount = 1;
-				
-				try {
-					if (!cFile.hasAttribute("fs2-type")) continue;
-					isDirectory = cFile.getAttribute("fs2-type").equalsIgnoreCase("directory");
-					if (!cFile.hasAttribute("fs2-size")) continue;
-					size = Long.parseLong(cFile.getAttribute("fs2-size")); //even directories have a size!
-					if (!cFile.hasAttribute("fs2-name")) continue;
-					name = cFile.getAttribute("fs2-name");
-					if (!isDirectory) {
-						//Hash is essential for files.
-						if (!cFile.hasAttribute("fs2-hash")) continue;
-						hash = cFile.getAttribute("fs2-hash");
-						if (cFile.hasAttribute("fs2-clientalias")) clientAlias = cFile.getAttribute("fs2-clientalias");
-						if (cFile.hasAttribute("fs2-alternativescount")) alternativesCount = Integer.parseInt(cFile.getAttribute("fs2-alternativescount"));
-					} else {
-						//path is essential for directories:
-						if (!cFile.hasAttribute("fs2-path")) continue;
-						path = cFile.getAttribute("fs2-path");
-						if (cFile.hasAttribute("fs2-linkcount")) linkCount = Integer.parseInt(cFile.getAttribute("fs2-linkcount"));
-					}
-				} catch (Exception e) {
-					Logger.warn("Indexnode supplied an invalid filesystem entry to us: "+e);
-					continue;
-				}
-				
-				if (isDirectory) {
-					ret.add(parent.generateUninitialisedChildDirectory(name, this, linkCount, path, size));
-				} else {
-					ret.add(parent.generateChildFile(name, this, size, hash, clientAlias, alternativesCount));
-				}
-				
-			} finally {
-				onNode = onNode.getNextSibling();
+	/**
+	 * Returns a visitor that adds the entries of a filelist to the list given, as children of the parent given.
+	 */
+	private CompactListing.Visitor filelistItemAdder(final LinkedList<FileSystemEntry> ret, final FileSystemEntry parent) {
+		return new CompactListing.Adapter() {
+			@Override
+			public void file(String name, long size, String hash, String clientAlias, int alternativesCount, String url) {
+				ret.add(parent.generateChildFile(name, IndexNode.this, size, hash, clientAlias, alternativesCount));
 			}
-		}
+			
+			@Override
+			public void directory(String name, long size, String path, int linkCount) {
+				ret.add(parent.generateUninitialisedChildDirectory(name, IndexNode.this, linkCount, path, size));
+			}
+		};
 	}
 	
 	/**
@@ -917,30 +1052,54 @@ public class IndexNode {
 	 * @return a map of peer aliases-> download source objects.
 	 */
 	public Map<String, DownloadSource> getSources(String hash) {
-		HashMap<String, DownloadSource> sources = new HashMap<String, DownloadSource>();
+		return getSources(Collections.singleton(hash)).get(hash);
+	}
+	
+	/**
+	 * Get sources for many files from this indexnode, in as few requests as it allows.
+	 * @param hashes the hashes of the files to get sources for.
+	 * @return a map of hashes-> maps of peer aliases-> download source objects. Every hash given is in it, but files without sources (or that couldn't be looked up) have empty maps.
+	 */
+	public Map<String, Map<String, DownloadSource>> getSources(Collection<String> hashes) {
+		HashMap<String, Map<String, DownloadSource>> sources = new HashMap<String, Map<String, DownloadSource>>();
+		for (String hash : hashes) sources.put(hash, new HashMap<String, DownloadSource>());
 		
+		LinkedList<String> batch = new LinkedList<String>();
+		for (String hash : hashes) {
+			batch.add(hash);
+			//indexnodes that don't say how many they'll look up at once are asked about one at a time, as they always were:
+			if (batch.size()>=Math.max(1, bulkAlternatives)) {
+				addSources(batch, sources);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) addSources(batch, sources);
+		
+		return sources;
+	}
+	
+	/**
+	 * Looks up the sources for a batch of files in one request and adds them to the map given.
+	 */
+	private void addSources(final LinkedList<String> batch, final Map<String, Map<String, DownloadSource>> sources) {
 		try {
-			Sxml xml = getXmlFromIndexnode(getAlternativesURL(hash));
-			
-			//3) parse the result into the sources set:
-			Element altslist = xml.getElementById("fs2-filelist");
-			
-			Node onNode = altslist.getFirstChild();
-			while (onNode!=null) {
-				try {
-					if (onNode.getNodeType()!=Element.ELEMENT_NODE) continue;
-					Element cAlt = (Element)onNode;
-					if (!cAlt.hasAttribute("fs2-type")) continue; //ignore formatting elements
-					if (!cAlt.hasAttribute("href")) throw new IllegalArgumentException("No href in filelist item.");
-					if (!cAlt.hasAttribute("fs2-clientalias")) throw new IllegalArgumentException("No client alias in filelist item.");
+			//parse the result into the sources set:
+			readListingFromIndexnode(batch.size()==1 ? getAlternativesURL(batch.getFirst()) : getAlternativesURL(batch), new CompactListing.Adapter() {
+				@Override
+				public void file(String name, long size, String hash, String clientAlias, int alternativesCount, String url) {
+					if (url.equals("")) throw new IllegalArgumentException("No href in filelist item.");
+					if (clientAlias.equals("")) throw new IllegalArgumentException("No client alias in filelist item.");
 					
-					String cAlias = cAlt.getAttribute("fs2-clientalias");
-					sources.put(cAlias, new DownloadSource(cAlias, new URL(cAlt.getAttribute("href"))));
+					Map<String, DownloadSource> fileSources = (batch.size()==1 ? sources.get(batch.getFirst()) : sources.get(hash));
+					if (fileSources==null) return; //not a file we asked about.
 					
-				} finally {
-					onNode = onNode.getNextSibling();
+					try {
+						fileSources.put(clientAlias, new DownloadSource(clientAlias, new URL(url)));
+					} catch (MalformedURLException e) {
+						throw new IllegalArgumentException(e);
+					}
 				}
-			}
+			}, IndexNodeRequestLimiter.Lane.URGENT);
 			
 		} catch (IOException e) {
 			Logger.warn("Couldn't get alternative download sources from indexnode '"+getName()+"': "+e);
@@ -948,8 +1107,6 @@ public class IndexNode {
 			Logger.warn("Couldn't get alternative download sources from indexnode '"+getName()+"': "+e);
 			Logger.log(e);
 		}
-		
-		return sources;
 	}
 	
 	/**
@@ -992,6 +1149,24 @@ public class IndexNode {
 		}
 	}
 	
+	/**
+	 * Generates a url to look up the alternatives of many files at once.
+	 */
+	URL getAlternativesURL(Collection<String> hashes) {
+		try {
+			StringBuilder query = new StringBuilder();
+			for (String hash : hashes) {
+				if (query.length()>0) query.append(',');
+				query.append(hash);
+			}
+			return new URL(getActiveLocation().toString()+"/alternatives/?hashes="+HttpUtil.urlEncode(query.toString()));
+		} catch (Exception e) {
+			Logger.severe("Cannot produce an alterntatives URL: "+e);
+			Logger.log(e);
+			return null;
+		}
+	}
+	
 	/**
 	 * Generates a url to the indexnode's stats page
 	 */
@@ -1048,7 +1223,7 @@ public class IndexNode {
 
 	
 	public InputStream getClientAvatarStream(String iconhash) throws IOException {
-		return getInputStreamFromIndexnode(getAvatarIconURL(iconhash));
+		return getInputStreamFromIndexnode(getAvatarIconURL(iconhash), IndexNodeRequestLimiter.Lane.INTERACTIVE);
 	}
 
 	public boolean isActive() {
@@ -8,6 +8,7 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -30,6 +31,7 @@ import common.httpserver.Filter;
 import common.httpserver.HttpContext;
 
 import common.Base64Coder;
+import common.CompactFileList;
 import common.Config;
 import common.FS2Constants;
 import common.Logger;
@@ -389,13 +391,27 @@ public class IndexNodeCommunicator implements TableModel {
 	 * @return a set of distinct download sources, indexed by their peer aliases.
 	 */
 	public Map<String, DownloadSource>getSourcesForFile(String hash) {
-		HashMap<String, DownloadSource> sources = new HashMap<String, DownloadSource>();
+		return getSourcesForFiles(Collections.singleton(hash)).get(hash);
+	}
+	
+	/**
+	 * Generates the download sources for many files at once, asking each indexnode about as many of them per request as it allows.
+	 * This is only intended for use by the download controller.
+	 * @param hashes the hashes of the files to find sources for.
+	 * @return the sets of distinct download sources (indexed by their peer aliases) indexed by file hash. Every hash given is present, files without sources have empty sets.
+	 */
+	public Map<String, Map<String, DownloadSource>> getSourcesForFiles(Collection<String> hashes) {
+		HashMap<String, Map<String, DownloadSource>> sources = new HashMap<String, Map<String, DownloadSource>>();
+		for (String hash : hashes) sources.put(hash, new HashMap<String, DownloadSource>());
 		LinkedList<IndexNode> cachedNodeList = new LinkedList<IndexNode>();
 		synchronized (nodes) { //Don't hold the lock when doing such a long winded operation, but take a copy of the list with a lock:
 			cachedNodeList.addAll(nodes);
 		}
 		for (IndexNode n : cachedNodeList) {
-			if (n.isReadable()) sources.putAll(n.getSources(hash));
+			if (!n.isReadable()) continue;
+			for (Map.Entry<String, Map<String, DownloadSource>> e : n.getSources(hashes).entrySet()) {
+				sources.get(e.getKey()).putAll(e.getValue());
+			}
 		}
 		return sources;
 	}
@@ -478,6 +494,7 @@ public class IndexNodeCommunicator implements TableModel {
 					next.setAttribute("name", thisShare.getName());
 					next.setAttribute("revision", Integer.toString(thisShare.getRevision()));
 					next.setAttribute("type", "FileList");
+					next.setAttribute("types", CompactFileList.SHARE_TYPE+" FileList");
 					root.appendChild(next);
 				}
 			}
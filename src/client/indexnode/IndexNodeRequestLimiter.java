@@ -0,0 +1,89 @@
+package client.indexnode;
+
+import java.io.InterruptedIOException;
+
+import common.FS2Constants;
+
+/**
+ * Bounds the requests made of one indexnode at once, and decides which waiting request goes next.
+ *
+ * Requests are made in one of three lanes. A request may start while fewer than CLIENT_INDEXNODE_MAX_REQUESTS
+ * are in flight, less the slots held back for the lanes above it, and no request in a lane above it is waiting.
+ * So pings and download source lookups are never stuck behind browsing, and browsing is never stuck behind the stats and chat polls.
+ *
+ * A request that can't start within CLIENT_URL_CONNECTION_TIMEOUT_MS gives up, as it would if the indexnode itself were that slow.
+ *
+ * @author gary
+ */
+class IndexNodeRequestLimiter {
+
+	enum Lane {
+		/** Hellos, avatar submissions and download source lookups: these can use every slot.*/
+		URGENT(0),
+		/** Browsing and searching, which the user is waiting for.*/
+		INTERACTIVE(1),
+		/** Stats and chat polls, which are repeated anyway.*/
+		BACKGROUND(2);
+
+		/** The slots this lane leaves for the lanes above it.*/
+		final int reserved;
+
+		Lane(int reserved) {
+			this.reserved = reserved;
+		}
+	}
+
+	/**
+	 * Thrown when a request gives up waiting to be made because the indexnode is busy with others.
+	 * The indexnode is still there, so this doesn't warrant saying hello again.
+	 */
+	static class BusyException extends InterruptedIOException {
+		private static final long serialVersionUID = -3916244431287436140L;
+
+		BusyException(String message) {
+			super(message);
+		}
+	}
+
+	private int inFlight = 0;
+	private final int[] waiting = new int[Lane.values().length];
+
+	/**
+	 * Waits until a request may be made in the lane given. Every successful call must be matched by a call to release.
+	 * @throws BusyException if the request couldn't start in time, or the thread was interrupted while waiting.
+	 */
+	synchronized void acquire(Lane lane) throws BusyException {
+		if (mayStart(lane)) {
+			inFlight++;
+			return;
+		}
+		waiting[lane.ordinal()]++;
+		try {
+			long giveUp = System.currentTimeMillis()+FS2Constants.CLIENT_URL_CONNECTION_TIMEOUT_MS;
+			while (!mayStart(lane)) {
+				long wait = giveUp-System.currentTimeMillis();
+				if (wait<=0) throw new BusyException("the indexnode is busy with "+inFlight+" other requests");
+				this.wait(wait);
+			}
+			inFlight++;
+		} catch (InterruptedException e) {
+			throw new BusyException("interrupted waiting for the indexnode");
+		} finally {
+			waiting[lane.ordinal()]--;
+			this.notifyAll(); //lanes below might have been waiting on this one.
+		}
+	}
+
+	synchronized void release() {
+		inFlight--;
+		this.notifyAll();
+	}
+
+	private boolean mayStart(Lane lane) {
+		if (inFlight>=FS2Constants.CLIENT_INDEXNODE_MAX_REQUESTS-lane.reserved) return false;
+		for (int i=0; i<lane.ordinal(); i++) {
+			if (waiting[i]>0) return false;
+		}
+		return true;
+	}
+}
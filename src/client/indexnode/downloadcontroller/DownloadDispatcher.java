@@ -2,18 +2,24 @@ package client.indexnode.downloadcontroller;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
+import client.indexnode.NewPeerListener;
 import client.indexnode.downloadcontroller.DownloadQueue.DownloadFile;
 import client.indexnode.downloadcontroller.DownloadQueue.DownloadItem;
-import client.shareserver.ThrottledFileDigester;
+import client.platform.ClientConfigDefaults.CK;
 
+import common.ExecutorStrategy;
 import common.FS2Constants;
 import common.Logger;
-import common.NamedThreadFactory;
 import common.Util;
 
 /**
@@ -22,6 +28,10 @@ import common.Util;
  * 
  * This is quite complex, as it has to manage contention for remote slots, and local slots.
  * 
+ * Dispatching is driven by events: whenever a chunk ends, sources are found, new peers arrive, files are queued
+ * or the slot limits change the dispatch loop is woken to fill the free slots straight away.
+ * Otherwise it only runs every CLIENT_DOWNLOAD_DISPATCH_ITERATION_THROTTLE to split chunks and enforce the limits.
+ * 
  * @author gary
  */
 public class DownloadDispatcher {
@@ -41,6 +51,7 @@ public class DownloadDispatcher {
 			}
 			
 			removeIdleWorker(chunk.owner.worker);
+			requestDispatch(); //a slot is free.
 			
 			controller.events.chunkEnded(chunk);
 		}
@@ -73,7 +84,15 @@ public class DownloadDispatcher {
 	volatile boolean mustShutdown = false;
 	DownloadController controller;
 	DispatchEvents events = new DispatchEvents();
-	private ExecutorService downloadThreadPool = Executors.newCachedThreadPool(new NamedThreadFactory(true, "download"));
+	private ExecutorService downloadThreadPool;
+	DownloadSourceResolver resolver;
+	/**
+	 * The files taken from the queue to be dispatched next, in queue order. Their sources are looked up together,
+	 * and whichever are found first are dispatched first, so a file whose sources are slow to find doesn't hold up the rest.
+	 */
+	private final LinkedHashSet<DownloadFile> ready = new LinkedHashSet<DownloadFile>();
+	/** Set when something has happened that might allow more to be dispatched.*/
+	private boolean dispatchRequested = false;
 	
 	HashSet<DownloadWorker> workers = new HashSet<DownloadWorker>();
 	
@@ -95,8 +114,6 @@ public class DownloadDispatcher {
 			if (w.info.isComplete()) {
 				//if we're here then all were complete:
 				w.info.file.downloadComplete();
-				//on a completion notify the dispatch loop that it's ok to dispatch now:
-				this.notify();
 			}
 		}
 	}
@@ -165,8 +182,10 @@ public class DownloadDispatcher {
 				if (chunkEligableForSplitting(c)) {
 					//It's appropriate to split this chunk so:
 					//1) get the sources for this download:
-					Map<String, DownloadSource> sources = controller.ssvr.getIndexNodeCommunicator().getSourcesForFile(c.owner.file.hash);
-					if (sources.isEmpty()) {
+					Map<String, DownloadSource> sources = resolver.getSources(c.owner.file.hash);
+					if (sources==null) {
+						continue; //they're being found, so try again once they are.
+					} else if (sources.isEmpty()) {
 						c.owner.file.notifyNoSources();
 					} else {
 						//2) split the download:
@@ -189,45 +208,95 @@ public class DownloadDispatcher {
 	 * @return true iff an inactive chunk was restarted.
 	 */
 	private synchronized boolean dispatchAnIncompleteInactiveChunk(DownloadWorker w, DownloadSource source) {
-		for (DownloadChunk c : w.getIncompleteInactiveChunks()) {
-			if (source==null) {
-				Map<String, DownloadSource> sources = controller.ssvr.getIndexNodeCommunicator().getSourcesForFile(c.owner.file.hash);
-				if (sources.isEmpty()) {
-					c.owner.file.notifyNoSources();
-					return false; //do nothing if there are no sources available.
-				}
-				source = controller.peerstats.getBestSource(sources);
+		List<DownloadChunk> next = nextChunks(w);
+		if (next.isEmpty()) return false;
+		if (source==null) {
+			Map<String, DownloadSource> sources = resolver.getSources(w.info.file.hash);
+			if (sources==null) return false; //they're being found, this is tried again once they are.
+			if (sources.isEmpty()) {
+				w.info.file.notifyNoSources();
+				return false; //do nothing if there are no sources available.
 			}
-			w.downloadChunk(c, source, downloadThreadPool);
-			return true;
+			source = controller.peerstats.getBestSource(sources);
 		}
-		return false;
+		w.downloadChunks(next, source, downloadThreadPool);
+		return true;
+	}
+	
+	/**
+	 * Chooses the inactive chunks of a file to start in its next slot.
+	 * If this is the file's last free slot then they are all requested together (up to CLIENT_DOWNLOAD_MAX_BATCHED_CHUNKS of them),
+	 * otherwise just one is so that the others can have slots of their own.
+	 */
+	private List<DownloadChunk> nextChunks(DownloadWorker w) {
+		ArrayList<DownloadChunk> inactive = new ArrayList<DownloadChunk>(w.getIncompleteInactiveChunks());
+		Collections.sort(inactive, new Comparator<DownloadChunk>() {
+			@Override
+			public int compare(DownloadChunk o1, DownloadChunk o2) {
+				return Long.valueOf(o1.startByte).compareTo(o2.startByte);
+			}
+		});
+		int batch = (w.getActiveChunkCount()+1>=maxSlotsPerFile ? FS2Constants.CLIENT_DOWNLOAD_MAX_BATCHED_CHUNKS : 1);
+		return inactive.subList(0, Math.min(batch, inactive.size()));
 	}
 	
 	/**
 	 * Finds a file that is not being serviced by a download worker and starts to download it.
 	 * 
-	 * @return true iff there was a file in the queue to consider, false otherwise.
+	 * The first of the ready files whose sources are known is used. Files whose sources are still being found are left until they are, rather than waiting for them.
+	 * 
+	 * @return true iff there was a file to consider, false otherwise (or if the sources of every ready file are still being found).
 	 * 
 	 */
 	private synchronized boolean dispatchFile() {
-		//1) establish the active directory:
-		DownloadFile nF = controller.q.getInactiveDownloadFile();
-		if (nF!=null) {
-			//Logger.log("attempting to dispatch: "+nF);
-			//start it downloading...
-			//1) find a source for the download:
-			Map<String, DownloadSource> sources = controller.ssvr.getIndexNodeCommunicator().getSourcesForFile(nF.hash);
+		Iterator<DownloadFile> it = ready.iterator();
+		while (it.hasNext()) {
+			DownloadFile nF = it.next();
+			if (nF.isDownloading()) { //it's been dispatched some other way since it was taken.
+				it.remove();
+				continue;
+			}
+			//find a source for the download:
+			Map<String, DownloadSource> sources = resolver.getSources(nF.hash);
+			if (sources==null) continue;
+			it.remove();
 			if (sources.isEmpty()) {
 				nF.notifyNoSources();
 			} else {
 				startFileDownloading(nF, controller.peerstats.getBestSource(sources));
 			}
 			return true;
-		} else {
-			//Logger.log("Nothing to dispatch.");
-			return false;
 		}
+		return false;
+	}
+	
+	/**
+	 * Takes files from the queue until there are CLIENT_DOWNLOAD_SOURCES_PREFETCH ready,
+	 * and starts finding their sources so they're known by the time the files are dispatched.
+	 */
+	private synchronized void fillReady() {
+		ArrayList<String> hashes = new ArrayList<String>();
+		boolean newIteration = false;
+		while (ready.size()<FS2Constants.CLIENT_DOWNLOAD_SOURCES_PREFETCH) {
+			DownloadFile f = controller.q.getInactiveDownloadFile();
+			if (f==null) {
+				//the end of the queue, continue from the start once in case files have been passed over since, but not round and round.
+				if (newIteration) break;
+				newIteration = true;
+				continue;
+			}
+			if (ready.add(f)) hashes.add(f.hash);
+		}
+		if (!hashes.isEmpty()) resolver.prefetch(hashes);
+	}
+	
+	/**
+	 * Wakes the dispatch loop to dispatch whatever it can now, as something has happened that might let it:
+	 * a slot has become free, sources have been found, new peers have arrived or files have been queued.
+	 */
+	synchronized void requestDispatch() {
+		dispatchRequested = true;
+		this.notify();
 	}
 	
 	/**
@@ -244,7 +313,7 @@ public class DownloadDispatcher {
 			File onDisk = f.getFile();
 			if (!onDisk.isFile()) return false;
 			if (onDisk.length()!=f.size) return false;
-			if (!ThrottledFileDigester.fs2DigestFile(onDisk, null).equals(f.hash)) return false;
+			if (!controller.ssvr.getHashCache().fs2DigestFile(onDisk).equals(f.hash)) return false;
 		} catch (Exception e) {
 			Logger.warn("Couldn't test for file completion on disk: "+e);
 			Logger.log(e);
@@ -264,7 +333,7 @@ public class DownloadDispatcher {
 		if (downloadFileCompleteOnDisk(nF)) {
 			Logger.warn("Complete download: "+nF+" was in the queue. Issueing completion.");
 			nF.downloadComplete();//issue completion
-			wereCompleteItemsInQueue = true;
+			requestDispatch();
 			return;
 		}
 		
@@ -275,7 +344,7 @@ public class DownloadDispatcher {
 				try {
 					nF.getFile().createNewFile();
 					nF.downloadComplete();
-					wereCompleteItemsInQueue = true;
+					requestDispatch();
 					return;
 				} catch (IOException e) {
 					Logger.severe("Empty file: "+nF.getFile().getPath()+" couldn't be created on disk: "+e);
@@ -286,7 +355,7 @@ public class DownloadDispatcher {
 			if (nF.active.isComplete()) {
 				Logger.warn("Complete download: "+nF+" was in the queue. Issueing completion.");
 				nF.downloadComplete();
-				wereCompleteItemsInQueue = true;
+				requestDispatch();
 				return;
 			} else if (nF.active.chunks.size()==0){
 				Logger.warn("Active download '"+nF+"' in queue with no chunks. Restarting download from the beginning.");
@@ -301,24 +370,20 @@ public class DownloadDispatcher {
 			workers.add(w);
 			
 			
-			//Start one of the download chunks present in the info:
-			for (DownloadChunk c : w.getIncompleteInactiveChunks()) {
-				w.downloadChunk(c, bestSource, downloadThreadPool);
-				break;
-			}
+			//Start the download chunks present in the info:
+			dispatchAnIncompleteInactiveChunk(w, bestSource);
 		} catch (IOException e) {
 			Logger.severe("Unable to dispatch a download: "+e);
 			Logger.log(e);
 		}
 	}
 	
-	/**
-	 * complete items then this allows the dispatcher to skip the throttle for this iteration.
-	 */
-	private boolean wereCompleteItemsInQueue = false; 
 	private void dispatchLoop() {
 		while (true) {
 			long lastIteration = System.currentTimeMillis();
+			synchronized (this) {
+				dispatchRequested = false; //anything that happens from now on warrants another iteration.
+			}
 			
 			try {
 				//Logger.log("dispatch: "+lastIteration);
@@ -333,7 +398,8 @@ public class DownloadDispatcher {
 				 //only consider dispatching another if there are free slots:
 				while (canQueue>0) {
 					//2) dispatch another file: (this means we prefer to give slots to new files rather than split existing chunks)
-					if (!dispatchFile()) break; //stop iterating if the queue is empty.
+					fillReady();
+					if (!dispatchFile()) break; //stop iterating if the queue is empty, or nothing is ready yet.
 					
 					if (mustShutdown) return;
 					canQueue--;
@@ -353,16 +419,14 @@ public class DownloadDispatcher {
 				Logger.log(e);
 			}
 
-			//Throttle this loop so that it does not spin exceedinly fast if there is nothing to do.
-			long now = System.currentTimeMillis();
-			long remaining = (lastIteration+FS2Constants.CLIENT_DOWNLOAD_DISPATCH_ITERATION_THROTTLE)-now;
+			//Wait until there might be something more to dispatch, or until it's time to look for chunks to split anyway.
 			try {
-				if (remaining>0 && !wereCompleteItemsInQueue) {
-					synchronized (this) {
+				synchronized (this) {
+					long remaining;
+					while (!dispatchRequested && !mustShutdown && (remaining = (lastIteration+FS2Constants.CLIENT_DOWNLOAD_DISPATCH_ITERATION_THROTTLE)-System.currentTimeMillis())>0) {
 						this.wait(remaining);
 					}
 				}
-				wereCompleteItemsInQueue = false;
 			} catch (InterruptedException e) {
 				if (mustShutdown) return;
 			}
@@ -371,8 +435,17 @@ public class DownloadDispatcher {
 	
 	public DownloadDispatcher(DownloadController controller) {
 		this.controller = controller;
+		downloadThreadPool = ExecutorStrategy.fromConfig(controller.ssvr.getConf().getString(CK.EXECUTOR_STRATEGY)).newUnboundedExecutor(true, "download");
 		
+		resolver = new DownloadSourceResolver(controller.ssvr.getIndexNodeCommunicator(), this);
+		controller.ssvr.getIndexNodeCommunicator().registerNewPeerListener(resolver); //sources found before new peers arrived might be missing some.
 		controller.ssvr.getIndexNodeCommunicator().registerNewPeerListener(controller.q); //ensure the queue knows when new peers have arrived.
+		controller.ssvr.getIndexNodeCommunicator().registerNewPeerListener(new NewPeerListener() {
+			@Override
+			public void newPeersPresent() {
+				requestDispatch(); //files that had no sources might have some now. (after the queue has forgotten which had none)
+			}
+		});
 		
 		dispatcher = new Thread(new Runnable() {
 			@Override
@@ -391,6 +464,7 @@ public class DownloadDispatcher {
 	
 	public void setMaxActiveSlots(int maxActiveSlots) {
 		this.maxActiveSlots = maxActiveSlots;
+		requestDispatch();
 	}
 	
 	public int getMaxSlotsPerFile() {
@@ -399,6 +473,7 @@ public class DownloadDispatcher {
 	
 	public void setMaxSlotsPerFile(int maxSlotsPerFile) {
 		this.maxSlotsPerFile = maxSlotsPerFile;
+		requestDispatch();
 	}
 	
 	public synchronized void shutdown() {
@@ -406,6 +481,7 @@ public class DownloadDispatcher {
 		dispatcher.interrupt();
 		for (DownloadWorker w : workers) w.shutdown();
 		downloadThreadPool.shutdown();
+		resolver.shutdown();
 	}
 
 	/**
@@ -413,6 +489,15 @@ public class DownloadDispatcher {
 	 * so this should un-dispatch those items contained within it.
 	 */
 	synchronized void queueItemCancelled(DownloadItem cancelled) {
+		Iterator<DownloadFile> it = ready.iterator();
+		while (it.hasNext()) {
+			try {
+				if (Util.isWithin(it.next().getFile(), cancelled.getFile())) it.remove();
+			} catch (IOException e) {
+				Logger.severe("Couldn't determine file locations: "+e);
+				Logger.log(e);
+			}
+		}
 		for (DownloadWorker w : workers) {
 			try {
 				if (Util.isWithin(w.info.file.getFile(), cancelled.getFile())) {
@@ -430,6 +515,15 @@ public class DownloadDispatcher {
 	 */
 	public synchronized void requeue() {
 		for (DownloadWorker w : workers) w.shutdown();
+		requestDispatch();
+	}
+	
+	/**
+	 * Called by the queue when its order has changed, so that the files it had ready are taken again in the new order.
+	 */
+	synchronized void queueReordered() {
+		ready.clear();
+		requestDispatch();
 	}
 	
 }
@@ -204,6 +204,7 @@ public class DownloadQueue implements Serializable, TreeModel, Savable, NewPeerL
 			//3) reset the iterator.
 			iterationIdx++;
 			setupQueueIterator();
+			dc.dispatch.queueReordered();
 		}
 		
 		/**
@@ -387,6 +388,7 @@ public class DownloadQueue implements Serializable, TreeModel, Savable, NewPeerL
 								}
 							}
 						});
+						dc.dispatch.requestDispatch(); //outside of the lock, as the dispatcher takes it while holding its own.
 					} finally {
 						fireFileSubmittedEvent(entry, listener);
 					}
@@ -1223,7 +1225,16 @@ public class DownloadQueue implements Serializable, TreeModel, Savable, NewPeerL
 	 * Generates the iterator used to traverse the tree. This supplies the filtering that is used 
 	 */
 	private void setupQueueIterator() {
-		queueIterator = new QueueIterable(new Filter<DownloadItem>() {
+		queueIterator = new QueueIterable(inactiveFilter(), root.downloadDirs);
+
+		treeModified = false;
+	}
+	
+	/**
+	 * Accepts the files that are waiting to be dispatched in this iteration.
+	 */
+	private Filter<DownloadItem> inactiveFilter() {
+		return new Filter<DownloadItem>() {
 			@Override
 			public boolean accept(DownloadItem item) {
 				if (item instanceof DownloadFile) {
@@ -1236,9 +1247,7 @@ public class DownloadQueue implements Serializable, TreeModel, Savable, NewPeerL
 				return false;
 			}
 			
-		}, root.downloadDirs);
-
-		treeModified = false;
+		};
 	}
 	
 	transient QueueIterable queueIterator;
@@ -0,0 +1,169 @@
+package client.indexnode.downloadcontroller;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import client.indexnode.IndexNodeCommunicator;
+import client.indexnode.NewPeerListener;
+
+import common.FS2Constants;
+import common.Logger;
+
+/**
+ * Finds the download sources of files in the background so that the download dispatcher never waits on the indexnodes.
+ *
+ * The sources found for a file are remembered for CLIENT_DOWNLOAD_SOURCES_TTL, or until new peers arrive.
+ * Files whose sources are wanted are looked up together, up to CLIENT_DOWNLOAD_SOURCES_PREFETCH at a time,
+ * so each indexnode is asked about many files in one request rather than one request per file.
+ *
+ * The dispatcher is asked to dispatch whenever new sources are known, so it can dispatch them straight away.
+ *
+ * @author gary
+ */
+class DownloadSourceResolver implements Runnable, NewPeerListener {
+
+	private static class Resolved {
+		final Map<String, DownloadSource> sources;
+		final long at;
+
+		Resolved(Map<String, DownloadSource> sources, long at) {
+			this.sources = sources;
+			this.at = at;
+		}
+	}
+
+	private final IndexNodeCommunicator comm;
+	private final DownloadDispatcher dispatcher;
+	private final Thread thread;
+	private volatile boolean mustShutdown = false;
+
+	/** Sources by file hash, in the order they were found so the eldest expire first.*/
+	private final LinkedHashMap<String, Resolved> resolved = new LinkedHashMap<String, Resolved>();
+	/** Hashes waiting to be looked up.*/
+	private final LinkedHashSet<String> pending = new LinkedHashSet<String>();
+	/** Hashes being looked up right now.*/
+	private final HashSet<String> resolving = new HashSet<String>();
+	/** Incremented when everything known is forgotten, so lookups that were already underway aren't remembered.*/
+	private int generation = 0;
+
+	/**
+	 * @param comm the indexnodes to find sources on.
+	 * @param dispatcher the dispatcher to wake whenever sources have been found.
+	 */
+	DownloadSourceResolver(IndexNodeCommunicator comm, DownloadDispatcher dispatcher) {
+		this.comm = comm;
+		this.dispatcher = dispatcher;
+		thread = new Thread(this, "download source resolver");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the sources of a file if they are known, otherwise they're looked up in the background.
+	 * @param hash the hash of the file to find sources for.
+	 * @return the sources indexed by peer alias (which might be empty if the file has no sources), or null if they aren't known yet.
+	 */
+	synchronized Map<String, DownloadSource> getSources(String hash) {
+		Resolved r = resolved.get(hash);
+		if (r!=null && r.at+FS2Constants.CLIENT_DOWNLOAD_SOURCES_TTL>System.currentTimeMillis()) return r.sources;
+		request(hash);
+		return null;
+	}
+
+	/**
+	 * Looks up the sources of the files given in the background, unless they're already known.
+	 */
+	synchronized void prefetch(Collection<String> hashes) {
+		long now = System.currentTimeMillis();
+		for (String hash : hashes) {
+			Resolved r = resolved.get(hash);
+			if (r==null || r.at+FS2Constants.CLIENT_DOWNLOAD_SOURCES_TTL<=now) request(hash);
+		}
+	}
+
+	private void request(String hash) {
+		if (resolving.contains(hash) || !pending.add(hash)) return;
+		this.notify();
+	}
+
+	/**
+	 * New peers might be sources for any file, so everything known is forgotten.
+	 */
+	@Override
+	public synchronized void newPeersPresent() {
+		resolved.clear();
+		generation++;
+	}
+
+	void shutdown() {
+		mustShutdown = true;
+		thread.interrupt();
+	}
+
+	@Override
+	public void run() {
+		while (!mustShutdown) {
+			try {
+				ArrayList<String> batch = new ArrayList<String>();
+				int batchGeneration;
+				synchronized (this) {
+					while (pending.isEmpty()) this.wait();
+					Iterator<String> it = pending.iterator();
+					while (it.hasNext() && batch.size()<FS2Constants.CLIENT_DOWNLOAD_SOURCES_PREFETCH) {
+						batch.add(it.next());
+						it.remove();
+					}
+					resolving.addAll(batch);
+					batchGeneration = generation;
+				}
+
+				Map<String, Map<String, DownloadSource>> found = null;
+				try {
+					found = comm.getSourcesForFiles(batch);
+				} finally {
+					synchronized (this) {
+						resolving.removeAll(batch);
+						if (found!=null) remember(batch, found, batchGeneration);
+					}
+				}
+
+				dispatcher.requestDispatch();
+			} catch (InterruptedException e) {
+				if (mustShutdown) return;
+			} catch (Exception e) {
+				Logger.warn("Download sources couldn't be found: "+e);
+				Logger.log(e);
+			}
+		}
+	}
+
+	private void remember(Collection<String> batch, Map<String, Map<String, DownloadSource>> found, int batchGeneration) {
+		long now = System.currentTimeMillis();
+		if (batchGeneration==generation) {
+			for (Map.Entry<String, Map<String, DownloadSource>> e : found.entrySet()) {
+				resolved.remove(e.getKey()); //so it moves to the end.
+				resolved.put(e.getKey(), new Resolved(e.getValue(), now));
+			}
+		} else {
+			//New peers arrived while these were being looked up, so look again:
+			pending.addAll(batch);
+		}
+		expire(now);
+	}
+
+	/**
+	 * Forgets sources that are too old to be used.
+	 */
+	private void expire(long now) {
+		Iterator<Resolved> it = resolved.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().at+FS2Constants.CLIENT_DOWNLOAD_SOURCES_TTL>now) break;
+			it.remove();
+		}
+	}
+}
@@ -3,6 +3,8 @@ package client.indexnode.downloadcontroller;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 
 /**
@@ -67,7 +69,16 @@ public abstract class DownloadWorker {
 	 * Instructs this worker to begin downloading the chunk specified.
 	 * The chunk may chose to use the pool provided to schedule execution.
 	 */
-	public abstract void downloadChunk(DownloadChunk chunk, DownloadSource source, ExecutorService pool);
+	public void downloadChunk(DownloadChunk chunk, DownloadSource source, ExecutorService pool) {
+		downloadChunks(Collections.singletonList(chunk), source, pool);
+	}
+	
+	/**
+	 * Instructs this worker to begin downloading all of the chunks specified from one source, using one slot.
+	 * Workers that support it will request them all at once.
+	 * The chunks may chose to use the pool provided to schedule execution.
+	 */
+	public abstract void downloadChunks(List<DownloadChunk> chunks, DownloadSource source, ExecutorService pool);
 	
 	/**
 	 * Returns a collection of chunks in this download that are not complete but also are not being 'worked' on.
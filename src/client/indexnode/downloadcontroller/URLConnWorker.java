@@ -1,5 +1,6 @@
 package client.indexnode.downloadcontroller;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -10,7 +11,10 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -18,6 +22,7 @@ import common.FS2Constants;
 import common.FS2Filter;
 import common.HttpUtil;
 import common.Logger;
+import common.Util;
 
 import client.indexnode.downloadcontroller.DownloadChunk.Status;
 import client.indexnode.downloadcontroller.DownloadQueue.DownloadDirectory;
@@ -37,24 +42,34 @@ public class URLConnWorker extends DownloadWorker {
 	File saveAs;
 	File progressFile;
 	ArrayList<ChunkWorker> activeChunks = new ArrayList<ChunkWorker>();
+	/** Guards the file and activeChunks. This is not the worker's monitor as it is held while writing to disk, which would pin a virtual thread.*/
+	final ReentrantLock lock = new ReentrantLock();
 	
 	/**
 	 * This pattern is intended to match the content-range header generated by the HttpUtil sendFileOnly method:
 	 * String crh = "bytes "+newPosition+"-"+((newRemaining+newPosition)-1)+"/"+newRemaining;
 	 */
 	public final Pattern contentRangePattern = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+	/** Matches the content type of a multipart/byteranges response and extracts its boundary.*/
+	public final Pattern multipartPattern = Pattern.compile("multipart/byteranges;\\s*boundary=\"?([^\";]+)\"?.*", Pattern.CASE_INSENSITIVE);
 	private class ChunkWorker implements Runnable {
-		DownloadChunk chunk;
+		/** The chunk being transferred now.*/
+		volatile DownloadChunk chunk;
+		/** Every chunk requested from the source. When there are several they arrive as the parts of one multipart/byteranges response.*/
+		final List<DownloadChunk> chunks = new CopyOnWriteArrayList<DownloadChunk>();
 		volatile Thread thread;
 		volatile boolean mustShutdown = false;
 		
-		public ChunkWorker(DownloadChunk chunk, ExecutorService pool) {
-			this.chunk = chunk;
+		public ChunkWorker(List<DownloadChunk> batch, ExecutorService pool) {
+			chunks.addAll(batch);
+			this.chunk = batch.get(0);
 			
-			//setup the chunk's transients.
-			chunk.chunkTracker = info.fileProgress.getNewChild();
-			chunk.setTrackerExpectedMaximum();
-			chunk.status = Status.CONNECTING;
+			//setup the chunks' transients.
+			for (DownloadChunk c : batch) {
+				c.chunkTracker = info.fileProgress.getNewChild();
+				c.setTrackerExpectedMaximum();
+				c.status = Status.CONNECTING;
+			}
 			
 			//submit this chunk to the threadpool supplied.
 			pool.submit(this);
@@ -63,17 +78,20 @@ public class URLConnWorker extends DownloadWorker {
 		@Override
 		public void run() {
 			thread = Thread.currentThread();
-			boolean firstSeek = true;
-			//Actually try to download the item, this either works (download is active), fails (not found, not contactable, etc), or is queued.
-			try {
-				dispatch.events.chunkStarted(chunk);
-			} catch (InterruptedException e) {
-				Logger.log("Download '"+chunk.getOwner().getFile().getName()+"'cancelled/interrupted before it even started.");
-			} catch (Exception e) {
-				Logger.warn("chunkStarted event dispatch: "+e);
-				Logger.log(e);
+			//Actually try to download the items, this either works (download is active), fails (not found, not contactable, etc), or is queued.
+			for (DownloadChunk c : chunks) {
+				try {
+					dispatch.events.chunkStarted(c);
+				} catch (InterruptedException e) {
+					Logger.log("Download '"+c.getOwner().getFile().getName()+"'cancelled/interrupted before it even started.");
+				} catch (Exception e) {
+					Logger.warn("chunkStarted event dispatch: "+e);
+					Logger.log(e);
+				}
 			}
 			InputStream instream = null;
+			String boundary = null;
+			String singlePart = null; //the content range of a batched request answered with one range (the peer merged them all).
 			try {
 				try {
 					while (instream==null) {
@@ -88,7 +106,7 @@ public class URLConnWorker extends DownloadWorker {
 						} else {
 							//uh oh! SSL needed:
 							conn = (HttpURLConnection) FS2Filter.getFS2SecureURL(chunk.source.location).openConnection();
-							chunk.secure = true;
+							for (DownloadChunk c : chunks) c.secure = true;
 							//In future a secret token supplied by the indexnode might be needed here as the remote peer doesn't have any guarantees that we didn't just guess the file name.
 							// the secret token would probably change on a client session basis and would help as guessing the token would be O(2^63) but guessing filenames would probably be a lot easier
 							// for example: https://blah:41235/shares/music/iTunes Music Library-whatever-.xml has a good chance of existing and the DH_anon does not guarantee MITM-proofiness.
@@ -97,21 +115,36 @@ public class URLConnWorker extends DownloadWorker {
 						
 						try {
 							dispatch.controller.ssvr.getFS2Filter().fs2FixupURLConnectionForClient(conn, 0l); //token is meaningless for a client-client transfer.
-							HttpUtil.setRequestRange(conn, chunk.position, chunk.endByte);
+							boolean batched = chunks.size()>1;
+							if (batched) {
+								ArrayList<long[]> ranges = new ArrayList<long[]>();
+								for (DownloadChunk c : chunks) ranges.add(new long[] {c.position, c.endByte});
+								HttpUtil.setRequestRanges(conn, ranges);
+							} else {
+								HttpUtil.setRequestRange(conn, chunk.position, chunk.endByte);
+							}
 							
 							int responseCode = conn.getResponseCode();
 							
-							if (responseCode==200 && chunk.isWholeFile()) { //200 is only good if we wanted the entire file:
+							if (batched && (responseCode==200 || responseCode==206)) {
+								Matcher matcher = multipartPattern.matcher(conn.getContentType()==null ? "" : conn.getContentType());
+								if (responseCode==206 && matcher.matches()) {
+									boundary = matcher.group(1);
+									instream = conn.getInputStream();
+								} else if (responseCode==206 && partChunk(conn.getHeaderField("Content-Range"))!=null) {
+									singlePart = conn.getHeaderField("Content-Range");
+									instream = conn.getInputStream();
+								} else {
+									//Peers from before multiple ranges were supported send the whole file or the first range, so ask again for one chunk:
+									Logger.log(chunk.source.peerAlias+" can't send several ranges at once, requesting '"+chunk.owner.file.getName()+"' a chunk at a time.");
+									conn.disconnect();
+									releaseAllButCurrent();
+								}
+							} else if (responseCode==200 && chunk.isWholeFile()) { //200 is only good if we wanted the entire file:
 								instream=conn.getInputStream();
 							} else if (responseCode==206) { //206: partial content is only good if the content range header is what we expected:
 								String crh = conn.getHeaderField("Content-Range");
-								Matcher matcher = contentRangePattern.matcher(crh);
-								if (crh==null ||  															//CRH must exist.
-									!matcher.matches() ||													//Must match the regex.
-									!(Long.parseLong(matcher.group(1))==chunk.position) ||					//the position must be the one we requested.
-									!(Long.parseLong(matcher.group(2))==chunk.endByte) ||					//the last byte in the range must match
-									!(Long.parseLong(matcher.group(3))==(chunk.endByte-chunk.position)+1)	//our arithmetic about how many bytes to transfer must agree
-									) {
+								if (!rangeMatches(crh, chunk)) {
 									Logger.warn("Unable to download from: "+chunk.source.peerAlias+", "+chunk.source.location+" response:" +responseCode+" content range: "+crh+", did not match expectations.");
 									info.error = true;
 									info.errorDescription = "remote peer ("+chunk.source.peerAlias+") isn't supplying the correct bytes to us.";
@@ -120,13 +153,15 @@ public class URLConnWorker extends DownloadWorker {
 									instream = conn.getInputStream();
 								}
 							} else if (responseCode==503) {
-								boolean queuedAlready = chunk.status==Status.QUEUED;
 								//Server busy: this means we're queued.
-								chunk.status = Status.QUEUED;
-								try {
-									if (!queuedAlready) dispatch.events.chunkQueued(chunk);
-								} catch (Exception e) {
-									Logger.warn("chunkQueued event dispatch: "+e);
+								for (DownloadChunk c : chunks) {
+									boolean queuedAlready = c.status==Status.QUEUED;
+									c.status = Status.QUEUED;
+									try {
+										if (!queuedAlready) dispatch.events.chunkQueued(c);
+									} catch (Exception e) {
+										Logger.warn("chunkQueued event dispatch: "+e);
+									}
 								}
 								try {
 									Thread.sleep(FS2Constants.CLIENT_TIMEDQUEUE_TOKEN_EXPIRY_INTERVAL);
@@ -146,75 +181,39 @@ public class URLConnWorker extends DownloadWorker {
 								return;
 							}
 						} finally {
-							InputStream es = conn.getErrorStream();
-							if (es!=null) es.close();
+							HttpUtil.drainAndClose(conn.getErrorStream());
 						}
 					}
 				} finally {
-					if (chunk.status == Status.QUEUED) {
-						try {
-							dispatch.events.chunkUnqueued(chunk);
-						} catch (Exception e) {
-							Logger.warn("chunkUnqueued event dispatch: "+e);
+					for (DownloadChunk c : chunks) {
+						if (c.status == Status.QUEUED) {
+							c.status = Status.CONNECTING;
+							try {
+								dispatch.events.chunkUnqueued(c);
+							} catch (Exception e) {
+								Logger.warn("chunkUnqueued event dispatch: "+e);
+							}
 						}
 					}
 				}
 				
-				//2) download from the input stream until this chunk is finished.
+				//2) download from the input stream until the chunks are finished.
 				//  (being here means we have an inputstream from the peer)
 				
 				//throttle downloads:
 				instream = new ThrottledInputStream(instream, dispatch.controller.throttle);
-				chunk.status = Status.DOWNLOADING;
-				
-				chunk.lastSplit = System.currentTimeMillis();
-				chunk.lastCheckedTime = chunk.lastSplit;
 				
-				byte[] buffer = new byte[FS2Constants.ARBITRARY_BUFFER_SIZE];
-				//download from the inputstream into the onDisk.
-				while (chunk.position<=chunk.endByte) {
-					//Logger.log(toString()+" pos:"+chunk.position+" tPos:"+chunk.chunkTracker.getPosition()+"endByte:"+chunk.endByte+" tEndByte"+chunk.chunkTracker.getMaximum()+"  %:"+chunk.chunkTracker.percentComplete());
-					
-					if (mustShutdown) return;
-					int request = (int) Math.min(buffer.length, (chunk.endByte-chunk.position)+1);
-					int got = instream.read(buffer, 0, request);
-					if (got==-1) {
-						Logger.warn("Unexpected download EOF from: "+chunk.source.peerAlias+ " on file "+chunk.owner.file.getName());
-						info.error = true;
-						info.errorDescription = "remote peer ("+chunk.source.peerAlias+") didn't supply enough bytes. Maybe they just disconnected or the file is in use on their end?";
-						return; //TRANSFER ENDED! this isn't a problem, as this chunk will just get re-dispatched in the future.
-					}
-
-					if (mustShutdown) return;
-					
-					//as some operating systems (*cough* windows) don't have sparse files enabled by default, so we should inform the user when we are likely allocating grand amounts of zeros...(grumble)
-					if (firstSeek) {
-						chunk.status=Status.ALLOCATING;
-						dispatch.controller.chunkChanged(chunk);
-					}
-					//write the recieved bytes to the file:
-					synchronized (URLConnWorker.this) {
-						onDisk.seek(chunk.position);  //this might result in serious thrashing... hope the OS caches.
-						onDisk.write(buffer, 0, got);
-						//now update the chunk:
-						chunk.position+=got;
-					}
-					if (firstSeek) {
-						chunk.status=Status.DOWNLOADING;
-						dispatch.controller.chunkChanged(chunk);
-						firstSeek = false;
-					}
-					chunk.chunkTracker.progress(got);
-					try {
-						dispatch.events.chunkTransfer(chunk, got);
-					} catch (Exception e) {
-						Logger.warn("chunkTransfer event dispatch: "+e);
-					}
-					info.error = false; //reset error condition if any chunk got here.
+				if (boundary!=null) {
+					if (!transferParts(instream, boundary)) return;
+				} else if (singlePart!=null) {
+					if (!transferPart(instream, singlePart)) return;
+				} else {
+					if (transfer(chunk, instream, (chunk.endByte-chunk.position)+1)<0) return;
 				}
 				
 				//chunk complete! :o
-				synchronized (URLConnWorker.this) {
+				lock.lock();
+				try {
 					//Check to see if the whole file is complete, if so, then close the onDisk and rename it to the target name.
 					if (info.isComplete() && progressFile.exists()) {
 						onDisk.close();
@@ -225,6 +224,8 @@ public class URLConnWorker extends DownloadWorker {
 							info.errorDescription="couldn't be renamed after downloading, retrying... Antivirus programs may be interferring.";
 						}
 					}
+				} finally {
+					lock.unlock();
 				}//now just fall out and die.
 				
 			} catch (IOException e) {
@@ -233,7 +234,7 @@ public class URLConnWorker extends DownloadWorker {
 				info.errorDescription = "can't download from: "+chunk.source.peerAlias+" because: "+e;
 				//e.printStackTrace();
 			}  finally {
-				chunk.secure = false;
+				for (DownloadChunk c : chunks) c.secure = false;
 				if (instream!=null) {
 					try {
 						instream.close();
@@ -242,22 +243,226 @@ public class URLConnWorker extends DownloadWorker {
 					}
 				}
 				if (!mustShutdown) {
-					synchronized (URLConnWorker.this) {
+					lock.lock();
+					try {
 						activeChunks.remove(this); //we are now inactive, so remove us from the activeChunks.
+					} finally {
+						lock.unlock();
 					}
 				}
 				//clear the thread's interrupted flag (so that waiting for swing later doesn't bust us):
-				if (thread.isInterrupted()) {
+				Thread.interrupted();
+				for (DownloadChunk c : chunks) {
 					try {
-						synchronized (thread) {
-							thread.wait(); //will throw an exception immediately.
-						}
-					} catch (InterruptedException e) {
-						// dont care. This is here to clear the interrupted status of the thread.
+						dispatch.events.chunkEnded(c); //for so many reasons it is critical that a started chunk _always_ ends.
+					} catch (Exception e) {
+						Logger.warn("chunkEnded event dispatch: "+e);
 					}
 				}
+			}
+		}
+		
+		/**
+		 * Returns true if a Content-Range header from the peer is exactly the range requested for the chunk.
+		 */
+		private boolean rangeMatches(String crh, DownloadChunk c) {
+			if (crh==null) return false;																//CRH must exist.
+			Matcher matcher = contentRangePattern.matcher(crh);
+			return matcher.matches() &&																	//Must match the regex.
+				   Long.parseLong(matcher.group(1))==c.position &&										//the position must be the one we requested.
+				   Long.parseLong(matcher.group(2))==c.endByte &&										//the last byte in the range must match
+				   Long.parseLong(matcher.group(3))==(c.endByte-c.position)+1;							//our arithmetic about how many bytes to transfer must agree
+		}
+		
+		/**
+		 * Downloads into the chunk from the stream, which has length bytes for the chunk.
+		 * This stops early if the chunk is split while it downloads.
+		 * @return the number of the length's bytes that were not read, or -1 if the download failed or was shutdown.
+		 */
+		private long transfer(DownloadChunk c, InputStream instream, long length) throws IOException {
+			boolean firstSeek = true;
+			c.status = Status.DOWNLOADING;
+			
+			c.lastSplit = System.currentTimeMillis();
+			c.lastCheckedTime = c.lastSplit;
+			
+			byte[] buffer = new byte[FS2Constants.ARBITRARY_BUFFER_SIZE];
+			//download from the inputstream into the onDisk.
+			while (c.position<=c.endByte && length>0) {
+				//Logger.log(toString()+" pos:"+c.position+" tPos:"+c.chunkTracker.getPosition()+"endByte:"+c.endByte+" tEndByte"+c.chunkTracker.getMaximum()+"  %:"+c.chunkTracker.percentComplete());
+				
+				if (mustShutdown) return -1;
+				int request = (int) Math.min(Math.min(buffer.length, (c.endByte-c.position)+1), length);
+				int got = instream.read(buffer, 0, request);
+				if (got==-1) {
+					Logger.warn("Unexpected download EOF from: "+c.source.peerAlias+ " on file "+c.owner.file.getName());
+					info.error = true;
+					info.errorDescription = "remote peer ("+c.source.peerAlias+") didn't supply enough bytes. Maybe they just disconnected or the file is in use on their end?";
+					return -1; //TRANSFER ENDED! this isn't a problem, as this chunk will just get re-dispatched in the future.
+				}
+				
+				if (mustShutdown) return -1;
+				
+				//as some operating systems (*cough* windows) don't have sparse files enabled by default, so we should inform the user when we are likely allocating grand amounts of zeros...(grumble)
+				if (firstSeek) {
+					c.status=Status.ALLOCATING;
+					dispatch.controller.chunkChanged(c);
+				}
+				//write the recieved bytes to the file:
+				lock.lock();
 				try {
-					dispatch.events.chunkEnded(chunk); //for so many reasons it is critical that a started chunk _always_ ends.
+					onDisk.seek(c.position);  //this might result in serious thrashing... hope the OS caches.
+					onDisk.write(buffer, 0, got);
+					//now update the chunk:
+					c.position+=got;
+				} finally {
+					lock.unlock();
+				}
+				length -= got;
+				if (firstSeek) {
+					c.status=Status.DOWNLOADING;
+					dispatch.controller.chunkChanged(c);
+					firstSeek = false;
+				}
+				c.chunkTracker.progress(got);
+				try {
+					dispatch.events.chunkTransfer(c, got);
+				} catch (Exception e) {
+					Logger.warn("chunkTransfer event dispatch: "+e);
+				}
+				info.error = false; //reset error condition if any chunk got here.
+			}
+			return length;
+		}
+		
+		/**
+		 * Downloads each part of a multipart/byteranges response into the chunk it was requested for.
+		 * @return false if the download failed or was shutdown.
+		 */
+		private boolean transferParts(InputStream instream, String boundary) throws IOException {
+			String delimiter = "--"+boundary;
+			//Skip any preamble:
+			String line;
+			do {
+				line = readPartLine(instream);
+			} while (!line.startsWith(delimiter));
+			
+			while (!line.equals(delimiter+"--")) {
+				//1) the part's headers say which range it is:
+				String crh = null;
+				while ((line = readPartLine(instream)).length()>0) {
+					if (line.toLowerCase().startsWith("content-range:")) crh = line.substring("content-range:".length()).trim();
+				}
+				
+				//2) its body:
+				if (!transferPart(instream, crh)) return false;
+				
+				//3) the delimiter before the next part, or the end:
+				do {
+					line = readPartLine(instream);
+				} while (line.length()==0);
+				if (!line.startsWith(delimiter)) throw new IOException("Malformed multipart response: '"+line+"' where a boundary was expected.");
+			}
+			return true;
+		}
+		
+		/**
+		 * Returns the chunk that a part with the content range given starts with, or null if it doesn't start with one of the chunks requested.
+		 */
+		private DownloadChunk partChunk(String crh) {
+			Matcher matcher = contentRangePattern.matcher(crh==null ? "" : crh);
+			if (!matcher.matches()) return null;
+			long start = Long.parseLong(matcher.group(1));
+			long end = Long.parseLong(matcher.group(2));
+			if (Long.parseLong(matcher.group(3))!=(end-start)+1) return null;
+			return chunkAt(start, end);
+		}
+		
+		/**
+		 * Returns the incomplete chunk requested that continues from the position given and ends within the range, or null if there isn't one.
+		 * (A chunk might have been split since it was requested, so its end may be earlier than was asked for.)
+		 */
+		private DownloadChunk chunkAt(long position, long end) {
+			for (DownloadChunk c : chunks) {
+				if (c.position==position && c.position<=c.endByte && c.endByte<=end) return c; //a complete chunk's position is where the next one starts.
+			}
+			return null;
+		}
+		
+		/**
+		 * Downloads a part of the response, with the content range given, into the chunks it was requested for.
+		 * A peer may merge the ranges of adjacent chunks, so one part can fill several chunks in turn.
+		 * @return false if the part didn't match what was requested, or the download failed or was shutdown.
+		 */
+		private boolean transferPart(InputStream instream, String crh) throws IOException {
+			DownloadChunk part = partChunk(crh);
+			if (part==null) {
+				Logger.warn("Unable to download from: "+chunk.source.peerAlias+", "+chunk.source.location+" content range: "+crh+", did not match expectations.");
+				info.error = true;
+				info.errorDescription = "remote peer ("+chunk.source.peerAlias+") isn't supplying the correct bytes to us.";
+				return false;
+			}
+			Matcher matcher = contentRangePattern.matcher(crh);
+			matcher.matches();
+			long end = Long.parseLong(matcher.group(2));
+			long offset = Long.parseLong(matcher.group(1));
+			while (part!=null) {
+				chunk = part;
+				long length = (part.endByte-offset)+1;
+				long unread = transfer(part, instream, length);
+				if (unread<0) return false;
+				skip(instream, unread); //the chunk was split while it downloaded, the rest is someone else's.
+				offset += length;
+				part = (offset<=end ? chunkAt(offset, end) : null);
+			}
+			//Anything left of the part wasn't requested by a chunk we still have:
+			skip(instream, (end-offset)+1);
+			return true;
+		}
+		
+		/**
+		 * Reads the rest of a part that is no longer needed, this is read rather than skipped so it's still throttled.
+		 */
+		private void skip(InputStream instream, long count) throws IOException {
+			byte[] discard = new byte[(int) Math.min(FS2Constants.ARBITRARY_BUFFER_SIZE, Math.max(count, 1))];
+			while (count>0) {
+				int got = instream.read(discard, 0, (int) Math.min(discard.length, count));
+				if (got<0) throw new EOFException("The multipart response ended early.");
+				count -= got;
+			}
+		}
+		
+		private String readPartLine(InputStream instream) throws IOException {
+			byte[] line = Util.readLine(instream);
+			if (line.length==0) throw new EOFException("The multipart response ended early.");
+			return new String(line, "ASCII").trim();
+		}
+		
+		/**
+		 * Ends all of the chunks but the current one, so that they can be requested separately.
+		 */
+		private void releaseAllButCurrent() {
+			ArrayList<DownloadChunk> released = new ArrayList<DownloadChunk>();
+			lock.lock();
+			try {
+				for (DownloadChunk c : chunks) {
+					if (c!=chunk) released.add(c);
+				}
+				chunks.removeAll(released);
+			} finally {
+				lock.unlock();
+			}
+			for (DownloadChunk c : released) {
+				c.secure = false;
+				if (c.status == Status.QUEUED) {
+					try {
+						dispatch.events.chunkUnqueued(c);
+					} catch (Exception e) {
+						Logger.warn("chunkUnqueued event dispatch: "+e);
+					}
+				}
+				try {
+					dispatch.events.chunkEnded(c);
 				} catch (Exception e) {
 					Logger.warn("chunkEnded event dispatch: "+e);
 				}
@@ -297,11 +502,17 @@ public class URLConnWorker extends DownloadWorker {
 	}
 
 	@Override
-	public synchronized void downloadChunk(DownloadChunk chunk, DownloadSource source, ExecutorService pool) {
-		if (shutdown) throw new IllegalArgumentException("Can't download a chunk on a shutdown worker.");
-		if (source==null) throw new IllegalArgumentException("Can't download from a null source.");
-		chunk.source = source;
-		activeChunks.add(new ChunkWorker(chunk, pool));
+	public void downloadChunks(List<DownloadChunk> chunks, DownloadSource source, ExecutorService pool) {
+		lock.lock();
+		try {
+			if (shutdown) throw new IllegalArgumentException("Can't download a chunk on a shutdown worker.");
+			if (source==null) throw new IllegalArgumentException("Can't download from a null source.");
+			if (chunks.isEmpty()) throw new IllegalArgumentException("Can't download no chunks.");
+			for (DownloadChunk chunk : chunks) chunk.source = source;
+			activeChunks.add(new ChunkWorker(chunks, pool));
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
@@ -310,83 +521,110 @@ public class URLConnWorker extends DownloadWorker {
 	}
 
 	@Override
-	public synchronized Collection<DownloadChunk> getDownloadingChunks() {
-		ArrayList<DownloadChunk> ret = new ArrayList<DownloadChunk>();
-		for (ChunkWorker c : activeChunks) {
-			if (c.chunk.status == Status.DOWNLOADING) ret.add(c.chunk);
+	public Collection<DownloadChunk> getDownloadingChunks() {
+		lock.lock();
+		try {
+			ArrayList<DownloadChunk> ret = new ArrayList<DownloadChunk>();
+			for (ChunkWorker cw : activeChunks) {
+				for (DownloadChunk c : cw.chunks) {
+					if (c.status == Status.DOWNLOADING) ret.add(c);
+				}
+			}
+			return ret;
+		} finally {
+			lock.unlock();
 		}
-		return ret;
 	}
 
 	@Override
-	public synchronized Collection<DownloadChunk> getIncompleteInactiveChunks() {
-		if (shutdown) return Collections.emptyList();
+	public Collection<DownloadChunk> getIncompleteInactiveChunks() {
+		lock.lock();
+		try {
+			if (shutdown) return Collections.emptyList();
 		
-		//start with all chunks:
-		HashSet<DownloadChunk> ret = new HashSet<DownloadChunk>(info.chunks);
+			//start with all chunks:
+			HashSet<DownloadChunk> ret = new HashSet<DownloadChunk>(info.chunks);
 		
-		//remove active:
-		for (ChunkWorker cw : activeChunks) {
-			ret.remove(cw.chunk);
-		}
+			//remove active:
+			for (ChunkWorker cw : activeChunks) {
+				ret.removeAll(cw.chunks);
+			}
 		
-		//remove complete:
-		Iterator<DownloadChunk> ci = ret.iterator();
-		while (ci.hasNext()) {
-			if (ci.next().isComplete()) ci.remove();
-		}
+			//remove complete:
+			Iterator<DownloadChunk> ci = ret.iterator();
+			while (ci.hasNext()) {
+				if (ci.next().isComplete()) ci.remove();
+			}
 		
-		return ret;
+			return ret;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
-	public synchronized void killAChunk() {
-		if (shutdown) throw new IllegalArgumentException("Can't kill chunks on a shutdown worker.");
-		for (ChunkWorker cw : activeChunks) {  //abuse the foreach to get the first.
-			cw.shutdown();
-			activeChunks.remove(cw); //safe for concurrent modification as the iterator is discarded next.
-			break;
+	public void killAChunk() {
+		lock.lock();
+		try {
+			if (shutdown) throw new IllegalArgumentException("Can't kill chunks on a shutdown worker.");
+			for (ChunkWorker cw : activeChunks) {  //abuse the foreach to get the first.
+				cw.shutdown();
+				activeChunks.remove(cw); //safe for concurrent modification as the iterator is discarded next.
+				break;
+			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
 	@Override
-	public synchronized DownloadChunk splitChunk(DownloadChunk chunk) {
-		if (shutdown) throw new IllegalArgumentException("Can't split chunk on a shutdown worker.");
-		long inChunkNewEndByte = (chunk.endByte+chunk.startByte)/2;
-		long newChunkStartByte = inChunkNewEndByte+1;
+	public DownloadChunk splitChunk(DownloadChunk chunk) {
+		lock.lock();
+		try {
+			if (shutdown) throw new IllegalArgumentException("Can't split chunk on a shutdown worker.");
+			long inChunkNewEndByte = (chunk.endByte+chunk.startByte)/2;
+			long newChunkStartByte = inChunkNewEndByte+1;
 		
-		//create a new chunk from the end of the resized old chunk to where the old chunk ended.
-		DownloadChunk newChunk = new DownloadChunk(info);
-		newChunk.startByte = newChunkStartByte;
-		newChunk.endByte = chunk.endByte;
-		newChunk.position = newChunk.startByte;
-		info.chunks.add(newChunk); //add this new chunk to the info as per contract.
+			//create a new chunk from the end of the resized old chunk to where the old chunk ended.
+			DownloadChunk newChunk = new DownloadChunk(info);
+			newChunk.startByte = newChunkStartByte;
+			newChunk.endByte = chunk.endByte;
+			newChunk.position = newChunk.startByte;
+			info.chunks.add(newChunk); //add this new chunk to the info as per contract.
 		
-		//resize the inChunk:
-		chunk.endByte=inChunkNewEndByte;
-		chunk.setTrackerExpectedMaximum();
-		chunk.lastSplit = System.currentTimeMillis();
+			//resize the inChunk:
+			chunk.endByte=inChunkNewEndByte;
+			chunk.setTrackerExpectedMaximum();
+			chunk.lastSplit = System.currentTimeMillis();
 
-		return newChunk;
+			return newChunk;
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	private volatile boolean shutdown = false;
 	
 	@Override
-	public synchronized void shutdown() {
-		shutdown = true;
-		for (ChunkWorker c : activeChunks) {
-			c.shutdown();
-		}
-		activeChunks.clear(); //no active chunks left...
+	public void shutdown() {
+		lock.lock();
 		try {
-			if (onDisk!=null) {
-				onDisk.close();
-				onDisk=null;
+			shutdown = true;
+			for (ChunkWorker c : activeChunks) {
+				c.shutdown();
 			}
-		} catch (IOException e) {
-			Logger.warn("Unable to close download file: "+e);
-			Logger.log(e);
+			activeChunks.clear(); //no active chunks left...
+			try {
+				if (onDisk!=null) {
+					onDisk.close();
+					onDisk=null;
+				}
+			} catch (IOException e) {
+				Logger.warn("Unable to close download file: "+e);
+				Logger.log(e);
+			}
+		} finally {
+			lock.unlock();
 		}
 	}
 	
@@ -407,16 +645,21 @@ public class URLConnWorker extends DownloadWorker {
 	}
 
 	@Override
-	public synchronized boolean isSecure() {
-		boolean ret = false;
-		for (ChunkWorker c : activeChunks) {
-			if (c.chunk.isSecure()){
-				ret = true;
-			} else {
-				return false;
+	public boolean isSecure() {
+		lock.lock();
+		try {
+			boolean ret = false;
+			for (ChunkWorker c : activeChunks) {
+				if (c.chunk.isSecure()){
+					ret = true;
+				} else {
+					return false;
+				}
 			}
+			return ret;
+		} finally {
+			lock.unlock();
 		}
-		return ret;
 	}
 	
 }
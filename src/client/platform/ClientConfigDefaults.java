@@ -46,6 +46,8 @@ public class ClientConfigDefaults implements ConfigDefaults {
 		public static final String AUTO_HEAP_KNOWLEDGE = "auto_heap_grow_acknowledged";
 		public static final String DISPLAY_CHAT_NOTIFICATIONS = "display_notifications";
 		public static final String AVATAR_PATH = "avatar_path";
+		public static final String EXECUTOR_STRATEGY = "executor_strategy";
+		public static final String SHARE_HASH_THREADS_PER_DEVICE = "share_hash_threads_per_device";
 		
 		//gui bits
 		public static final String MAIN_WINDOW_TOP = "gui/geometry/main_window_top";
@@ -107,6 +109,9 @@ public class ClientConfigDefaults implements ConfigDefaults {
 		defaults.put(CK.ACTIVE_DOWNLOADS_PER_FILE, "1");
 		comments.put(CK.ACTIVE_DOWNLOADS_PER_FILE, "indicates how many separate chunks a file may be downloaded as simultaniously.");
 		
+		defaults.put(CK.EXECUTOR_STRATEGY, "platform");
+		comments.put(CK.EXECUTOR_STRATEGY, "either 'platform' or 'virtual'. With 'virtual' uploads and downloads each run on a virtual thread, which needs Java 21 or later (otherwise platform threads are used anyway).");
+		
 		defaults.put(CK.AUTO_INDEX_NODE,"true");
 		comments.put(CK.AUTO_INDEX_NODE, "if auto_index is 'true' then this client will automatically register with autodetected indexnodes.");
 		
@@ -129,6 +134,9 @@ public class ClientConfigDefaults implements ConfigDefaults {
 		defaults.put(CK.SHARE_AUTOREFRESH_INTERVAL, "1800"); //30 minutes.
 		comments.put(CK.SHARE_AUTOREFRESH_INTERVAL, CK.SHARE_AUTOREFRESH_INTERVAL+" is the number of seconds that a share will refresh itself automatically after.");
 		
+		defaults.put(CK.SHARE_HASH_THREADS_PER_DEVICE, "2");
+		comments.put(CK.SHARE_HASH_THREADS_PER_DEVICE, CK.SHARE_HASH_THREADS_PER_DEVICE+" is how many files are hashed at once from each disk while shares refresh. Use 1 for spinning disks, SSDs are faster with more.");
+		
 		defaults.put(CK.UPDATE_POLICY, "auto");
 		comments.put(CK.UPDATE_POLICY, "update_policy controls the automatic update behaviour.\nSet to 'none' for no autoupdates, 'ask' to make the gui ask and the command line notify (but do nothing)\nor 'auto' to always download and hotpatch new versions");
 		
@@ -9,6 +9,12 @@ public interface BandwidthSharer {
 	 */
 	public abstract long getBytes(long request) throws InterruptedException;
 
+	/**
+	 * As getBytes(request), for a transfer that should get only a fraction of the bandwidth a transfer of weight one gets when they compete.
+	 * @param weight greater than zero and at most one.
+	 */
+	public abstract long getBytes(long request, float weight) throws InterruptedException;
+
 	public abstract int getAllocationInterval();
 
 	public abstract void setAllocationInterval(int allocationInterval);
@@ -28,4 +34,4 @@ public interface BandwidthSharer {
 	 */
 	public abstract void setBytesPerSecond(long bytes);
 
-}
\ No newline at end of file
+}
@@ -1,32 +1,45 @@
 package client.shareserver;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.FS2Constants;
+
 /**
  * The BandwidthSharer provides a simple API to enable a fixed throughput (bandwidth) of bytes
  * to be fairly shared between multiple throughput consumers.
- * 
+ *
  * Aside from configuration methods, the principle method is getBytes.
  * Calls to getBytes are blocked until bytes can be allocated such that if the caller uses them
- * the bitrate will not exceede the rate this object is configured for. 
- * 
+ * the bitrate will not exceede the rate this object is configured for.
+ *
  * This version is threadless! :o (it only computes in caller's threads!)
- * 
- * getBytes is threadsafe, this class is now quite elegant.
- * 
+ *
+ * It's a token bucket kept as a single timestamp (the generic cell rate algorithm): the time at which every byte allocated so far
+ * will have been paid for at the configured rate. Each allocation pushes that time on by the cost of its bytes with a compare-and-set,
+ * then its caller sleeps until the time it's paid up to is within one allocation interval of now. So there are no locks, idle sharers
+ * can burst one interval's worth of bytes, and callers are served in the order they asked.
+ * As each allocation is at most a small quantum (times the caller's weight) and a transfer asks again only after using its last,
+ * competing transfers take turns and get bandwidth in proportion to their weights.
+ *
+ * Limits of FS2Constants.BANDWIDTH_UNLIMITED_BYTES_PER_SEC or more aren't enforced at all, and cost nothing.
+ *
  * @author gary
  */
 public class BandwidthSharerImpl implements BandwidthSharer{
 
-	int allocationInterval = 100; //The number of milliseconds between each bandwidth allocation.
-	long maxAllocation = 1024L; //The number of bytes that may be allocated at most, per allocation.
-	
-	//Represents the number of future allocations already consumed.
-	Integer futuresConsumed = 0;
-	//the most recent time a future allocatoin became a real allocation:
-	long mostRecentConsumedDecrement = System.currentTimeMillis();
-	
-	//the amount of remaining bytes for the next future
-	long remainingBytes = maxAllocation;
-	
+	volatile int allocationInterval = 100; //The number of milliseconds between each bandwidth allocation.
+	volatile long maxAllocation = 1024L; //The number of bytes that may be allocated at most, per allocation.
+
+	/** The nanoseconds each byte costs at the configured rate, or zero if the rate is unlimited.*/
+	private volatile double nanosPerByte;
+	/** The System.nanoTime() by which all the bytes allocated so far will have been paid for.*/
+	private final AtomicLong paidUntil = new AtomicLong(System.nanoTime());
+
+	public BandwidthSharerImpl() {
+		updateCost();
+	}
+
 	@Override
 	public int getAllocationInterval() {
 		return this.allocationInterval;
@@ -34,37 +47,28 @@ public class BandwidthSharerImpl implements BandwidthSharer{
 
 	@Override
 	public long getBytes(long request) throws InterruptedException {
-		
-		boolean iConsumedAFuture = false;
-		long allocation;
-		long waitUntil;
-		
-		synchronized (futuresConsumed) {
-			
-			if (remainingBytes==0) {
-				remainingBytes = maxAllocation;
-				iConsumedAFuture = true;
-				futuresConsumed++;
-			}
-			
-			allocation = (request>remainingBytes ? remainingBytes : request);
-			remainingBytes -= allocation;
-			
-			waitUntil = mostRecentConsumedDecrement+(futuresConsumed*allocationInterval);
-		}
-
-		long now;
-		while (waitUntil>(now=System.currentTimeMillis())) {
-			Thread.sleep(waitUntil-now);
-		}
-		
-		if (iConsumedAFuture) {
-			synchronized (futuresConsumed) {
-				futuresConsumed--;
-				mostRecentConsumedDecrement = System.currentTimeMillis();
-			}
-		}
-		
+		return getBytes(request, 1f);
+	}
+
+	@Override
+	public long getBytes(long request, float weight) throws InterruptedException {
+		if (request<=0) return 0; //never more than was asked for, even to make progress.
+		double cost = nanosPerByte;
+		if (cost==0) return request;
+
+		long turn = Math.min(maxAllocation, FS2Constants.BANDWIDTH_ALLOCATION_QUANTUM);
+		//At least one byte, so that tiny weights still make progress:
+		long allocation = Math.max(1, Math.min(request, (long) (turn*Math.min(weight, 1f))));
+		long price = (long) (allocation*cost);
+		long burst = (long) (maxAllocation*cost);
+		long now, paid;
+		do {
+			now = System.nanoTime();
+			paid = paidUntil.get();
+		} while (!paidUntil.compareAndSet(paid, Math.max(paid, now)+price));
+
+		long wait = paid-burst-now;
+		if (wait>0) TimeUnit.NANOSECONDS.sleep(wait);
 		return allocation;
 	}
 
@@ -76,6 +80,7 @@ public class BandwidthSharerImpl implements BandwidthSharer{
 	@Override
 	public void setAllocationInterval(int allocationPeriod) {
 		this.allocationInterval = allocationPeriod;
+		updateCost();
 	}
 
 	/* (non-Javadoc)
@@ -84,17 +89,24 @@ public class BandwidthSharerImpl implements BandwidthSharer{
 	public long getBytesPerSecond() {
 		return new Double(maxAllocation / ((new Double(allocationInterval))/1000d) ).longValue();
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see client.shareserver.BandwidthSharerI#setBytesPerSecond(long)
 	 */
 	public void setBytesPerSecond(long bytes) {
 		maxAllocation = new Double(bytes * ((new Double(allocationInterval))/1000d) ).longValue();
+		updateCost();
 	}
 
 	@Override
 	public void setMaxAllocation(long maxAllocation) {
 		this.maxAllocation = maxAllocation;
+		updateCost();
 	}
-	
+
+	private void updateCost() {
+		long bps = getBytesPerSecond();
+		nanosPerByte = (bps>=FS2Constants.BANDWIDTH_UNLIMITED_BYTES_PER_SEC ? 0 : 1000000000d/Math.max(1, bps));
+	}
+
 }
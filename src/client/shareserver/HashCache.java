@@ -0,0 +1,247 @@
+package client.shareserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import common.FS2Constants;
+import common.Logger;
+import common.SafeSaver;
+import common.SafeSaver.Savable;
+
+/**
+ * Remembers the fs2 digests of files on this computer so they needn't be read again when a share's filelist forgets them,
+ * such as when a share is re-added or a directory is moved within a share.
+ *
+ * Files are known by their filesystem key (device and inode on unix) so that moved files are still recognised,
+ * or by their path on filesystems that don't have keys. A remembered digest is only used while the file's size and modification time are unchanged.
+ *
+ * Entries not seen for CLIENT_HASH_CACHE_EXPIRY_DAYS are dropped when the cache is loaded, and the least recently seen are dropped if there are too many.
+ * There is always room for every shared file on top of CLIENT_HASH_CACHE_MAX_ENTRIES others, otherwise a share larger than the limit
+ * would evict its own entries in scan order on every refresh.
+ *
+ * @author gary
+ */
+public class HashCache implements Savable {
+
+	private static final int FORMAT_VERSION = 1;
+
+	private static class Entry {
+		long size;
+		long lastModified;
+		int hashVersion;
+		String hash;
+		/** The day (since the epoch) this entry was last stored or used.*/
+		int lastSeenDay;
+	}
+
+	private final File location;
+	private final SafeSaver saver = new SafeSaver(this, FS2Constants.CLIENT_HASH_CACHE_SAVE_MIN_INTERVAL);
+	private boolean dirty = false;
+	/** Unlimited while loading, the shares aren't known yet and might need every entry that was saved.*/
+	private int maxEntries = Integer.MAX_VALUE;
+
+	/** Kept in access order, so the eldest entry is the least recently seen.*/
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = -1390482706011349532L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size()>maxEntries;
+		}
+	};
+
+	/**
+	 * Loads the cache from the file given, or starts an empty cache if it can't be loaded.
+	 */
+	public HashCache(File location) {
+		this.location = location;
+		if (location.exists()) load();
+		maxEntries = Math.max(FS2Constants.CLIENT_HASH_CACHE_MAX_ENTRIES, entries.size());
+	}
+
+	private void load() {
+		int expired = 0;
+		int today = today();
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(location)));
+			try {
+				if (in.readInt()!=FORMAT_VERSION) {
+					Logger.warn("The hash cache is in an unknown format, it will be rebuilt.");
+					return;
+				}
+				int count = in.readInt();
+				for (int i=0; i<count; i++) {
+					String key = in.readUTF();
+					Entry e = new Entry();
+					e.size = in.readLong();
+					e.lastModified = in.readLong();
+					e.hashVersion = in.readInt();
+					e.hash = in.readUTF();
+					e.lastSeenDay = in.readInt();
+					//Compaction happens here: stale entries are just not loaded.
+					if (e.hashVersion!=FS2Constants.FILE_DIGEST_VERSION_INT || today-e.lastSeenDay>FS2Constants.CLIENT_HASH_CACHE_EXPIRY_DAYS) {
+						expired++;
+						continue;
+					}
+					entries.put(key, e);
+				}
+			} finally {
+				in.close();
+			}
+			if (expired>0) dirty = true;
+			Logger.log("Hash cache loaded with "+entries.size()+" files ("+expired+" forgotten).");
+		} catch (IOException e) {
+			Logger.warn("The hash cache couldn't be loaded, it will be rebuilt: "+e);
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Tells the cache how many files are shared, so that it can remember all of them.
+	 * Entries are only dropped once they are over this many plus CLIENT_HASH_CACHE_MAX_ENTRIES.
+	 */
+	public synchronized void setSharedFileCount(long files) {
+		maxEntries = (int) Math.min(Integer.MAX_VALUE, FS2Constants.CLIENT_HASH_CACHE_MAX_ENTRIES+Math.max(0l, files));
+	}
+
+	private static int today() {
+		return (int) (System.currentTimeMillis()/(24l*60l*60l*1000l));
+	}
+
+	private static String keyFor(Path file, BasicFileAttributes attrs) {
+		Object key = attrs.fileKey();
+		return (key!=null ? "key:"+key : "path:"+file.toAbsolutePath());
+	}
+
+	/**
+	 * Returns the remembered digest of a file, or null if it isn't known or the file has changed since.
+	 * @param file the file, only used to identify it on filesystems without file keys.
+	 * @param attrs the current attributes of the file.
+	 */
+	public synchronized String get(Path file, BasicFileAttributes attrs) {
+		Entry e = entries.get(keyFor(file, attrs));
+		if (e==null) return null;
+		if (e.size!=attrs.size() || e.lastModified!=attrs.lastModifiedTime().toMillis() || e.hashVersion!=FS2Constants.FILE_DIGEST_VERSION_INT) return null;
+		seen(e);
+		return e.hash;
+	}
+
+	/**
+	 * Remembers the digest of a file, or notes that a remembered digest is still in use.
+	 * @param attrs the attributes of the file when it was hashed.
+	 */
+	public synchronized void put(Path file, BasicFileAttributes attrs, String hash) {
+		String key = keyFor(file, attrs);
+		Entry e = entries.get(key);
+		if (e==null) {
+			e = new Entry();
+			entries.put(key, e);
+		}
+		long lastModified = attrs.lastModifiedTime().toMillis();
+		if (e.size!=attrs.size() || e.lastModified!=lastModified || e.hashVersion!=FS2Constants.FILE_DIGEST_VERSION_INT || !hash.equals(e.hash)) {
+			e.size = attrs.size();
+			e.lastModified = lastModified;
+			e.hashVersion = FS2Constants.FILE_DIGEST_VERSION_INT;
+			e.hash = hash;
+			dirty = true;
+		}
+		seen(e);
+	}
+
+	private void seen(Entry e) {
+		//Only a new day is worth saving, so unchanged shares don't cause a save every refresh.
+		int today = today();
+		if (e.lastSeenDay!=today) {
+			e.lastSeenDay = today;
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Returns the fs2 digest of a file, from the cache if possible, otherwise by reading it.
+	 */
+	public String fs2DigestFile(File file) throws NoSuchAlgorithmException, IOException {
+		Path path = file.toPath();
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		String ret = get(path, attrs);
+		if (ret==null) {
+			ret = ThrottledFileDigester.fs2DigestFile(file, null);
+			put(path, attrs, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * Saves the cache soon if it has changed.
+	 */
+	public void requestSave() {
+		saver.requestSave();
+	}
+
+	/**
+	 * Saves the cache now if it has changed.
+	 */
+	public void saveShutdown() {
+		saver.saveShutdown();
+	}
+
+	/**
+	 * Saves the cache if it has changed. Saves are serialised by the SafeSaver.
+	 * The cache is only locked while it is copied into memory, so hashing isn't held up by the disk.
+	 */
+	@Override
+	public void doSave() {
+		ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+		try {
+			synchronized (this) {
+				if (!dirty) return;
+				DataOutputStream out = new DataOutputStream(snapshot);
+				out.writeInt(FORMAT_VERSION);
+				out.writeInt(entries.size());
+				//Written least recently seen first, so the order survives loading:
+				for (Map.Entry<String, Entry> me : entries.entrySet()) {
+					Entry e = me.getValue();
+					out.writeUTF(me.getKey());
+					out.writeLong(e.size);
+					out.writeLong(e.lastModified);
+					out.writeInt(e.hashVersion);
+					out.writeUTF(e.hash);
+					out.writeInt(e.lastSeenDay);
+				}
+				out.flush();
+				dirty = false; //changes from now on need another save.
+			}
+			
+			File working = new File(location.getPath()+".working");
+			BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(working));
+			try {
+				snapshot.writeTo(out);
+			} finally {
+				out.close();
+			}
+			if (location.exists()) location.delete();
+			if (!working.renameTo(location)) {
+				throw new IOException("Couldn't rename the working hash cache.");
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				dirty = true;
+			}
+			Logger.warn("The hash cache couldn't be saved: "+e);
+			Logger.log(e);
+		}
+	}
+}
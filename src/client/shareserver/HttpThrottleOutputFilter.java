@@ -1,25 +1,56 @@
 package client.shareserver;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import common.httpserver.Filter;
 import common.httpserver.HttpExchange;
 
 /**
  * A filter that can be applied to an httpcontext to throttle the output bitrate.
+ * 
+ * Each peer gets an equal share of the bandwidth however many transfers it has, as a peer's transfers share one transfer's weight.
  */
 public class HttpThrottleOutputFilter extends Filter {
 
 	private BandwidthSharer group;
+	/** The number of transfers in progress to each peer.*/
+	private HashMap<InetAddress, AtomicInteger> peerTransfers = new HashMap<InetAddress, AtomicInteger>();
 	
 	public HttpThrottleOutputFilter(BandwidthSharer sharer) {
 		group = sharer;
 	}
 	
 	public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
-		exchange.setStreams(exchange.getRequestBody(), new ThrottledOutputStream(exchange.getResponseBody(),group));
-		//propagate:
-		chain.doFilter(exchange);
+		InetAddress peer = exchange.getRemoteAddress().getAddress();
+		AtomicInteger transfers = transferStarted(peer);
+		try {
+			exchange.setStreams(exchange.getRequestBody(), new ThrottledOutputStream(exchange.getResponseBody(),group,transfers));
+			//propagate:
+			chain.doFilter(exchange);
+		} finally {
+			transferEnded(peer, transfers);
+		}
+	}
+	
+	private AtomicInteger transferStarted(InetAddress peer) {
+		synchronized (peerTransfers) {
+			AtomicInteger ret = peerTransfers.get(peer);
+			if (ret==null) {
+				ret = new AtomicInteger();
+				peerTransfers.put(peer, ret);
+			}
+			ret.incrementAndGet();
+			return ret;
+		}
+	}
+	
+	private void transferEnded(InetAddress peer, AtomicInteger transfers) {
+		synchronized (peerTransfers) {
+			if (transfers.decrementAndGet()==0) peerTransfers.remove(peer);
+		}
 	}
 
 }
@@ -1,21 +1,41 @@
 package client.shareserver;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import common.httpserver.HttpContext;
+import common.httpserver.HttpExchange;
+import common.httpserver.HttpHandler;
 
 import client.platform.Platform;
 
+import common.CompactFileList;
 import common.FS2Constants;
 import common.FileList;
+import common.FileListDelta;
+import common.FileListDelta.Change;
 import common.HttpFileHandler;
 import common.HttpUtil;
 import common.Logger;
@@ -27,13 +47,40 @@ import common.Util.NiceMagnitude;
 
 public class Share {
 	
+	/**
+	 * Brings a share's filelist into line with the disk.
+	 * 
+	 * This thread walks the share, queueing files that need hashing to the hashing threads for the share's device.
+	 * Hashed files come back to this thread to be merged into the filelist, so only this thread ever changes it.
+	 * 
+	 * If the share is being watched then only the directories that have changed need to be revisited.
+	 */
 	private class Refresher implements Runnable {
 		
 		volatile boolean shouldStop = false;
+		/** True if only the directories the watcher saw change are revisited, so existing directories within them are not descended into.*/
+		boolean changesOnly;
 		ProgressTracker tracker = new ProgressTracker();
 		long changed = 0;
 		long buildSizeSoFar = 0;
 		FileCounter fileCounter = null;
+		/** The changes made during this refresh, in order. Items are live until the refresh completes.*/
+		LinkedList<Change> journalled = new LinkedList<Change>();
+		/** Hashes files for this refresh while it carries on walking the share.*/
+		ThreadPoolExecutor hashers;
+		/** Files that have been hashed, waiting to be merged into the filelist.*/
+		LinkedBlockingQueue<HashJob> hashed = new LinkedBlockingQueue<HashJob>();
+		/** The number of files queued for hashing that haven't been merged yet.*/
+		int pendingHashes = 0;
+		/** When this refresh started walking the share. Changes before this might have been missed by a full refresh.*/
+		long startedAt;
+		
+		/**
+		 * @param changesOnly true to refresh only the directories that have changed, if they're known.
+		 */
+		Refresher(boolean changesOnly) {
+			this.changesOnly = changesOnly;
+		}
 		
 		public void shutdown() {
 			shouldStop = true;
@@ -44,6 +91,7 @@ public class Share {
 		
 		@Override
 		public void run() {
+			startedAt = System.currentTimeMillis();
 			try {
 				tracker.setExpectedMaximum(list.root.fileCount);
 				if (list.root.fileCount == 0l) {
@@ -61,18 +109,33 @@ public class Share {
 					Logger.warn("Share "+getName()+" ("+location+") doesn't exist on disk!");
 					return;
 				}
-				//Always start on a canonical file so that symlink detection works.
-				refreshDirectory(canonicalLocation, list.root);
+				hashers = ssvr.getShareHasher().forDevice(canonicalLocation);
+				//Changes from now on will be seen by this refresh or remain for the next:
+				HashSet<Path> changedDirectories = watcher.takeDirty();
+				if (changedDirectories==null || list.revision==0) changesOnly = false;
+				if (changesOnly) {
+					refreshDirectories(changedDirectories);
+				} else {
+					//Always start on a canonical file so that symlink detection works.
+					//(The first build of a list is not journalled, nobody could have an earlier revision)
+					refreshDirectory(canonicalLocation.toPath(), list.root, list.revision==0 ? null : "");
+				}
+				awaitHashes();
 				if (shouldStop) return;
+				tally(list.root);
 				
-				if (changed>0) list.revision++;
+				if (changed>0) {
+					list.revision++;
+					addToJournal(journalled, list.revision);
+				}
 				Logger.log(changed>0 ? "Share '"+getName()+"' is now at revision "+list.revision : "Share '"+getName()+"' is unchanged at revision " + list.revision);
-				refreshComplete();
+				refreshComplete(!changesOnly, changed>0, startedAt);
 				
 				
 			} catch (Exception e) {
 				Logger.severe("Exception during share refresh: "+e);
 				Logger.log(e);
+				if (changed>0 || !journalled.isEmpty()) refreshAbandoned();
 				causeOtherDescription = e.toString();
 				setStatus(Status.ERROR);
 				cause = ErrorCause.OTHER;
@@ -83,119 +146,292 @@ public class Share {
 			}
 		}
 		
-		void refreshDirectory(File directory, Item directoryItem) {
+		/**
+		 * Records a change made during this refresh.
+		 * @param path the path of the item changed, or null if changes here are not being journalled.
+		 * @param item the item now at the path, or null if it was removed.
+		 */
+		void journal(String path, Item item) {
+			if (path!=null) journalled.add(new Change(path, item));
+		}
+		
+		String childPath(String directoryPath, String name) {
+			if (directoryPath==null) return null;
+			return directoryPath.equals("") ? name : directoryPath+"/"+name;
+		}
+		
+		/**
+		 * Brings the directories given, but not the existing directories within them, into line with the disk.
+		 * Directories that are no longer in the filelist are skipped, as their parents must have changed too.
+		 */
+		void refreshDirectories(HashSet<Path> directories) {
+			ArrayList<Path> ordered = new ArrayList<Path>(directories);
+			//Parents first, so that their new or removed children are seen before the children are looked for:
+			Collections.sort(ordered, new Comparator<Path>() {
+				@Override
+				public int compare(Path o1, Path o2) {
+					return o1.getNameCount()-o2.getNameCount();
+				}
+			});
+			Path root = canonicalLocation.toPath();
+			for (Path directory : ordered) {
+				if (shouldStop) return;
+				if (!directory.startsWith(root)) continue;
+				Item item = list.root;
+				String path = "";
+				if (!directory.equals(root)) {
+					for (Path name : root.relativize(directory)) {
+						item = item.children.get(name.toString());
+						if (item==null || !item.isDirectory()) break;
+						path = childPath(path, name.toString());
+					}
+				}
+				if (item==null || !item.isDirectory()) continue;
+				refreshDirectory(directory, item, path);
+			}
+		}
+		
+		/**
+		 * Brings the directory item given into line with the directory on disk.
+		 * Sizes and file counts of directories are not maintained here, they're totalled by tally() once hashing has finished.
+		 * @param directoryPath The path of this directory within the share, used for journalling, null if not journalling.
+		 */
+		void refreshDirectory(Path directory, Item directoryItem, String directoryPath) {
 			HashSet<String> existing = new HashSet<String>(directoryItem.children.keySet());
 			
-			File[] dirChildren = directory.listFiles();
-			if (dirChildren!=null) {
-				for (final File f : dirChildren) {
-					//Here is the 'main' loop, items place here will happen before each file is considered.
-					if (shouldStop) return;
-					Util.executeNeverFasterThan(FS2Constants.CLIENT_EVENT_MIN_INTERVAL, notifyShareServer);
-					
-					if (f.getPath().endsWith(".incomplete")) continue; //don't share incomplete files as they can hash collide! (this effectively pollutes FS2 networks of large files :S)
-					if (f.isDirectory() && isSymlink(f)) continue; //forbid linked directories to avoid infinite loops.
-					
-					try {
-						if (f.isFile() && !Util.isWithin(f, canonicalLocation)) {
-							Logger.warn("Ignoring '"+f.getAbsolutePath()+"' while building share '"+getName()+"' as it is a link to outside of the share root.");
-							continue; //ignore symlinks to outside of the share as these cannot be downloaded.
-						}
-					} catch (IOException e) {
-						Logger.warn("Unable to check for canonical containment while building filelist: "+e);
-						Logger.log(e);
-						continue;
-					} 
-					
-					if (existing.remove(f.getName())) {
-						//We already have this item so update it:
-						Item exists = directoryItem.children.get(f.getName());
-						long csize = exists.size;
-						long ccount = exists.fileCount;
+			try {
+				DirectoryStream<Path> dirChildren = Files.newDirectoryStream(directory);
+				try {
+					for (Path f : dirChildren) {
+						//Here is the 'main' loop, items place here will happen before each file is considered.
+						if (shouldStop) return;
+						Util.executeNeverFasterThan(FS2Constants.CLIENT_EVENT_MIN_INTERVAL, notifyShareServer);
+						mergeHashed(false);
 						
-						updateItem(f, exists);
+						BasicFileAttributes attrs = shareableAttributes(f, true);
+						if (attrs==null) continue;
+						String name = f.getFileName().toString();
 						
-						directoryItem.size-=csize;
-						directoryItem.size+=exists.size;
-						directoryItem.fileCount-=ccount;
-						directoryItem.fileCount+=exists.fileCount;
-					} else {
-						changed++;
-						//brand new file or directory.
-						Item newitem = new Item();
-						newitem.name = f.getName();
-						directoryItem.children.put(newitem.name, newitem);
-						if (!updateItem(f, newitem)) {
-							directoryItem.children.remove(newitem.name);
-							changed-=2; //Item couldn't be updated (probably no permission) so this change didn't count.
-							            //Nor did the change incurred by the rehash that failed.
+						if (existing.remove(name)) {
+							//We already have this item so update it:
+							updateItem(f, attrs, directoryItem.children.get(name), childPath(directoryPath, name), null);
 						} else {
-							directoryItem.size+=newitem.size;
-							directoryItem.fileCount+=newitem.fileCount;
-							if (!newitem.isDirectory()) buildSizeSoFar+=newitem.size;
+							changed++;
+							//brand new file or directory.
+							Item newitem = new Item();
+							newitem.name = name;
+							directoryItem.children.put(newitem.name, newitem);
+							//The new item is journalled as a whole, so its contents need not be:
+							updateItem(f, attrs, newitem, childPath(directoryPath, name), directoryItem);
 						}
 					}
-					if (f.isFile()) {
-						tracker.progress(1); //one more item done.
-					}
+				} finally {
+					dirChildren.close();
 				}
+			} catch (IOException e) {
+				//Treated as empty, as unreadable directories always have been:
+				Logger.warn("Couldn't list '"+directory+"' while building share '"+getName()+"': "+e);
+			} catch (DirectoryIteratorException e) {
+				Logger.warn("Couldn't list '"+directory+"' while building share '"+getName()+"': "+e.getCause());
 			}
 			
 			//Remove files/directories from the list that are still in the 'existing' set,
 			//as they are clearly not in the filesystem.
 			for (String fn : existing) {
 				changed++; //This must be a change if there are items to remove.
-				directoryItem.size-=directoryItem.children.get(fn).size;
-				directoryItem.fileCount-=directoryItem.children.get(fn).fileCount; //this .fileCount should always be one for files.
 				directoryItem.children.remove(fn);
+				journal(childPath(directoryPath, fn), null);
 			}
 		}
 		
-		boolean updateItem(final File f, Item i) {
-			if (f.isDirectory()) {
-				if (i.children==null) i.children = new HashMap<String, Item>();
-				refreshDirectory(f, i);
-				return true;
+		/**
+		 * Returns the attributes of something found in this share, or null if it should not be shared.
+		 * The share is walked from its canonical location, so only links need checking for where they lead.
+		 * @param warn true to warn about links that lead outside of the share.
+		 */
+		BasicFileAttributes shareableAttributes(Path f, boolean warn) {
+			if (f.getFileName().toString().endsWith(".incomplete")) return null; //don't share incomplete files as they can hash collide! (this effectively pollutes FS2 networks of large files :S)
+			try {
+				BasicFileAttributes attrs = Files.readAttributes(f, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				if (attrs.isSymbolicLink()) {
+					attrs = Files.readAttributes(f, BasicFileAttributes.class);
+					if (attrs.isDirectory()) return null; //forbid linked directories to avoid infinite loops.
+					if (attrs.isRegularFile() && !Util.isWithin(f.toFile(), canonicalLocation)) {
+						if (warn) Logger.warn("Ignoring '"+f+"' while building share '"+getName()+"' as it is a link to outside of the share root.");
+						return null; //ignore symlinks to outside of the share as these cannot be downloaded.
+					}
+				}
+				//Devices, pipes, junctions and the like are never shared:
+				return (attrs.isDirectory() || attrs.isRegularFile()) ? attrs : null;
+			} catch (NoSuchFileException e) {
+				return null; //deleted since being listed, or a link to nowhere.
+			} catch (IOException e) {
+				if (warn) Logger.warn("Unable to examine '"+f+"' while building share '"+getName()+"': "+e);
+				return null;
+			}
+		}
+		
+		/**
+		 * Updates an item from the file on disk.
+		 * Files that need hashing are queued to be hashed, and are only journalled once they're merged back in.
+		 * @param path The path of the item within the share for journalling, or null if not journalling.
+		 * @param newIn The directory item this item has just been added to, or null if it was already in the list.
+		 */
+		void updateItem(Path f, BasicFileAttributes attrs, Item i, String path, Item newIn) {
+			if (attrs.isDirectory()) {
+				if (i.children==null) {
+					//This used to be a file (or is new), so the whole new directory is a change:
+					i.children = new HashMap<String, Item>();
+					i.hash = null;
+					i.size = 0;
+					i.fileCount = 0;
+					refreshDirectory(f, i, null);
+					journal(path, i);
+					changed++;
+				} else if (!changesOnly) {
+					refreshDirectory(f, i, path);
+				}
 			} else {
 				i.fileCount=1;
 				boolean hash = false;
-				if (i.size!=f.length()) {
+				if (i.size!=attrs.size()) {
 					hash = true;
-					i.size=f.length();
+					i.size=attrs.size();
 				}
-				if (i.lastModified!=f.lastModified()) {
+				if (i.lastModified!=attrs.lastModifiedTime().toMillis()) {
 					hash = true;
-					i.lastModified = f.lastModified();
+					i.lastModified = attrs.lastModifiedTime().toMillis();
 				}
 				if (i.hashVersion!=FS2Constants.FILE_DIGEST_VERSION_INT) {
 					hash = true;
 					i.hashVersion = FS2Constants.FILE_DIGEST_VERSION_INT;
 				}
-				if (hash || i.hash.equals("")) {
+				if (i.children!=null) {
+					//This used to be a directory:
+					hash = true;
+					i.children = null;
+				}
+				if (hash || i.hash==null || i.hash.equals("")) {
 					changed++;
-					return calculateHash(f, i);
+					HashJob job = new HashJob(f, attrs, i, path, newIn);
+					job.hash = ssvr.getHashCache().get(f, attrs);
+					if (job.hash!=null) {
+						job.merge(); //we've hashed this file before, perhaps somewhere else.
+					} else {
+						queueHash(job);
+					}
+				} else {
+					ssvr.getHashCache().put(f, attrs, i.hash); //so it's remembered if it moves.
+					tracker.progress(1); //one more item done.
 				}
-				return true;
 			}
 		}
 		
-		boolean calculateHash(File f, Item i) {
+		/**
+		 * Queues a file to be hashed, first merging files already hashed if too many are waiting.
+		 */
+		void queueHash(HashJob job) {
+			while (pendingHashes>=FS2Constants.CLIENT_SHARE_HASH_MAX_PENDING && !shouldStop) {
+				mergeHashed(true);
+			}
+			pendingHashes++;
+			hashers.execute(job);
+		}
+		
+		/**
+		 * Merges any files that have been hashed into the filelist.
+		 * @param wait true to wait a short while for a file to be hashed if none have been.
+		 */
+		void mergeHashed(boolean wait) {
 			try {
-				i.hash = ThrottledFileDigester.fs2DigestFile(f, null);
-				return true;
-			} catch (Exception e) {
-				Logger.warn("Failed to generate hash for "+f.getName()+", "+e.toString());
-				return false;
+				HashJob job = (wait ? hashed.poll(FS2Constants.CLIENT_EVENT_MIN_INTERVAL, TimeUnit.MILLISECONDS) : hashed.poll());
+				while (job!=null) {
+					pendingHashes--;
+					job.merge();
+					job = hashed.poll();
+				}
+			} catch (InterruptedException e) {
+				shouldStop = true;
+			}
+		}
+		
+		/**
+		 * Merges files into the filelist as they're hashed until none are left, or the refresh is stopped.
+		 */
+		void awaitHashes() {
+			while (pendingHashes>0 && !shouldStop) {
+				Util.executeNeverFasterThan(FS2Constants.CLIENT_EVENT_MIN_INTERVAL, notifyShareServer);
+				mergeHashed(true);
+			}
+		}
+		
+		/**
+		 * Recalculates the size and file count of the directory given, and every directory within it.
+		 */
+		void tally(Item directory) {
+			directory.size = 0;
+			directory.fileCount = 0;
+			for (Item child : directory.children.values()) {
+				if (child.isDirectory()) tally(child);
+				directory.size+=child.size;
+				directory.fileCount+=child.fileCount;
+			}
+		}
+		
+		/**
+		 * A file to be hashed on a hashing thread, then merged into the filelist by the refresh thread.
+		 */
+		private class HashJob implements Runnable {
+			final Path file;
+			final BasicFileAttributes attrs;
+			final Item item;
+			final String path;
+			final Item newIn;
+			/** The hash of the file, or null if it couldn't be hashed.*/
+			String hash;
+			
+			HashJob(Path file, BasicFileAttributes attrs, Item item, String path, Item newIn) {
+				this.file = file;
+				this.attrs = attrs;
+				this.item = item;
+				this.path = path;
+				this.newIn = newIn;
+			}
+			
+			@Override
+			public void run() {
+				try {
+					if (!shouldStop) {
+						hash = calculateHash(file.toFile());
+						if (hash!=null) ssvr.getHashCache().put(file, attrs, hash);
+					}
+				} finally {
+					hashed.add(this);
+				}
+			}
+			
+			void merge() {
+				tracker.progress(1); //one more item done.
+				if (hash==null) {
+					if (newIn!=null) {
+						newIn.children.remove(item.name);
+						changed-=2; //Item couldn't be updated (probably no permission) so this change didn't count.
+						            //Nor did the change incurred by the rehash that failed.
+					}
+					return;
+				}
+				item.hash = hash;
+				journal(path, item);
+				if (newIn!=null) buildSizeSoFar+=item.size;
 			}
 		}
 		
-		private boolean isSymlink(File file) {
+		String calculateHash(File f) {
 			try {
-				return !file.getAbsolutePath().equals(file.getCanonicalPath());
-			} catch (IOException e) {
-				Logger.severe("Symlink detection failed!:"+e);
-				Logger.log(e);
-				return false;
+				return ThrottledFileDigester.fs2DigestFile(f, null);
+			} catch (Exception e) {
+				Logger.warn("Failed to generate hash for "+f.getName()+", "+e.toString());
+				return null;
 			}
 		}
 	
@@ -223,7 +459,7 @@ public class Share {
 			public void run() {
 				try {
 					//Always start on a canonical file so that symlink detection works.
-					countDirectory(canonicalLocation);
+					countDirectory(canonicalLocation.toPath());
 					if (shouldStop) return;
 				} catch (Exception e) {
 					Logger.severe("Exception during file count: "+e);
@@ -233,35 +469,32 @@ public class Share {
 				}
 			}
 			
-			void countDirectory(File directory) {
-				File[] dirChildren = directory.listFiles();
-				if (dirChildren!=null) {
-					for (final File f : dirChildren) {
+			void countDirectory(Path directory) throws IOException {
+				DirectoryStream<Path> dirChildren;
+				try {
+					dirChildren = Files.newDirectoryStream(directory);
+				} catch (IOException e) {
+					return; //unreadable directories aren't shared.
+				}
+				try {
+					for (Path f : dirChildren) {
 						// Here is the 'main' loop, items place here will happen before each file is considered.
 						if (shouldStop) return;
 						Util.executeNeverFasterThan(FS2Constants.CLIENT_EVENT_MIN_INTERVAL, notifyShareServer);
 						
-						if (f.getPath().endsWith(".incomplete")) continue; // we don't share incomplete files
-						if (f.isDirectory() && isSymlink(f)) continue; // forbid linked directories to avoid infinite loops.
+						BasicFileAttributes attrs = shareableAttributes(f, false);
+						if (attrs==null) continue;
 						
-						try {
-							if (f.isFile() && !Util.isWithin(f, canonicalLocation)) {
-								continue; // ignore symlinks to outside of the share as these cannot be downloaded.
-							}
-						} catch (IOException e) {
-							Logger.warn("Unable to check for canonical containment while building filelist count: "+e);
-							Logger.log(e);
-							continue;
-						}
-						
-						if (f.isDirectory()) {
+						if (attrs.isDirectory()) {
 							countDirectory(f);
-						} else if (f.isFile()) {
+						} else {
 							fileCount++;
 						}
 					}
 					// Update the expected maximum of the tracker
 					tracker.setExpectedMaximum(fileCount);
+				} finally {
+					dirChildren.close();
 				}
 			}
 			
@@ -277,11 +510,22 @@ public class Share {
 	File canonicalLocation;
 	FileList list; //The structure that holds the list of files.
 	File listFile;
+	File compactListFile; //The same list in the compact format, for indexnodes that understand it.
 	ShareServer ssvr;
 	HttpContext context;
 	
 	volatile Refresher activeRefresh;
 	volatile boolean refreshActive = false;
+	/** Sees which directories change so refreshes needn't revisit the rest of the share.*/
+	ShareWatcher watcher;
+	/** When the last refresh of the whole share (rather than just the directories that changed) started.*/
+	volatile long lastFullRefresh;
+	
+	/** The deltas between recent revisions of the filelist, oldest first. This is not persisted.*/
+	private LinkedList<FileListDelta> journal = new LinkedList<FileListDelta>();
+	/** The number of items (including all items within directories) held in the journal.*/
+	private int journalItems = 0;
+	HttpContext deltaContext;
 	
 	/**
 	 * Returns the size of this share.
@@ -362,11 +606,14 @@ public class Share {
 		this.ssvr = ssvr;
 		
 		listFile = Platform.getPlatformFile("filelists"+File.separator+name+".FileList");
+		compactListFile = Platform.getPlatformFile("filelists"+File.separator+name+"."+CompactFileList.SHARE_TYPE);
 		
 		if (listFile.exists()) {
 			try {
-				InputStream is = new BufferedInputStream(new FileInputStream(listFile));
-				list = FileList.reconstruct(is);
+				//The compact list is much quicker to load, but might be stale if we were stopped in the middle of saving:
+				boolean compact = compactListFile.exists() && compactListFile.lastModified()>=listFile.lastModified();
+				InputStream is = new BufferedInputStream(new FileInputStream(compact ? compactListFile : listFile));
+				list = (compact ? CompactFileList.reconstruct(is) : FileList.reconstruct(is));
 				is.close();
 				if (list==null) newFileList(name);
 				
@@ -391,11 +638,19 @@ public class Share {
 		context.getFilters().add(ssvr.getFS2Filter());
 		context.getFilters().add(ssvr.getQueueFilter());
 	    context.getFilters().add(ssvr.getThrottleFilter());
+	    
+	    //Deltas of our filelist are served from beside the full filelists:
+	    deltaContext = ssvr.getHttpServer().createContext("/filelists/"+HttpUtil.urlEncode(name)+".delta", new DeltaHandler());
+	    deltaContext.getFilters().add(ssvr.getFS2Filter());
+	    deltaContext.getFilters().add(ssvr.getIndexNodeCommunicator().getIndexNodeOnlyFilter());
+		
+		lastFullRefresh = list.getLastRefreshed();
+		startWatching();
 		
 		//If we just created a new filelist then it must be built for the first time, else refreshed.
 		if (list.revision==0) {
 			Logger.log("Share '"+name+"' is being built for the first time.");
-			scheduleRefresh(true);
+			scheduleRefresh(true, false);
 		} else {
 			setStatus(Status.ACTIVE);
 		}
@@ -406,29 +661,76 @@ public class Share {
 		list = FileList.newFileList(name);
 	}
 	
+	private synchronized void startWatching() {
+		if (watcher!=null) watcher.stop();
+		watcher = new ShareWatcher(canonicalLocation.toPath(), getName());
+		watcher.start();
+	}
+	
 	/**
 	 * Schedules this share to be refreshed.
 	 */
 	public void refresh() {
-		scheduleRefresh(false);
+		scheduleRefresh(false, false);
+	}
+	
+	/**
+	 * Schedules the directories of this share that have changed to be refreshed,
+	 * if the share is being watched and nothing has changed for a few seconds.
+	 */
+	public void refreshChangesIfSettled() {
+		if (isWatched() && watcher.hasSettledChanges(FS2Constants.CLIENT_SHARE_WATCH_SETTLE_INTERVAL)) {
+			scheduleRefresh(false, true);
+		}
+	}
+	
+	/**
+	 * Returns true if changes to this share are being watched for, so that it only needs a full refresh occasionally.
+	 * This only becomes true after a full refresh since watching started, as changes before then were not seen.
+	 */
+	public boolean isWatched() {
+		ShareWatcher w = watcher;
+		return w!=null && w.isWatching() && lastFullRefresh>=w.getStartedAt();
+	}
+	
+	/**
+	 * Returns true if this share is being watched but some changes were missed, so it should be refreshed in full.
+	 */
+	public boolean needsFullRefresh() {
+		return isWatched() && watcher.needsFullRefresh();
 	}
 	
 	/**
 	 * Schedule this share to be refreshed when there is space in the refresh pool.
 	 * @param firstRefresh specify true iff this is the initial refresh.
+	 * @param changesOnly true to only refresh the directories that the watcher has seen change.
 	 */
-	private synchronized void scheduleRefresh(boolean firstRefresh) {
+	private synchronized void scheduleRefresh(boolean firstRefresh, boolean changesOnly) {
 		synchronized (status) { if (status==Status.SHUTDOWN) return; } //can't refresh a shutdown share.
 		if (activeRefresh==null) {			 						   //Only do something if there is no active/scheduled refresher already.
 			if (!firstRefresh) setStatus(Status.REFRESHING);
-			activeRefresh = new Refresher();
+			activeRefresh = new Refresher(changesOnly);
 			ssvr.getShareRefreshPool().execute(activeRefresh);
 		}
 	}
 	
-	private void refreshComplete() {
+	/**
+	 * @param wholeShare true if the whole share was refreshed, rather than just the directories that had changed.
+	 * @param changed true if the filelist was changed by the refresh.
+	 * @param startedAt when the refresh started.
+	 */
+	private void refreshComplete(boolean wholeShare, boolean changed, long startedAt) {
 		
 		list.setRefreshedNow();
+		//A full refresh only covers changes the watcher might have missed if it started after every directory was watched,
+		//so it's the start of the refresh that isWatched() compares, not its end:
+		if (wholeShare) lastFullRefresh = startedAt;
+		ssvr.getHashCache().requestSave();
+		if (!wholeShare && !changed) {
+			//Nothing new to save or tell the indexnodes about:
+			setStatus(Status.ACTIVE);
+			return;
+		}
 		if (saveList()) {
 			setStatus(Status.ACTIVE);	
 		}
@@ -436,12 +738,115 @@ public class Share {
 		ssvr.getIndexNodeCommunicator().sharesChanged(); //does not return immediately.
 	}
 	
+	/**
+	 * Called when a refresh that had already changed the filelist fails part-way through.
+	 * Its changes are incomplete so they can't be journalled, and the next refresh won't see them as changes again,
+	 * so the list gets a new revision that no delta leads to: everyone who listed an earlier revision must fetch the whole list.
+	 */
+	private void refreshAbandoned() {
+		synchronized (journal) {
+			list.revision++;
+			journal.clear();
+			journalItems = 0;
+		}
+		Logger.warn("Share '"+getName()+"' was partly refreshed, it is now at revision "+list.revision+" and must be listed again in full.");
+		saveList();
+		ssvr.getIndexNodeCommunicator().sharesChanged();
+	}
+	
 	public synchronized void shutdown() {
 		if (activeRefresh!=null) activeRefresh.shutdown();
+		watcher.stop();
 		ssvr.getHttpServer().removeContext(context);
+		ssvr.getHttpServer().removeContext(deltaContext);
 		setStatus(Status.SHUTDOWN);
 	}
 	
+	/**
+	 * Serves the changes since a recent revision of this share's filelist.
+	 * Responds 404 if the revision requested is not covered by the journal, so the whole list must be fetched instead.
+	 */
+	private class DeltaHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				FileListDelta delta = getDelta(Integer.parseInt(HttpUtil.getArguments(exchange).get("from")));
+				if (delta==null) {
+					HttpUtil.simple404(exchange);
+					return;
+				}
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				delta.deconstruct(bos);
+				HttpUtil.simpleBinaryResponse(exchange, bos.toByteArray(), 200);
+			} catch (NumberFormatException e) {
+				HttpUtil.simple400(exchange);
+			}
+		}
+	}
+	
+	/**
+	 * Adds the changes made by a refresh to the journal, then trims the journal to its limits.
+	 * The items changed are copied so that later refreshes can not modify them.
+	 * @param changes the changes made to reach the revision given.
+	 * @param revision the revision these changes produced.
+	 */
+	private void addToJournal(LinkedList<Change> changes, int revision) {
+		FileListDelta delta = new FileListDelta(revision-1, revision);
+		int items = 0;
+		for (Change c : changes) {
+			Item copy = (c.item==null ? null : copyItem(c.item));
+			delta.changes.add(new Change(c.path, copy));
+			items += (copy==null ? 1 : 1+copy.fileCount);
+		}
+		synchronized (journal) {
+			journal.add(delta);
+			journalItems += items;
+			while (!journal.isEmpty() && (journal.size()>FS2Constants.CLIENT_FILELIST_JOURNAL_MAX_REVISIONS || journalItems>FS2Constants.CLIENT_FILELIST_JOURNAL_MAX_ITEMS)) {
+				FileListDelta dropped = journal.removeFirst();
+				for (Change c : dropped.changes) journalItems -= (c.item==null ? 1 : 1+c.item.fileCount);
+			}
+		}
+	}
+	
+	/**
+	 * Deep copies a filelist item.
+	 */
+	private static Item copyItem(Item from) {
+		Item ret = new Item();
+		ret.name = from.name;
+		ret.hash = from.hash;
+		ret.hashVersion = from.hashVersion;
+		ret.lastModified = from.lastModified;
+		ret.size = from.size;
+		ret.fileCount = from.fileCount;
+		if (from.children!=null) {
+			ret.children = new HashMap<String, Item>(from.children.size()*2);
+			for (Item child : from.children.values()) {
+				ret.children.put(child.name, copyItem(child));
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Returns the delta from the revision given to the current revision of this share.
+	 * @param fromRevision
+	 * @return the delta or null if the journal does not go back as far as that revision.
+	 */
+	public FileListDelta getDelta(int fromRevision) {
+		synchronized (journal) {
+			int toRevision = (journal.isEmpty() ? list.revision : journal.getLast().toRevision);
+			FileListDelta ret = new FileListDelta(fromRevision, toRevision);
+			if (fromRevision==toRevision) return ret;
+			boolean found = false;
+			for (FileListDelta d : journal) {
+				if (d.fromRevision==fromRevision) found = true;
+				if (found) ret.changes.addAll(d.changes);
+			}
+			return (found ? ret : null);
+		}
+	}
+	
 	private boolean saveList() {
 		try {
 			setStatus(Status.SAVING);
@@ -458,6 +863,17 @@ public class Share {
 			if (!partial.renameTo(listFile)) {
 				throw new IllegalStateException("Couldn't rename the working filelist for share '"+getName()+"'");
 			}
+			
+			//Now the same again in the compact format:
+			File compactPartial = new File(compactListFile.getAbsoluteFile()+".working");
+			if (compactPartial.exists()) compactPartial.delete();
+			fos = new FileOutputStream(compactPartial);
+			CompactFileList.deconstruct(list, fos);
+			fos.close();
+			if (compactListFile.exists()) compactListFile.delete();
+			if (!compactPartial.renameTo(compactListFile)) {
+				throw new IllegalStateException("Couldn't rename the working compact filelist for share '"+getName()+"'");
+			}
 			return true;
 		} catch (Exception e) {
 			Logger.severe("Share filelist couldn't be saved: "+e.toString());
@@ -502,6 +918,7 @@ public class Share {
 	public void setPath(File path) throws IOException {
 		this.location = path;
 		this.canonicalLocation = location.getCanonicalFile();
+		startWatching();
 		this.refresh();
 	
 	}
@@ -513,6 +930,14 @@ public class Share {
 	public long getLastRefreshed() {
 		return list.getLastRefreshed();
 	}
+	
+	/**
+	 * Returns the timestamp of when this whole share was last successfully refreshed,
+	 * rather than just the directories that had changed.
+	 */
+	public long getLastFullRefresh() {
+		return lastFullRefresh;
+	}
 
 	/**
 	 * Returns the path that this shares.
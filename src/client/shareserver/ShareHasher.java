@@ -0,0 +1,82 @@
+package client.shareserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import common.FS2Constants;
+import common.Logger;
+import common.NamedThreadFactory;
+
+/**
+ * Provides the threads that hash files for share refreshes.
+ *
+ * Each device (really each filestore, as Java can't see physical disks) gets its own small pool,
+ * so shares on different disks hash in parallel while a single spinning disk isn't asked to seek between too many files at once.
+ * Threads are let go when their device has nothing to hash.
+ *
+ * @author gary
+ */
+class ShareHasher {
+
+	/** Pools by the filestore they hash from, null for files whose filestore couldn't be determined.*/
+	private final HashMap<FileStore, ThreadPoolExecutor> devices = new HashMap<FileStore, ThreadPoolExecutor>();
+	private int threadsPerDevice;
+
+	public ShareHasher(int threadsPerDevice) {
+		this.threadsPerDevice = Math.max(1, threadsPerDevice);
+	}
+
+	/**
+	 * Returns the pool that should hash files found within the directory given.
+	 */
+	public synchronized ThreadPoolExecutor forDevice(File location) {
+		FileStore store = null;
+		try {
+			store = Files.getFileStore(location.toPath());
+		} catch (IOException e) {
+			Logger.warn("Couldn't determine the device of '"+location+"', it will be hashed alongside others like it: "+e);
+		}
+		ThreadPoolExecutor ret = devices.get(store);
+		if (ret==null) {
+			ret = (ThreadPoolExecutor) Executors.newFixedThreadPool(threadsPerDevice, new NamedThreadFactory(true, "Share hashing thread: "+(store==null ? "unknown device" : store.name())));
+			ret.setKeepAliveTime(FS2Constants.CLIENT_SHARE_HASH_THREAD_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+			ret.allowCoreThreadTimeOut(true);
+			devices.put(store, ret);
+		}
+		return ret;
+	}
+
+	public synchronized int getThreadsPerDevice() {
+		return threadsPerDevice;
+	}
+
+	/**
+	 * Changes how many files may be hashed at once from each device, including devices already hashing.
+	 */
+	public synchronized void setThreadsPerDevice(int threads) {
+		threads = Math.max(1, threads);
+		for (ThreadPoolExecutor pool : devices.values()) {
+			//Keep core<=max while resizing in either direction:
+			if (threads>pool.getMaximumPoolSize()) {
+				pool.setMaximumPoolSize(threads);
+				pool.setCorePoolSize(threads);
+			} else {
+				pool.setCorePoolSize(threads);
+				pool.setMaximumPoolSize(threads);
+			}
+		}
+		threadsPerDevice = threads;
+	}
+
+	public synchronized void shutdown() {
+		for (ThreadPoolExecutor pool : devices.values()) {
+			pool.shutdownNow();
+		}
+	}
+}
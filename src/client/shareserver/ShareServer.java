@@ -11,6 +11,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
 
@@ -34,6 +35,7 @@ import common.httpserver.HttpContext;
 import common.httpserver.HttpServer;
 
 import common.Config;
+import common.ExecutorStrategy;
 import common.FS2Constants;
 import common.FS2Filter;
 import common.HttpFileHandler;
@@ -285,6 +287,10 @@ public class ShareServer implements TableModel {
 	private Timer shareRefreshTimer;
 	private Config conf;
 	private ThreadPoolExecutor shareRefreshPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(1, new NamedThreadFactory(true, "Share refresh thread."));
+	private ShareHasher shareHasher;
+	private HashCache hashCache = new HashCache(Platform.getPlatformFile("hashcache"));
+	/** Sized to the upload slots plus some spare by setServingPoolSize() when it's a pool of platform threads.*/
+	private ExecutorService httpServingPool;
 	private HttpEventsImpl httpEvents = new HttpEventsImpl();
 	private PeerStatsCollector peerstats;
 	private Notifications notify;
@@ -314,6 +320,8 @@ public class ShareServer implements TableModel {
 			filelistDir.mkdir();
 		}
 		
+		shareHasher = new ShareHasher(conf.getInt(CK.SHARE_HASH_THREADS_PER_DEVICE));
+		
 		fs2Filter.setPort(onPort);
 		fs2Filter.setAlias(conf.getString(CK.ALIAS));
 		
@@ -325,8 +333,11 @@ public class ShareServer implements TableModel {
 		//Setup and bind the http server: 
 		//  it's bound both on secure and insecure sockets. The secureFilter will reject requests on the insecure socket when the requests are not needed.
 		http = HttpServer.create(new InetSocketAddress(onPort), new InetSocketAddress(onPort+1), context, new String[] {FS2Constants.DH_ANON_CIPHER_SUITE_USED}, 0);
-		//Enable a multithreaded executor:
-		http.setExecutor(Executors.newCachedThreadPool(new NamedThreadFactory(true, "HTTP serving thread")));
+		//Enable a multithreaded executor, bounded as idle and queued peers wait in the selector instead of a thread each:
+		httpServingPool = ExecutorStrategy.fromConfig(conf.getString(CK.EXECUTOR_STRATEGY)).newBoundedExecutor(FS2Constants.CLIENT_HTTP_SPARE_SERVING_THREADS, true, "HTTP serving thread");
+		http.setExecutor(httpServingPool);
+		http.setUseSelector(true);
+		http.setMaxPersistentConnections(FS2Constants.HTTP_SELECTOR_MAX_PERSISTENT_CONNECTIONS);
 		
 		http.setSoTimeout(FS2Constants.SERVER_URL_CONNECTION_TIMEOUT_MS);
 		http.setUseKeepAlives(false); //no idle connections are useful to us.
@@ -382,9 +393,17 @@ public class ShareServer implements TableModel {
 			synchronized (shares) {
 				scopy = new ArrayList<Share>(shares);
 			}
+			//Before any refresh starts, so refreshes don't evict their own files from the hash cache:
+			long sharedFiles = 0;
+			for (Share s : scopy) {
+				sharedFiles += s.getFileCount();
+			}
+			hashCache.setSharedFileCount(sharedFiles);
 			for (Share s : scopy) {
 				if (isShareOverdueForRefresh(s)) {
 					s.refresh();
+				} else {
+					s.refreshChangesIfSettled();
 				}
 				notifyShareChanged(s);
 			}
@@ -460,12 +479,30 @@ public class ShareServer implements TableModel {
 	private void setSlotsFromConf() {
 		tq.setClientLimit(conf.getInt(CK.ACTIVE_UPLOADS_PER_USER));
 		tq.setResourceCount(conf.getInt(CK.ACTIVE_UPLOADS));
-		
+		setServingPoolSize(conf.getInt(CK.ACTIVE_UPLOADS));
 	}
 	
 	public void setUploadSlots(int slots) {
 		conf.putInt(CK.ACTIVE_UPLOADS, slots);
 		tq.setResourceCount(slots);
+		setServingPoolSize(slots);
+	}
+	
+	/**
+	 * Resizes the http serving pool so that every upload slot can be busy with threads to spare for other requests.
+	 */
+	private synchronized void setServingPoolSize(int slots) {
+		if (!(httpServingPool instanceof ThreadPoolExecutor)) return; //virtual threads aren't pooled.
+		ThreadPoolExecutor httpServingPool = (ThreadPoolExecutor) this.httpServingPool;
+		int size = Math.max(slots, 0)+FS2Constants.CLIENT_HTTP_SPARE_SERVING_THREADS;
+		//The core size may never exceed the maximum, so the order depends on which way it's resized:
+		if (size>httpServingPool.getMaximumPoolSize()) {
+			httpServingPool.setMaximumPoolSize(size);
+			httpServingPool.setCorePoolSize(size);
+		} else {
+			httpServingPool.setCorePoolSize(size);
+			httpServingPool.setMaximumPoolSize(size);
+		}
 	}
 	
 	public void setUploadSlotsPerUser(int slotsps) {
@@ -489,6 +526,8 @@ public class ShareServer implements TableModel {
 		//) shutdown the communicator.
 		communicator.shutdown();
 		
+		shareHasher.shutdown();
+		hashCache.saveShutdown();
 		http.stop();
 	}
 	
@@ -521,6 +560,22 @@ public class ShareServer implements TableModel {
 		cachedAutoRefreshInterval = seconds;
 	}
 	
+	/**
+	 * Returns how many files may be hashed at once from each disk while shares refresh.
+	 */
+	public int getShareHashThreadsPerDevice() {
+		return shareHasher.getThreadsPerDevice();
+	}
+	
+	/**
+	 * Sets how many files may be hashed at once from each disk while shares refresh.
+	 * @param threads
+	 */
+	public void setShareHashThreadsPerDevice(int threads) {
+		conf.putInt(CK.SHARE_HASH_THREADS_PER_DEVICE, threads);
+		shareHasher.setThreadsPerDevice(threads);
+	}
+	
 	public SecureFilter getSecureFilter() {
 		return secureFilter;
 	}
@@ -627,6 +682,17 @@ public class ShareServer implements TableModel {
 		return shareRefreshPool;
 	}
 	
+	ShareHasher getShareHasher() {
+		return shareHasher;
+	}
+	
+	/**
+	 * Returns the digests remembered for files on this computer.
+	 */
+	public HashCache getHashCache() {
+		return hashCache;
+	}
+	
 	private void refreshAllShares() {
 		synchronized (shares) {
 			for (Share s : shares) {
@@ -718,7 +784,13 @@ public class ShareServer implements TableModel {
 	 * @return A non-negative integer representing the time that should elapse between now and the next refresh of the share specified.
 	 */
 	private long getTimeToNextRefreshShare(Share share) {
-		return Math.max(0l,(((long)getAutoRefreshInterval()*1000l+share.getLastRefreshed())-System.currentTimeMillis())/1000);
+		long interval = (long)getAutoRefreshInterval()*1000l;
+		if (share.isWatched()) {
+			//Watched shares are refreshed as they change, so a full refresh is only a safety net:
+			if (share.needsFullRefresh()) return 0;
+			interval = Math.max(interval, FS2Constants.CLIENT_WATCHED_SHARE_FULL_REFRESH_INTERVAL);
+		}
+		return Math.max(0l,((interval+share.getLastFullRefresh())-System.currentTimeMillis())/1000);
 	}
 
 	@Override
@@ -0,0 +1,208 @@
+package client.shareserver;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import common.Logger;
+
+/**
+ * Watches a share's directories for changes, so that refreshes only need to revisit the directories that changed.
+ *
+ * Every directory in the share is watched, as watches aren't recursive on most platforms.
+ * If a directory can't be watched (usually because the OS's limit on watches has been reached)
+ * or the share is on a network filesystem (where changes made by other computers aren't seen) then this gives up,
+ * and the share is refreshed by polling as it always was.
+ *
+ * @author gary
+ */
+class ShareWatcher implements Runnable {
+
+	/** Filesystem types whose changes might not be made on this computer, so can't be watched reliably.*/
+	private static final List<String> REMOTE_FILESYSTEMS = Arrays.asList("nfs", "nfs4", "cifs", "smbfs", "smb3", "afpfs", "ncpfs", "9p", "fuse.sshfs", "davfs", "webdav");
+
+	private final Path root;
+	private final String name;
+	private WatchService watchService;
+	private volatile boolean watching = false;
+	private volatile boolean shouldStop = false;
+	private volatile long startedAt = Long.MAX_VALUE;
+
+	/** Directories that have changed since they were last taken, or null if changes were lost and the whole share must be refreshed.*/
+	private HashSet<Path> dirty = new HashSet<Path>();
+	/** When the last change was seen.*/
+	private long lastChange = 0;
+
+	/**
+	 * @param root the canonical location of the share.
+	 * @param name the share's name, for logging.
+	 */
+	public ShareWatcher(Path root, String name) {
+		this.root = root;
+		this.name = name;
+	}
+
+	/**
+	 * Starts watching the share in a new thread.
+	 */
+	public void start() {
+		Thread t = new Thread(this, "Share watcher: "+name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public void stop() {
+		shouldStop = true;
+		watching = false;
+		try {
+			if (watchService!=null) watchService.close();
+		} catch (IOException e) {
+			Logger.log(e);
+		}
+	}
+
+	/**
+	 * Returns true if every directory of the share is being watched.
+	 */
+	public boolean isWatching() {
+		return watching;
+	}
+
+	/**
+	 * Returns the time at which every directory was being watched, changes before this might have been missed.
+	 */
+	public long getStartedAt() {
+		return startedAt;
+	}
+
+	/**
+	 * Returns true if changes have been lost, so that only a refresh of the whole share will find them.
+	 */
+	public synchronized boolean needsFullRefresh() {
+		return dirty==null;
+	}
+
+	/**
+	 * Returns true if there are changed directories and nothing has changed for the interval given, so they're probably worth refreshing now.
+	 */
+	public synchronized boolean hasSettledChanges(long settleInterval) {
+		return dirty!=null && !dirty.isEmpty() && lastChange+settleInterval<System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the directories that have changed, and forgets them.
+	 * @return the set of changed directories, or null if the whole share must be refreshed.
+	 */
+	public synchronized HashSet<Path> takeDirty() {
+		HashSet<Path> ret = dirty;
+		dirty = new HashSet<Path>();
+		return ret;
+	}
+
+	private synchronized void changed(Path directory) {
+		if (dirty!=null) dirty.add(directory);
+		lastChange = System.currentTimeMillis();
+	}
+
+	private synchronized void changesLost() {
+		dirty = null;
+		lastChange = System.currentTimeMillis();
+	}
+
+	@Override
+	public void run() {
+		try {
+			String type = Files.getFileStore(root).type();
+			if (REMOTE_FILESYSTEMS.contains(type)) {
+				Logger.log("Share '"+name+"' is on a network filesystem ("+type+") so it will be refreshed by polling.");
+				return;
+			}
+			watchService = FileSystems.getDefault().newWatchService();
+			if (shouldStop) { //stopped while starting.
+				watchService.close();
+				return;
+			}
+			register(root);
+		} catch (IOException e) {
+			Logger.warn("Share '"+name+"' can't be watched for changes ("+e+") so it will be refreshed by polling.");
+			stop();
+			return;
+		}
+		startedAt = System.currentTimeMillis();
+		watching = true;
+		try {
+			while (!shouldStop) {
+				WatchKey key = watchService.take();
+				Path directory = (Path) key.watchable();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind()==StandardWatchEventKinds.OVERFLOW) {
+						changesLost();
+						continue;
+					}
+					Path child = directory.resolve((Path) event.context());
+					if (child.getFileName().toString().endsWith(".incomplete")) continue; //downloads in progress aren't shared, and change constantly.
+					changed(directory);
+					if (event.kind()==StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+						//A directory created or moved in, its contents are refreshed along with it.
+						register(child);
+					}
+				}
+				key.reset();
+			}
+		} catch (ClosedWatchServiceException e) {
+			//We've been stopped.
+		} catch (InterruptedException e) {
+			Logger.log(e);
+		} catch (IOException e) {
+			Logger.warn("Share '"+name+"' can no longer be watched for changes ("+e+") so it will be refreshed by polling.");
+			stop();
+		}
+	}
+
+	/**
+	 * Watches the directory given and every directory within it.
+	 * Links to directories aren't followed, as the share doesn't include them.
+	 */
+	private void register(Path directory) throws IOException {
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				if (shouldStop) return FileVisitResult.TERMINATE;
+				try {
+					WatchKey key = watch(dir);
+					if (!key.watchable().equals(dir)) {
+						//This directory was watched before it was moved here, so its key has the old path:
+						key.cancel();
+						watch(dir);
+					}
+				} catch (NoSuchFileException e) {
+					return FileVisitResult.SKIP_SUBTREE; //gone already.
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			private WatchKey watch(Path dir) throws IOException {
+				return dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) {
+				return FileVisitResult.CONTINUE; //unreadable, or gone already.
+			}
+		});
+	}
+}
@@ -1,9 +1,13 @@
 package client.shareserver;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -56,10 +60,58 @@ public class ThrottledFileDigester {
 	 * @throws NoSuchAlgorithmException 
 	 */
 	public static String fs2DigestFile(File file, BandwidthSharer bs) throws NoSuchAlgorithmException, IOException {
+		if (bs==null) return fs2DigestFileDirectly(file, null);
 		return ThrottledFileDigester.digest(new FileCropperStream(file, FS2Constants.FILE_DIGEST_HEAD_FOOT_LENGTH), bs, FS2Constants.FILE_DIGEST_ALGORITHM, Long.toString(file.length()).getBytes("UTF-8"), null);
 	}
 	
 	public static String fs2TrackableDigestFile(File file, ProgressTracker tracker) throws NoSuchAlgorithmException, IOException {
-		return ThrottledFileDigester.digest(new FileCropperStream(file, FS2Constants.FILE_DIGEST_HEAD_FOOT_LENGTH), null, FS2Constants.FILE_DIGEST_ALGORITHM, Long.toString(file.length()).getBytes("UTF-8"), tracker);
+		return fs2DigestFileDirectly(file, tracker);
+	}
+	
+	/** Each hashing thread reuses its own buffer, big enough for a whole head or foot.*/
+	private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect((int) FS2Constants.FILE_DIGEST_HEAD_FOOT_LENGTH);
+		}
+	};
+	
+	/**
+	 * Produces the same digest as the FileCropperStream chain, for unthrottled digests,
+	 * by reading the head and foot of the file with positional reads and digesting them straight from the buffer.
+	 */
+	private static String fs2DigestFileDirectly(File file, ProgressTracker tracker) throws NoSuchAlgorithmException, IOException {
+		MessageDigest md = MessageDigest.getInstance(FS2Constants.FILE_DIGEST_ALGORITHM);
+		FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long length = fc.size();
+			long headFoot = FS2Constants.FILE_DIGEST_HEAD_FOOT_LENGTH;
+			if (length<headFoot*2) {
+				digestRange(fc, 0, length, md, tracker);
+			} else {
+				digestRange(fc, 0, headFoot, md, tracker);
+				digestRange(fc, length-headFoot, headFoot, md, tracker);
+			}
+			return Util.bytesToHexString(md.digest(Long.toString(length).getBytes("UTF-8")));
+		} finally {
+			fc.close();
+		}
+	}
+	
+	private static void digestRange(FileChannel fc, long position, long count, MessageDigest md, ProgressTracker tracker) throws IOException {
+		ByteBuffer buf = buffers.get();
+		long end = position+count;
+		while (position<end) {
+			buf.clear();
+			buf.limit((int) Math.min(buf.capacity(), end-position));
+			while (buf.hasRemaining()) {
+				int read = fc.read(buf, position+buf.position());
+				if (read<0) throw new EOFException("The file became shorter while it was being digested.");
+			}
+			buf.flip();
+			position+=buf.remaining();
+			if (tracker!=null) tracker.progress(buf.remaining());
+			md.update(buf);
+		}
 	}
 }
@@ -3,23 +3,45 @@ package client.shareserver;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import common.httpserver.FileChannelOutput;
 
 
 
-public class ThrottledOutputStream extends BufferedOutputStream {
+/**
+ * Throttles writes to the stream it wraps using a BandwidthSharer.
+ * Files are sent in allocation-sized slices and passed straight on if the wrapped stream can send them itself.
+ */
+public class ThrottledOutputStream extends BufferedOutputStream implements FileChannelOutput {
 	
 	private BandwidthSharer group;
+	/** The number of transfers this one shares its weight with, or null if it has a whole share to itself.*/
+	private AtomicInteger sharedWith;
 	
 	ThrottledOutputStream(OutputStream s, BandwidthSharer inSharer) {
+		this(s, inSharer, null);
+	}
+	
+	/**
+	 * @param sharedWith the number of transfers (including this one) that should share a single transfer's weight between them.
+	 */
+	ThrottledOutputStream(OutputStream s, BandwidthSharer inSharer, AtomicInteger sharedWith) {
 		super(s);
 		group = inSharer;
+		this.sharedWith = sharedWith;
+	}
+	
+	private float weight() {
+		return (sharedWith==null ? 1f : 1f/Math.max(1, sharedWith.get()));
 	}
 	
 	public void write(int b) throws IOException {
 		//Wait for a byte to be available: (getBytes can't return less than 1)
 		try {
-			group.getBytes(1);
+			group.getBytes(1, weight());
 		} catch (InterruptedException e) {
 			throw new IOException("Interrupted", e);
 		}
@@ -32,7 +54,7 @@ public class ThrottledOutputStream extends BufferedOutputStream {
 		long allocation;
 		while (remaining > 0) {
 			try {
-				allocation = group.getBytes(remaining);
+				allocation = group.getBytes(remaining, weight());
 			} catch (InterruptedException e) {
 				throw new IOException("Interrupted", e);
 			}
@@ -45,4 +67,28 @@ public class ThrottledOutputStream extends BufferedOutputStream {
 	public void write(byte[] b) throws IOException {
 		write(b,0,b.length);
 	}
+	
+	public long transferFrom(FileChannel file, long position, long count) throws IOException {
+		if (count==0) return 0;
+		long allocation;
+		try {
+			allocation = group.getBytes(count, weight());
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted", e);
+		}
+		if (out instanceof FileChannelOutput) {
+			flush(); //anything already written must go first.
+			long sent = 0;
+			while (sent<allocation) {
+				sent += ((FileChannelOutput) out).transferFrom(file, position+sent, allocation-sent);
+			}
+		} else {
+			ByteBuffer slice = ByteBuffer.allocate((int) allocation);
+			while (slice.hasRemaining()) {
+				if (file.read(slice, position+slice.position())<0) throw new IOException("The file is shorter than expected.");
+			}
+			super.write(slice.array(), 0, slice.position());
+		}
+		return allocation;
+	}
 }
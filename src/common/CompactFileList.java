@@ -0,0 +1,336 @@
+package common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import common.FileList.Item;
+
+/**
+ * A compact, versioned binary encoding of FileLists.
+ *
+ * Unlike FileList.deconstruct this does not use java serialisation. The stream (deflated) is:
+ * <pre>
+ * magic "FS2C", version byte, varint revision, root name, varint root lastModified, children of root
+ * children:  varint count, then count items sorted by name
+ * item:      kind byte, name, then for a file: varint hashVersion, hash, varint size, varint lastModified
+ *                                 for a directory: varint lastModified, children
+ * name:      varint characters shared with the previous sibling's name, varint byte length, UTF-8 bytes of the rest
+ * hash:      16 raw bytes for the usual 32 digit hex hashes, otherwise a name-style string with no shared prefix
+ * </pre>
+ * Varints are unsigned LEB128. Directory sizes and file counts are not stored, they are recalculated when read.
+ *
+ * A list can be read without building any Items at all by supplying a Visitor.
+ *
+ * @author gary
+ */
+public class CompactFileList {
+
+	/** The share type that clients advertise when they can serve lists in this format. */
+	public static final String SHARE_TYPE = "CompactFileList";
+
+	/** Incremented if the format changes. Readers reject versions they don't know.*/
+	public static final int FORMAT_VERSION = 1;
+
+	private static final byte[] MAGIC = {'F', 'S', '2', 'C'};
+
+	private static final int KIND_FILE_BINARY_HASH = 0;
+	private static final int KIND_FILE_TEXT_HASH = 1;
+	private static final int KIND_DIRECTORY = 2;
+
+	/**
+	 * Receives the items of a list as it is read, in depth-first order.
+	 * Every startDirectory is matched by an endDirectory after the directory's contents.
+	 */
+	public interface Visitor {
+		/** Called once before any items, with the details of the root of the list.*/
+		void startList(String name, int revision, long lastRefreshed);
+
+		void startDirectory(String name, long lastModified);
+
+		void file(String name, String hash, int hashVersion, long size, long lastModified);
+
+		void endDirectory();
+	}
+
+	private static final Comparator<Item> BY_NAME = new Comparator<Item>() {
+		@Override
+		public int compare(Item o1, Item o2) {
+			return o1.name.compareTo(o2.name);
+		}
+	};
+
+	/**
+	 * Writes the filelist to the stream in the compact format. The stream is not closed.
+	 * @param list
+	 * @param os
+	 * @throws IOException
+	 */
+	public static void deconstruct(FileList list, OutputStream os) throws IOException {
+		Writer writer = new Writer(os, list.root.name, list.revision, list.root.lastModified, list.root.children.size());
+		writeChildren(writer, list.root);
+		writer.finish();
+	}
+
+	private static void writeChildren(Writer writer, Item directory) throws IOException {
+		ArrayList<Item> children = new ArrayList<Item>(directory.children.values());
+		Collections.sort(children, BY_NAME);
+		for (Item child : children) {
+			if (child.isDirectory()) {
+				writer.startDirectory(child.name, child.lastModified, child.children.size());
+				writeChildren(writer, child);
+				writer.endDirectory();
+			} else {
+				writer.file(child.name, child.hash, child.hashVersion, child.size, child.lastModified);
+			}
+		}
+	}
+
+	/**
+	 * Writes a list an item at a time, so that lists can be written from things other than Item trees
+	 * without building a tree first.
+	 *
+	 * The number of children of each directory must be given when it is started, and then exactly that many
+	 * children (sorted by name) written before it is ended. The root is started by the constructor and is
+	 * not ended, call finish after its children instead.
+	 */
+	public static class Writer {
+		private DeflaterOutputStream dos;
+		private DataOutputStream out;
+		/** The name of the last item written in each open directory, innermost first.*/
+		private LinkedList<String> previous = new LinkedList<String>();
+
+		public Writer(OutputStream os, String rootName, int revision, long lastModified, int childCount) throws IOException {
+			dos = new DeflaterOutputStream(os, new Deflater(Deflater.BEST_COMPRESSION));
+			out = new DataOutputStream(new BufferedOutputStream(dos, FS2Constants.ARBITRARY_BUFFER_SIZE));
+			out.write(MAGIC);
+			out.writeByte(FORMAT_VERSION);
+			writeVarLong(out, revision);
+			writeName(out, "", rootName);
+			writeVarLong(out, lastModified);
+			writeVarLong(out, childCount);
+			previous.push("");
+		}
+
+		public void startDirectory(String name, long lastModified, int childCount) throws IOException {
+			out.writeByte(KIND_DIRECTORY);
+			writeName(out, previous.pop(), name);
+			previous.push(name);
+			writeVarLong(out, lastModified);
+			writeVarLong(out, childCount);
+			previous.push("");
+		}
+
+		public void file(String name, String hash, int hashVersion, long size, long lastModified) throws IOException {
+			byte[] binaryHash = (hash==null || hash.length()!=32 ? null : Util.hexStringToBytes(hash));
+			out.writeByte(binaryHash!=null ? KIND_FILE_BINARY_HASH : KIND_FILE_TEXT_HASH);
+			writeName(out, previous.pop(), name);
+			previous.push(name);
+			writeVarLong(out, hashVersion);
+			if (binaryHash!=null) {
+				out.write(binaryHash);
+			} else {
+				writeName(out, "", hash==null ? "" : hash);
+			}
+			writeVarLong(out, size);
+			writeVarLong(out, lastModified);
+		}
+
+		public void endDirectory() {
+			previous.pop();
+		}
+
+		/**
+		 * Completes the list once the root's children have been written. The stream is not closed.
+		 */
+		public void finish() throws IOException {
+			out.flush();
+			dos.finish();
+		}
+	}
+
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int)value);
+	}
+
+	private static void writeName(DataOutputStream out, String previous, String name) throws IOException {
+		int shared = 0;
+		int max = Math.min(previous.length(), name.length());
+		while (shared < max && previous.charAt(shared)==name.charAt(shared)) shared++;
+		//Never split a surrogate pair between the prefix and the suffix:
+		if (shared > 0 && shared < name.length() && Character.isHighSurrogate(name.charAt(shared-1))) shared--;
+		byte[] rest = name.substring(shared).getBytes("UTF-8");
+		writeVarLong(out, shared);
+		writeVarLong(out, rest.length);
+		out.write(rest);
+	}
+
+	/**
+	 * Reads a compact list from the stream, passing each item to the visitor as it is read.
+	 * No Items are created. The stream is not closed.
+	 * @param is
+	 * @param visitor
+	 * @throws IOException if the stream is not a compact filelist of a known version, or is truncated.
+	 */
+	public static void read(InputStream is, Visitor visitor) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(is), FS2Constants.ARBITRARY_BUFFER_SIZE));
+		byte[] magic = new byte[MAGIC.length];
+		in.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a compact filelist.");
+		int version = in.readUnsignedByte();
+		if (version!=FORMAT_VERSION) throw new IOException("Unsupported compact filelist version: "+version);
+		int revision = (int)readVarLong(in);
+		String name = readName(in, "");
+		visitor.startList(name, revision, readVarLong(in));
+		readChildren(in, visitor);
+	}
+
+	private static void readChildren(DataInputStream in, Visitor visitor) throws IOException {
+		long count = readVarLong(in);
+		String previous = "";
+		byte[] hash = new byte[16];
+		for (long i=0; i<count; i++) {
+			int kind = in.readUnsignedByte();
+			String name = readName(in, previous);
+			if (kind==KIND_DIRECTORY) {
+				visitor.startDirectory(name, readVarLong(in));
+				readChildren(in, visitor);
+				visitor.endDirectory();
+			} else if (kind==KIND_FILE_BINARY_HASH || kind==KIND_FILE_TEXT_HASH) {
+				int hashVersion = (int)readVarLong(in);
+				String hashString;
+				if (kind==KIND_FILE_BINARY_HASH) {
+					in.readFully(hash);
+					hashString = Util.bytesToHexString(hash);
+				} else {
+					hashString = readName(in, "");
+				}
+				long size = readVarLong(in);
+				visitor.file(name, hashString, hashVersion, size, readVarLong(in));
+			} else {
+				throw new IOException("Unknown item kind in compact filelist: "+kind);
+			}
+			previous = name;
+		}
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long ret = 0;
+		for (int shift=0; shift<64; shift+=7) {
+			int b = in.readUnsignedByte();
+			ret |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80)==0) return ret;
+		}
+		throw new IOException("Malformed varint in compact filelist.");
+	}
+
+	private static String readName(DataInputStream in, String previous) throws IOException {
+		long shared = readVarLong(in);
+		long length = readVarLong(in);
+		//Checked before anything is allocated, as the length comes straight from a peer:
+		if (shared < 0 || shared > previous.length() || length < 0 || length > FS2Constants.FILELIST_MAX_NAME_BYTES) {
+			throw new IOException("Malformed name in compact filelist.");
+		}
+		byte[] rest = new byte[(int)length];
+		in.readFully(rest);
+		return previous.substring(0, (int)shared)+new String(rest, "UTF-8");
+	}
+
+	/**
+	 * Builds an Item tree from a visited list, just like the one that was written.
+	 * This can be used with any reader that drives a Visitor.
+	 */
+	public static class TreeBuilder implements Visitor {
+		private FileList list;
+		private LinkedList<Item> stack = new LinkedList<Item>();
+		
+		/**
+		 * Returns the list built, or null if nothing was visited.
+		 * Must only be called once the whole list has been visited.
+		 */
+		public FileList getFileList() {
+			if (list!=null && !stack.isEmpty()) addTotals(stack.pop()); //The root.
+			return list;
+		}
+
+		@Override
+		public void startList(String name, int revision, long lastRefreshed) {
+			list = FileList.newFileList(name);
+			list.revision = revision;
+			list.root.lastModified = lastRefreshed;
+			stack.push(list.root);
+		}
+
+		@Override
+		public void startDirectory(String name, long lastModified) {
+			Item dir = new Item();
+			dir.name = name;
+			dir.lastModified = lastModified;
+			dir.children = new HashMap<String, Item>();
+			stack.peek().children.put(name, dir);
+			stack.push(dir);
+		}
+
+		@Override
+		public void file(String name, String hash, int hashVersion, long size, long lastModified) {
+			Item file = new Item();
+			file.name = name;
+			file.hash = hash;
+			file.hashVersion = hashVersion;
+			file.size = size;
+			file.lastModified = lastModified;
+			file.fileCount = 1;
+			stack.peek().children.put(name, file);
+		}
+
+		@Override
+		public void endDirectory() {
+			Item dir = stack.pop();
+			addTotals(dir);
+		}
+
+		private void addTotals(Item dir) {
+			for (Item child : dir.children.values()) {
+				dir.size += child.size;
+				dir.fileCount += child.fileCount;
+			}
+		}
+	}
+
+	/**
+	 * Reads a whole compact list into a FileList.
+	 * DOES NOT close the stream after reading.
+	 * @param is
+	 * @return The filelist, or null if one could not be read from the stream.
+	 */
+	public static FileList reconstruct(InputStream is) {
+		try {
+			TreeBuilder builder = new TreeBuilder();
+			read(is, builder);
+			FileList ret = builder.getFileList();
+			if (ret==null) throw new EOFException();
+			return ret;
+		} catch (Exception e) {
+			Logger.warn("Couldn't reconstruct compact filelist: "+e);
+			return null;
+		}
+	}
+}
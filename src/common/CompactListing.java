@@ -0,0 +1,217 @@
+package common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A compact binary encoding of the indexnode's listings (browse, search and alternatives results) and statistics,
+ * sent instead of the HTML views to clients that accept CONTENT_TYPE.
+ *
+ * The stream is:
+ * <pre>
+ * magic "FS2L", version byte, records, end byte
+ * file:      kind byte, string name, varint size, hash, string client alias, varint alternatives count, string url
+ * directory: kind byte, string name, varint size, string path, varint link count
+ * value:     kind byte, string name, varint value
+ * client:    kind byte, string alias, string avatar hash, varint total share size
+ * string:    varint byte length, UTF-8 bytes
+ * hash:      16 raw bytes for the usual 32 digit hex hashes, otherwise a string (after a marker byte)
+ * </pre>
+ * Varints are unsigned LEB128, as in CompactFileList. Urls are only sent for listings of direct download links (alternatives), otherwise they're empty.
+ *
+ * @author gary
+ */
+public class CompactListing {
+
+	/** The content type clients accept and indexnodes reply with when this format is used.*/
+	public static final String CONTENT_TYPE = "application/x-fs2-compact";
+
+	/** Incremented if the format changes. Readers reject versions they don't know.*/
+	public static final int FORMAT_VERSION = 1;
+
+	private static final byte[] MAGIC = {'F', 'S', '2', 'L'};
+
+	private static final int KIND_END = 0;
+	private static final int KIND_FILE = 1;
+	private static final int KIND_DIRECTORY = 2;
+	private static final int KIND_VALUE = 3;
+	private static final int KIND_CLIENT = 4;
+
+	private static final int HASH_BINARY = 0;
+	private static final int HASH_TEXT = 1;
+
+	/**
+	 * Receives the records of a listing as it is read.
+	 */
+	public interface Visitor {
+		void file(String name, long size, String hash, String clientAlias, int alternativesCount, String url);
+
+		void directory(String name, long size, String path, int linkCount);
+
+		void value(String name, long value);
+
+		void client(String alias, String avatarHash, long totalShareSize);
+	}
+
+	/**
+	 * A visitor that ignores everything, so that only the records of interest need be handled.
+	 */
+	public static class Adapter implements Visitor {
+		@Override
+		public void file(String name, long size, String hash, String clientAlias, int alternativesCount, String url) {}
+
+		@Override
+		public void directory(String name, long size, String path, int linkCount) {}
+
+		@Override
+		public void value(String name, long value) {}
+
+		@Override
+		public void client(String alias, String avatarHash, long totalShareSize) {}
+	}
+
+	/**
+	 * Writes a listing a record at a time. Call finish after the last.
+	 */
+	public static class Writer {
+		private DataOutputStream out;
+
+		public Writer(OutputStream os) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(os, FS2Constants.ARBITRARY_BUFFER_SIZE));
+			out.write(MAGIC);
+			out.writeByte(FORMAT_VERSION);
+		}
+
+		public void file(String name, long size, String hash, String clientAlias, int alternativesCount, String url) throws IOException {
+			out.writeByte(KIND_FILE);
+			writeString(name);
+			writeVarLong(size);
+			byte[] binaryHash = (hash.length()!=32 ? null : Util.hexStringToBytes(hash));
+			if (binaryHash!=null) {
+				out.writeByte(HASH_BINARY);
+				out.write(binaryHash);
+			} else {
+				out.writeByte(HASH_TEXT);
+				writeString(hash);
+			}
+			writeString(clientAlias);
+			writeVarLong(alternativesCount);
+			writeString(url);
+		}
+
+		public void directory(String name, long size, String path, int linkCount) throws IOException {
+			out.writeByte(KIND_DIRECTORY);
+			writeString(name);
+			writeVarLong(size);
+			writeString(path);
+			writeVarLong(linkCount);
+		}
+
+		public void value(String name, long value) throws IOException {
+			out.writeByte(KIND_VALUE);
+			writeString(name);
+			writeVarLong(value);
+		}
+
+		public void client(String alias, String avatarHash, long totalShareSize) throws IOException {
+			out.writeByte(KIND_CLIENT);
+			writeString(alias);
+			writeString(avatarHash);
+			writeVarLong(totalShareSize);
+		}
+
+		/**
+		 * Ends the listing. The stream is not closed.
+		 */
+		public void finish() throws IOException {
+			out.writeByte(KIND_END);
+			out.flush();
+		}
+
+		private void writeString(String s) throws IOException {
+			byte[] bytes = (s==null ? "" : s).getBytes("UTF-8");
+			writeVarLong(bytes.length);
+			out.write(bytes);
+		}
+
+		private void writeVarLong(long value) throws IOException {
+			while ((value & ~0x7FL) != 0) {
+				out.writeByte((int)((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			out.writeByte((int)value);
+		}
+	}
+
+	/**
+	 * Reads a listing from the stream, passing each record to the visitor as it is read. The stream is not closed.
+	 * @throws IOException if the stream is not a listing of a known version, or is truncated.
+	 */
+	public static void read(InputStream is, Visitor visitor) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(is, FS2Constants.ARBITRARY_BUFFER_SIZE));
+		byte[] magic = new byte[MAGIC.length];
+		in.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a compact listing.");
+		int version = in.readUnsignedByte();
+		if (version!=FORMAT_VERSION) throw new IOException("Unsupported compact listing version: "+version);
+		byte[] hash = new byte[16];
+		while (true) {
+			int kind = in.readUnsignedByte();
+			if (kind==KIND_END) {
+				return;
+			} else if (kind==KIND_FILE) {
+				String name = readString(in);
+				long size = readVarLong(in);
+				String hashString;
+				if (in.readUnsignedByte()==HASH_BINARY) {
+					in.readFully(hash);
+					hashString = Util.bytesToHexString(hash);
+				} else {
+					hashString = readString(in);
+				}
+				String clientAlias = readString(in);
+				int alternativesCount = (int)readVarLong(in);
+				visitor.file(name, size, hashString, clientAlias, alternativesCount, readString(in));
+			} else if (kind==KIND_DIRECTORY) {
+				String name = readString(in);
+				long size = readVarLong(in);
+				String path = readString(in);
+				visitor.directory(name, size, path, (int)readVarLong(in));
+			} else if (kind==KIND_VALUE) {
+				String name = readString(in);
+				visitor.value(name, readVarLong(in));
+			} else if (kind==KIND_CLIENT) {
+				String alias = readString(in);
+				String avatarHash = readString(in);
+				visitor.client(alias, avatarHash, readVarLong(in));
+			} else {
+				throw new IOException("Unknown record kind in compact listing: "+kind);
+			}
+		}
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long ret = 0;
+		for (int shift=0; shift<64; shift+=7) {
+			int b = in.readUnsignedByte();
+			ret |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80)==0) return ret;
+		}
+		throw new IOException("Malformed varint in compact listing.");
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		long length = readVarLong(in);
+		//Checked before anything is allocated, as the length comes straight from the indexnode:
+		if (length < 0 || length > FS2Constants.CLIENT_COMPACT_LISTING_MAX_STRING_BYTES) throw new IOException("Malformed string in compact listing.");
+		byte[] bytes = new byte[(int)length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
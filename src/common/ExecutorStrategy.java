@@ -0,0 +1,99 @@
+package common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Chooses what kind of threads run blocking work such as serving HTTP requests and downloading chunks.
+ *
+ * Virtual threads are only available from Java 21, so they are found by reflection and
+ * VIRTUAL behaves as PLATFORM on older JVMs.
+ *
+ * @author gary
+ */
+public enum ExecutorStrategy {
+	/** Pools of platform threads, as FS2 has always used.*/
+	PLATFORM,
+	/** A new virtual thread for each task, where the JVM supports them.*/
+	VIRTUAL;
+
+	private static final Method OF_VIRTUAL;
+	private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+	static {
+		Method ofVirtual = null;
+		Method newThreadPerTask = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			newThreadPerTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+		} catch (NoSuchMethodException e) {
+			//This JVM predates virtual threads.
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTask;
+	}
+
+	/**
+	 * Returns true if this JVM can create virtual threads.
+	 */
+	public static boolean virtualThreadsSupported() {
+		return OF_VIRTUAL!=null;
+	}
+
+	/**
+	 * Returns the strategy named by a configuration value, which is either 'platform' or 'virtual'.
+	 * Unknown values are warned about and give PLATFORM.
+	 */
+	public static ExecutorStrategy fromConfig(String value) {
+		try {
+			return valueOf(value.trim().toUpperCase());
+		} catch (Exception e) {
+			Logger.warn("Unknown executor strategy '"+value+"', using platform threads.");
+			return PLATFORM;
+		}
+	}
+
+	/**
+	 * Returns true if this strategy will really run tasks on virtual threads in this JVM.
+	 */
+	public boolean isVirtual() {
+		return this==VIRTUAL && virtualThreadsSupported();
+	}
+
+	/**
+	 * Returns an executor that runs every task straight away, in a thread named 'name'.
+	 * For PLATFORM this is a cached thread pool.
+	 * @param daemon if the platform threads should be daemons, virtual threads always are.
+	 */
+	public ExecutorService newUnboundedExecutor(boolean daemon, String name) {
+		if (isVirtual()) return newVirtualExecutor(name);
+		return Executors.newCachedThreadPool(new NamedThreadFactory(daemon, name));
+	}
+
+	/**
+	 * Returns an executor that runs at most 'threads' tasks at once, in threads named 'name'.
+	 * Virtual threads are cheap enough not to need pooling, so for VIRTUAL this is the same as newUnboundedExecutor.
+	 * @param daemon if the platform threads should be daemons, virtual threads always are.
+	 */
+	public ExecutorService newBoundedExecutor(int threads, boolean daemon, String name) {
+		if (isVirtual()) return newVirtualExecutor(name);
+		return Executors.newFixedThreadPool(threads, new NamedThreadFactory(daemon, name));
+	}
+
+	private static ExecutorService newVirtualExecutor(String name) {
+		try {
+			Object builder = OF_VIRTUAL.invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+		} catch (Exception e) {
+			//Should be impossible if ofVirtual exists, but platform threads will do:
+			Logger.warn("Can't create virtual threads, using platform threads: "+e);
+			Logger.log(e);
+			return Executors.newCachedThreadPool(new NamedThreadFactory(true, name));
+		}
+	}
+}
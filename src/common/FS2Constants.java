@@ -7,6 +7,48 @@ public class FS2Constants {
 	/**Timeout to wait for a slow client (5s)*/
 	public static final int SERVER_URL_CONNECTION_TIMEOUT_MS = 5*1000;
 	
+	/**How long an idle persistent HTTP connection is kept open for, waiting for another request (15s)*/
+	public static final int HTTP_PERSISTENT_IDLE_TIMEOUT_MS = 15*1000;
+	
+	/**How long HTTP clients are told they may keep an idle connection for, this is shorter than we keep it to avoid races (10s)*/
+	public static final int HTTP_PERSISTENT_ADVERTISED_TIMEOUT_S = 10;
+	
+	/**How often an idle persistent HTTP connection checks if its thread is wanted for new connections*/
+	public static final int HTTP_PERSISTENT_IDLE_POLL_MS = 200;
+	
+	/**The default maximum number of connections an HTTP server will keep open between requests*/
+	public static final int HTTP_MAX_PERSISTENT_CONNECTIONS = 100;
+
+	/**How many connections an HTTP server using a selector will keep open between requests, as they don't need a thread each*/
+	public static final int HTTP_SELECTOR_MAX_PERSISTENT_CONNECTIONS = 2000;
+
+	/**How often an HTTP server's selector looks for connections that have been idle for too long*/
+	public static final int HTTP_SELECTOR_SWEEP_INTERVAL_MS = 1000;
+
+	/**The most of a plain HTTP request's headers that an HTTP server's selector will read before handing the request to a thread*/
+	public static final int HTTP_SELECTOR_HEADER_BUFFER = 8*1024;
+	
+	/**The most of a file an HTTP server sends in one go, so that progress is reported and cancelled transfers stop promptly*/
+	public static final int HTTP_FILE_SEND_SLICE = 1024*1024;
+	
+	/**The most ranges of a file an HTTP server will send in one response, requests for more are sent the whole file (clients ask for at most CLIENT_DOWNLOAD_MAX_BATCHED_CHUNKS)*/
+	public static final int HTTP_MAX_RANGES = 64;
+	
+	/**Bandwidth limits of this many bytes per second or more (the default limits: 1TiB/s) are not enforced at all*/
+	public static final long BANDWIDTH_UNLIMITED_BYTES_PER_SEC = 1024L*1024L*1024L*1024L;
+	
+	/**The most bytes a throttled transfer of full weight is allocated at once, smaller turns share bandwidth more evenly*/
+	public static final long BANDWIDTH_ALLOCATION_QUANTUM = 16*1024;
+	
+	/**Unread HTTP bodies up to this size are skipped to keep the connection open, larger ones cause it to be closed*/
+	public static final int HTTP_MAX_SKIPPED_BODY = 64*1024;
+	
+	/**How many idle connections to each host HTTP clients keep for reuse (the JVM default is five)*/
+	public static final int CLIENT_HTTP_MAX_IDLE_CONNECTIONS_PER_HOST = 16;
+	
+	/**How many threads a client's HTTP server has beyond its upload slots, for filelists, pings and queued download requests*/
+	public static final int CLIENT_HTTP_SPARE_SERVING_THREADS = 8;
+	
 	/**The version identifier for the method clients and indexnodes communicate: This must never include a ':' symbol!*/
 	public static final String FS2_PROTOCOL_VERSION = "fs2protocol-0.13"; 
 
@@ -72,6 +114,12 @@ public class FS2Constants {
 	/**The maximum number of search results to return to a client*/
 	public static final int INDEXNODE_SEARCH_MAX_RESULTS = 200;
 	
+	/**The most files a client may ask for the alternative sources of in one request*/
+	public static final int INDEXNODE_MAX_BULK_ALTERNATIVES = 256;
+	
+	/**How many matches (as a multiple of the number of results wanted) are considered when ranking search results*/
+	public static final int INDEXNODE_SEARCH_CANDIDATE_FACTOR = 5;
+	
 	/**How often should the indexnode advertise itself? (a second)*/
 	public static final int INDEXNODE_ADVERTISE_INTERVAL_MS = 1*1000;
 	
@@ -84,6 +132,9 @@ public class FS2Constants {
 	/**How often should the indexnode cache statistics for? (10 seconds)*/
 	public static final int INDEXNODE_CACHE_STATISTICS_DURATION = 1000*10;
 	
+	/** Snapshots of shares not seen for this long are deleted when the indexnode starts (a week)*/
+	public static final long INDEXNODE_SNAPSHOT_MAX_AGE_MS = 7L*24*60*60*1000;
+	
 	/** the maximum number of chat log entries the indexnode will keep */
 	public static final int INDEXNODE_CHAT_LOG_LENGTH = 100;
 	
@@ -109,7 +160,7 @@ public class FS2Constants {
 	 */
 	public static final long CLIENT_DOWNLOADQUEUE_SAVE_MIN_INTERVAL = 60*1000;
 	
-	/** The minimum number of milliseconds between each iteration of the download dispatcher*/
+	/** The most milliseconds the download dispatcher waits between iterations when nothing wakes it, for splitting chunks and enforcing slot limits*/
 	public static final int CLIENT_DOWNLOAD_DISPATCH_ITERATION_THROTTLE = 1000;
 	
 	public static final String CLIENT_LOGS_SUBDIRECTORY = "logs";
@@ -122,6 +173,18 @@ public class FS2Constants {
 	
 	/** How what is the maximum amount (in percent as a float) of the chunk that may have completed if it is to be split?*/
 	public static final float CLIENT_DOWNLOAD_CHUNK_SPLIT_PERCENT = 50f;
+	
+	/**The most inactive chunks of a file that are requested from a peer together, as the ranges of one request*/
+	public static final int CLIENT_DOWNLOAD_MAX_BATCHED_CHUNKS = 32;
+	
+	/**How long the sources found for a file are used for before they're looked up again (half a minute)*/
+	public static final long CLIENT_DOWNLOAD_SOURCES_TTL = 30*1000;
+	
+	/**How many of the files next in the download queue have their sources looked up in advance, also the most looked up together*/
+	public static final int CLIENT_DOWNLOAD_SOURCES_PREFETCH = 64;
+	
+	/**The most requests a client makes of one indexnode at once (at least three, as the lower priority requests leave slots for the higher)*/
+	public static final int CLIENT_INDEXNODE_MAX_REQUESTS = 4;
 
 	/**The number of milliseconds between updating the status bar in the client gui.*/
 	public static final int CLIENT_STATUS_BAR_UPDATE_INTERVAL = 1000;
@@ -132,14 +195,47 @@ public class FS2Constants {
 	/** The client autorefreshes shares that have new items downloaded into them, but not more often than this:*/
 	public static final long CLIENT_DOWNLOADED_TO_SHARE_REFRESH_MIN_INTERVAL = 60*1000;
 
+	/**The number of recent filelist revisions a client keeps the changes of, so indexnodes can fetch deltas.*/
+	public static final int CLIENT_FILELIST_JOURNAL_MAX_REVISIONS = 16;
+	
+	/**The maximum number of changed items a client keeps in each share's journal before forgetting the oldest revisions.*/
+	public static final int CLIENT_FILELIST_JOURNAL_MAX_ITEMS = 50000;
+	
+	/**The longest name (in UTF-8 bytes) read from a compact filelist, anything longer means the list is malformed. Filesystems allow at most a few hundred.*/
+	public static final int FILELIST_MAX_NAME_BYTES = 4096;
+	
 	/**The number of milliseconds between considering if shares need refreshing: 10s*/
 	public static final long CLIENT_SHARE_REFRESH_POLL_INTERVAL = 10*1000;
+
+	/**How long a watched share must be unchanged before the directories that changed are refreshed: 5s*/
+	public static final long CLIENT_SHARE_WATCH_SETTLE_INTERVAL = 5*1000;
+	
+	/**How often a watched share is refreshed in full anyway, in case changes were missed: a day*/
+	public static final long CLIENT_WATCHED_SHARE_FULL_REFRESH_INTERVAL = 24*60*60*1000l;
+
+	/**The most files a share refresh may have waiting to be hashed before it stops walking the share to let hashing catch up.*/
+	public static final int CLIENT_SHARE_HASH_MAX_PENDING = 256;
+
+	/**The number of milliseconds a share hashing thread waits for more files before exiting: 10s*/
+	public static final long CLIENT_SHARE_HASH_THREAD_IDLE_TIMEOUT = 10*1000;
+
+	/**The most files whose hashes are remembered that are no longer in a share, every shared file is remembered on top of these. Each takes roughly 200 bytes of heap.*/
+	public static final int CLIENT_HASH_CACHE_MAX_ENTRIES = 200000;
+
+	/**The number of days a remembered hash is kept after its file was last seen in a share.*/
+	public static final int CLIENT_HASH_CACHE_EXPIRY_DAYS = 30;
+
+	/**The minimum number of milliseconds between saves of the hash cache: 60s*/
+	public static final long CLIENT_HASH_CACHE_SAVE_MIN_INTERVAL = 60*1000;
 	
 	/**the number of milliseconds between considering if browseTree nodes should be collapsed to save load on the indexnode*/
 	public static final int CLIENT_BROWSETREE_COLLAPSE_POLL_INTERVAL = 5*1000;
 	
 	/**The number of milliseconds an idle leaf in the browse tree should remain open for. This is also the number of seconds an idle search will remain open for*/
 	public static final int CLIENT_BROWSETREE_COLLAPSE_INTERVAL = 60*1000;
+	
+	/**The longest string (in UTF-8 bytes) read from an indexnode's compact listing, such as a name, path or URL. Anything longer means the listing is malformed.*/
+	public static final int CLIENT_COMPACT_LISTING_MAX_STRING_BYTES = 64*1024;
 
 	/**The anonymous diffie-hellman cipher suite used for encrypting communication between clients and clients-indexnodes.*/
 	public static final String DH_ANON_CIPHER_SUITE_USED = "TLS_DH_anon_WITH_AES_128_CBC_SHA";
@@ -0,0 +1,100 @@
+package common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.LinkedList;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import common.FileList.Item;
+
+/**
+ * The changes that take a FileList from one revision to another.
+ *
+ * A delta is an ordered list of changes, and they must be applied in order.
+ * Each change either puts an item (a file, or a whole directory tree) at a path, replacing anything already there,
+ * or removes whatever is at a path.
+ *
+ * Paths are the '/' separated names of items below the root of the filelist, the root itself is never changed.
+ *
+ * @author gary
+ */
+public class FileListDelta implements Serializable {
+	private static final long serialVersionUID = 2780385431968163311L;
+
+	// Items below this line may never change. (except in emergencies)
+
+	/**
+	 * A single change to a filelist.
+	 */
+	public static class Change implements Serializable {
+		private static final long serialVersionUID = -2126620437213542014L;
+		/** The path of the item changed, below the root of the filelist.*/
+		public String path;
+		/** The new item at this path, or null if the item at this path was removed.*/
+		public Item item;
+
+		public Change(String path, Item item) {
+			this.path = path;
+			this.item = item;
+		}
+
+		public boolean isRemoval() {
+			return item==null;
+		}
+	}
+
+	public int fromRevision;
+	public int toRevision;
+	public LinkedList<Change> changes = new LinkedList<Change>();
+
+	//Items below this line MUST NOT be non-transient!
+
+	public FileListDelta(int fromRevision, int toRevision) {
+		this.fromRevision = fromRevision;
+		this.toRevision = toRevision;
+	}
+
+	/**
+	 * Splits a change path into the names of the items along it.
+	 */
+	public static String[] splitPath(String path) {
+		return path.split("/");
+	}
+
+	/**
+	 * Takes an inputstream and constructs a delta.
+	 *
+	 * DOES NOT close the stream after reading.
+	 *
+	 * @param is The stream containing a delta as packed by the 'deconstruct' method given here.
+	 * @return The delta if one could be contstructed from the stream, null otherwise.
+	 */
+	public static FileListDelta reconstruct(InputStream is) {
+		try {
+			ObjectInputStream ois = new ObjectInputStream(new InflaterInputStream(is));
+			return (FileListDelta) ois.readObject();
+		} catch (Exception e) {
+			Logger.warn("Couldn't reconstruct filelist delta: "+e);
+			return null;
+		}
+	}
+
+	/**
+	 * Deconstructs this delta onto the output stream given, compressed in the same way as whole filelists.
+	 * @param os
+	 * @throws IOException
+	 */
+	public void deconstruct(OutputStream os) throws IOException {
+		DeflaterOutputStream dos = new DeflaterOutputStream(os, new Deflater(Deflater.BEST_COMPRESSION));
+		ObjectOutputStream oos = new ObjectOutputStream(dos);
+		oos.writeObject(this);
+		oos.flush();
+		dos.finish();
+	}
+}
@@ -1,5 +1,6 @@
 package common;
 import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -12,11 +13,17 @@ import java.net.URI;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import common.httpserver.FileChannelOutput;
 import common.httpserver.Headers;
 import common.httpserver.HttpExchange;
 import common.HttpFileHandler.HttpFileHandlerEvents;
@@ -48,6 +55,21 @@ public class HttpUtil {
 		conn.addRequestProperty("Range", "bytes="+Long.toString(startPosition)+"-"+(endPosition == 0 ? "" : endPosition));
 	}
 	
+	/**
+	 * Adds a header to the request that asks for several ranges at once.
+	 * Servers that support this will reply with a multipart/byteranges response.
+	 * @param conn
+	 * @param ranges each range is {startPosition, endPosition}, where the end is the index of the last byte to receive.
+	 */
+	public static void setRequestRanges(HttpURLConnection conn, List<long[]> ranges) {
+		StringBuilder header = new StringBuilder("bytes=");
+		for (long[] range : ranges) {
+			if (header.length()>"bytes=".length()) header.append(',');
+			header.append(range[0]).append('-').append(range[1]);
+		}
+		conn.addRequestProperty("Range", header.toString());
+	}
+	
 	/**
 	 * @param inPath Any normal looking path (ie the path after a host/port in a url)
 	 * @return the string of the filename only in the path. (just the last component of the path)
@@ -102,8 +124,15 @@ public class HttpUtil {
 	 * @throws IOException
 	 */
 	public static void simpleBinaryResponse(HttpExchange exchange, byte[] msg, int statusCode) throws IOException {
+		simpleBinaryResponse(exchange, msg, statusCode, "text/html");
+	}
+	
+	/**
+	 * Like simpleBinaryResponse but with the content type given.
+	 */
+	public static void simpleBinaryResponse(HttpExchange exchange, byte[] msg, int statusCode, String contentType) throws IOException {
 		try {
-			exchange.getResponseHeaders().add("Content-Type", "text/html");
+			exchange.getResponseHeaders().add("Content-Type", contentType);
 			exchange.sendResponseHeaders(statusCode,msg.length);
 			OutputStream response = exchange.getResponseBody();
 			response.write(msg);
@@ -130,6 +159,9 @@ public class HttpUtil {
 	 * Sets appropriate headers and sends the file. 
 	 * Do security and validation before calling this.
 	 * This is a one-shot service. Only this file is provided on the output, then the exchange is closed.
+	 * 
+	 * A single requested range is sent as a partial response, several are sent as a multipart/byteranges response.
+	 * Each range's Content-Range gives its own length as the total, as FS2 always has, rather than the file's length.
 	 */
 	public static void sendFileOnly(HttpTransferInfo info) throws FileNotFoundException, IOException {
 		HttpExchange exchange = info.getExchange();
@@ -139,73 +171,61 @@ public class HttpUtil {
 		info.setPosition(0);
 		info.setRemaining(responseLength);
 		Headers h = exchange.getResponseHeaders();
+		List<long[]> ranges = null;
+		String boundary = null;
 	
 		try {
 			if (exchange.getRequestHeaders().containsKey("Range")) {
 				String requestRange = exchange.getRequestHeaders().getFirst("Range");
 				//Logger.log("range: "+requestRange);
-				Pattern pattern = Pattern.compile("bytes=([0-9]*)-([0-9]*)");
-			    Matcher matcher = pattern.matcher(requestRange);
-			    if (matcher.matches()) {
-			    	try {
-			    		long rangeStart = -1;
-			    		if (!matcher.group(1).equals("")) rangeStart = Long.parseLong(matcher.group(1));
-			    		long rangeEnd = -1;
-			    		if (!matcher.group(2).equals("")) rangeEnd = Long.parseLong(matcher.group(2));
-			    		
-			    		long newPosition = 0;
-			    		long newRemaining = 0;
-			    		long length = fileToSend.length();
-			    		
-			    		//There are three different valid simple ways the user can request ranges.
-			    		//(We do NOT support multiple range requests.)
-			    		
-			    		//1) Just a start point: (this is the number of bytes to skip at the start of the file)
-			    		if (rangeStart > -1 && rangeEnd == -1) {
-			    			newPosition = rangeStart;
-			    			newRemaining = length-rangeStart;
-			    		}
-			    		//2) Just an end point: (this is how many bytes to return from the end of the file)
-			    		else if (rangeStart == -1 && rangeEnd > -1) {
-			    			newPosition = length-rangeEnd;
-			    			newRemaining = rangeEnd+1;
-			    		}
-			    		//3) Both are specified: (this is a proper range!)
-			    		else if (rangeStart > -1 && rangeEnd > -1) {
-			    			newPosition = rangeStart;
-			    			newRemaining = (rangeEnd+1)-rangeStart;
-			    		}
-			    		
-			    		//Now sanity check, if it is ok, then setup the partial transfer.
-			    		if (newPosition > length ||
-			    			newPosition + newRemaining > length) {
-			    			Logger.log("Too much data was requested. Sending a normal (not partial) response.");
-			    		} else {
-			    			info.setPosition(newPosition);
-			    			info.setRemaining(newRemaining);
-			    			responseLength = newRemaining;
-			    			String crh = "bytes "+newPosition+"-"+((newRemaining+newPosition)-1)+"/"+newRemaining;
-			    			h.add("Content-Range", crh);
-			    			//Logger.log("content-range: "+crh);
-			    			responseCode = 206;
-			    		}
-			    		
-			    	} catch (Exception e) {
-			    		Logger.log("Couldn't service range request: "+requestRange+" - "+e.toString());
-			    	}
-			    }
+				ranges = parseRanges(requestRange, fileToSend.length());
+				if (ranges==null) {
+					//not satisfiable, so the whole file is sent instead.
+				} else if (ranges.size()==1) {
+					long newPosition = ranges.get(0)[0];
+					long newRemaining = ranges.get(0)[1];
+					info.setPosition(newPosition);
+					info.setRemaining(newRemaining);
+					responseLength = newRemaining;
+					String crh = contentRange(newPosition, newRemaining);
+					h.add("Content-Range", crh);
+					//Logger.log("content-range: "+crh);
+					responseCode = 206;
+				} else {
+					boundary = "fs2-"+Long.toHexString(System.nanoTime())+Long.toHexString(info.getUid());
+					long dataLength = 0;
+					responseLength = multipartTrailer(boundary).length;
+					for (long[] range : ranges) {
+						dataLength += range[1];
+						responseLength += multipartPartHeader(boundary, range).length+range[1];
+					}
+					info.setPosition(ranges.get(0)[0]);
+					info.setRemaining(dataLength);
+					responseCode = 206;
+				}
 			}
 			info.setupTracker();
 			h.add("Accept-Ranges", "bytes");
 			h.add("Content-Disposition", "attachment; filename=\""+fileToSend.getName()+"\";");
 			h.add("Content-Transfer-Encoding","binary");
 			h.add("Content-Length", Long.toString(responseLength));
-			h.add("Content-Type", "application/octet-stream");
-			Logger.access(info.getAlias()+": "+fileToSend.getPath()+"["+info.getPosition()+","+((info.getRemaining()+info.getPosition())-1)+")");
+			if (boundary==null) {
+				h.add("Content-Type", "application/octet-stream");
+				Logger.access(info.getAlias()+": "+fileToSend.getPath()+"["+info.getPosition()+","+((info.getRemaining()+info.getPosition())-1)+")");
+			} else {
+				h.add("Content-Type", "multipart/byteranges; boundary="+boundary);
+				StringBuilder logRanges = new StringBuilder();
+				for (long[] range : ranges) logRanges.append("["+range[0]+","+((range[0]+range[1])-1)+")");
+				Logger.access(info.getAlias()+": "+fileToSend.getPath()+logRanges);
+			}
 			
 			exchange.sendResponseHeaders(responseCode, responseLength);
 			OutputStream response = exchange.getResponseBody();
-			writeFileToStream(fileToSend, response, info);
+			if (boundary==null) {
+				writeFileToStream(fileToSend, response, info);
+			} else {
+				writeFileRangesToStream(fileToSend, response, info, ranges, boundary);
+			}
 			response.flush();
 			response.close();
 		} finally {
@@ -213,6 +233,115 @@ public class HttpUtil {
 		}
 	}
 	
+	private static final Pattern RANGE_SPEC_PATTERN = Pattern.compile("([0-9]*)-([0-9]*)");
+	
+	/**
+	 * Parses a Range header into {position, length} pairs for a file of the length given.
+	 * 
+	 * The ranges are returned in order with overlapping and adjacent ones merged, so no byte of the file is sent twice.
+	 * Requests for more than HTTP_MAX_RANGES ranges, or for more bytes in total than the file has, are refused
+	 * so that a short request can't make the server send a file many times over.
+	 * 
+	 * @return the ranges, or null if any of them are invalid or can't be satisfied, or the request is refused.
+	 */
+	static List<long[]> parseRanges(String requestRange, long length) {
+		if (!requestRange.startsWith("bytes=")) return null;
+		String[] specs = requestRange.substring("bytes=".length()).split(",");
+		if (specs.length>FS2Constants.HTTP_MAX_RANGES) {
+			Logger.log("Too many ranges ("+specs.length+") were requested. Sending a normal (not partial) response.");
+			return null;
+		}
+		ArrayList<long[]> ret = new ArrayList<long[]>();
+		long total = 0;
+		for (String spec : specs) {
+			Matcher matcher = RANGE_SPEC_PATTERN.matcher(spec.trim());
+			if (!matcher.matches()) return null;
+			try {
+				long rangeStart = -1;
+				if (!matcher.group(1).equals("")) rangeStart = Long.parseLong(matcher.group(1));
+				long rangeEnd = -1;
+				if (!matcher.group(2).equals("")) rangeEnd = Long.parseLong(matcher.group(2));
+				
+				long newPosition = 0;
+				long newRemaining = 0;
+				
+				//There are three different valid simple ways the user can request ranges.
+				
+				//1) Just a start point: (this is the number of bytes to skip at the start of the file)
+				if (rangeStart > -1 && rangeEnd == -1) {
+					newPosition = rangeStart;
+					newRemaining = length-rangeStart;
+				}
+				//2) Just an end point: (this is how many bytes to return from the end of the file)
+				else if (rangeStart == -1 && rangeEnd > -1) {
+					newPosition = length-rangeEnd;
+					newRemaining = rangeEnd+1;
+				}
+				//3) Both are specified: (this is a proper range!)
+				else if (rangeStart > -1 && rangeEnd > -1) {
+					newPosition = rangeStart;
+					newRemaining = (rangeEnd+1)-rangeStart;
+				}
+				
+				//Now sanity check:
+				if (newPosition > length ||
+					newPosition + newRemaining > length) {
+					Logger.log("Too much data was requested. Sending a normal (not partial) response.");
+					return null;
+				}
+				total += newRemaining;
+				if (total > length) {
+					Logger.log("More than the whole file was requested. Sending a normal (not partial) response.");
+					return null;
+				}
+				ret.add(new long[] {newPosition, newRemaining});
+			} catch (Exception e) {
+				Logger.log("Couldn't service range request: "+requestRange+" - "+e.toString());
+				return null;
+			}
+		}
+		return coalesceRanges(ret);
+	}
+	
+	/**
+	 * Sorts {position, length} ranges and merges those that overlap or are adjacent.
+	 */
+	private static List<long[]> coalesceRanges(List<long[]> ranges) {
+		Collections.sort(ranges, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] o1, long[] o2) {
+				return Long.valueOf(o1[0]).compareTo(o2[0]);
+			}
+		});
+		ArrayList<long[]> ret = new ArrayList<long[]>(ranges.size());
+		for (long[] range : ranges) {
+			long[] last = (ret.isEmpty() ? null : ret.get(ret.size()-1));
+			if (last!=null && range[0]<=last[0]+last[1]) {
+				last[1] = Math.max(last[0]+last[1], range[0]+range[1])-last[0];
+			} else {
+				ret.add(new long[] {range[0], range[1]});
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * This is intended to match the content-range header generated here:
+	 * String crh = "bytes "+newPosition+"-"+((newRemaining+newPosition)-1)+"/"+newRemaining;
+	 */
+	private static String contentRange(long position, long remaining) {
+		return "bytes "+position+"-"+((remaining+position)-1)+"/"+remaining;
+	}
+	
+	private static byte[] multipartPartHeader(String boundary, long[] range) throws UnsupportedEncodingException {
+		return ("\r\n--"+boundary+"\r\n" +
+				"Content-Type: application/octet-stream\r\n" +
+				"Content-Range: "+contentRange(range[0], range[1])+"\r\n\r\n").getBytes("ASCII");
+	}
+	
+	private static byte[] multipartTrailer(String boundary) throws UnsupportedEncodingException {
+		return ("\r\n--"+boundary+"--\r\n").getBytes("ASCII");
+	}
 	
 	public static interface TransferInfoPosition {
 		public long getPosition();
@@ -331,33 +460,63 @@ public class HttpUtil {
 	 * 
 	 * If the position argument is supplied, an object implementing TransferInfoPosition
 	 *  will be updated with the position of the streaming.
+	 *  
+	 * If the stream is a FileChannelOutput (such as an HttpServer's response body) it is given the file in slices to send itself,
+	 * otherwise the file is copied through a buffer.
 	 */
 	
 	public static void writeFileToStream(File inFile, OutputStream stream, HttpTransferInfo info) throws 
 										FileNotFoundException, IOException {
-		byte[] buffer = new byte[FS2Constants.ARBITRARY_BUFFER_SIZE];
-		int allocation;
-		InputStream filestream=null;
+		FileInputStream filestream = new FileInputStream(inFile);
 		try {
-			filestream = new BufferedInputStream(new FileInputStream(inFile));
-		
-			//Skip part of the file if the position isn't 0
-			if (info.getPosition() > 0) {
-				long toSkip = info.getPosition();
-				while (toSkip > 0) {
-					toSkip -= filestream.skip(toSkip);
-				}
+			writeFileRange(inFile, filestream.getChannel(), stream, info, info.getPosition()+info.getRemaining());
+		} finally {
+			filestream.close();
+		}
+	}
+	
+	/**
+	 * Writes the body of a multipart/byteranges response: each range of the file with its part header, and then the trailer.
+	 * The info's remaining should be the total length of the ranges.
+	 */
+	private static void writeFileRangesToStream(File inFile, OutputStream stream, HttpTransferInfo info, List<long[]> ranges, String boundary) throws
+										FileNotFoundException, IOException {
+		FileInputStream filestream = new FileInputStream(inFile);
+		try {
+			for (long[] range : ranges) {
+				if (info.shouldStop()) return;
+				stream.write(multipartPartHeader(boundary, range));
+				info.setPosition(range[0]);
+				writeFileRange(inFile, filestream.getChannel(), stream, info, range[0]+range[1]);
 			}
-			
-			while (info.getRemaining() > 0 && !info.shouldStop()) {
-				int nextReadRequest = (int)(info.getRemaining() < buffer.length ? info.getRemaining() : buffer.length);
-				allocation = filestream.read(buffer,0,nextReadRequest);
+			if (!info.shouldStop()) stream.write(multipartTrailer(boundary));
+		} finally {
+			filestream.close();
+		}
+	}
+	
+	/**
+	 * Writes the file from the info's position up to (but not including) end.
+	 */
+	private static void writeFileRange(File inFile, FileChannel file, OutputStream stream, HttpTransferInfo info, long end) throws IOException {
+		if (stream instanceof FileChannelOutput) {
+			FileChannelOutput output = (FileChannelOutput) stream;
+			while (info.getPosition() < end && !info.shouldStop()) {
+				int sent = (int) output.transferFrom(file, info.getPosition(), Math.min(end-info.getPosition(), FS2Constants.HTTP_FILE_SEND_SLICE));
+				info.setPosition(sent+info.getPosition());
+				info.sentBytes(sent);
+			}
+		} else {
+			byte[] buffer = new byte[FS2Constants.ARBITRARY_BUFFER_SIZE];
+			InputStream in = new BufferedInputStream(Channels.newInputStream(file.position(info.getPosition())));
+			while (info.getPosition() < end && !info.shouldStop()) {
+				int nextReadRequest = (int) Math.min(end-info.getPosition(), buffer.length);
+				int allocation = in.read(buffer,0,nextReadRequest);
+				if (allocation<0) throw new EOFException(inFile.getName()+" is shorter than expected.");
 				info.setPosition(allocation+info.getPosition());
 				stream.write(buffer,0,allocation);
 				info.sentBytes(allocation);
 			}
-		} finally {
-			if (filestream != null) filestream.close();
 		}
 	}
 	
@@ -471,6 +630,24 @@ public class HttpUtil {
 		return null;
 	}
 
+	/**
+	 * Closes a stream from an HttpURLConnection after reading what is left of it (up to a limit),
+	 * so that the connection can be kept for another request rather than closed.
+	 * @param is the stream to close, may be null.
+	 * @throws IOException
+	 */
+	public static void drainAndClose(InputStream is) throws IOException {
+		if (is==null) return;
+		try {
+			byte[] discard = new byte[4096];
+			long limit = FS2Constants.HTTP_MAX_SKIPPED_BODY;
+			int got;
+			while (limit>0 && (got = is.read(discard))>=0) limit -= got;
+		} finally {
+			is.close();
+		}
+	}
+	
 	/**
 	 * Returns a not-modified message to the client with no body.
 	 * @param exchange
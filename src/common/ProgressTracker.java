@@ -2,8 +2,7 @@ package common;
 
 import java.util.Date;
 import java.util.LinkedList;
-
-import common.Util.Deferrable;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A general purpose file-operation (or any operation who's progress and completion can be measured by a single number) progress tracker.
@@ -17,6 +16,9 @@ import common.Util.Deferrable;
  * 
  * Trackers may also be formed into a hierarchy with progress propagated to a tracker's parent.
  * 
+ * Trackers are guarded by a ReentrantLock rather than their monitors, as every transfer thread updates a tracker and its parents
+ * so they are contended, and a thread blocked entering a monitor pins a virtual thread to its carrier.
+ * 
  * @author gary
  */
 public class ProgressTracker {
@@ -42,6 +44,8 @@ public class ProgressTracker {
 	
 	ProgressTracker parent;
 	
+	private final ReentrantLock lock = new ReentrantLock();
+	
 	public long getMaxSampleAge() {
 		return maxSampleAge;
 	}
@@ -105,8 +109,14 @@ public class ProgressTracker {
 	 * 
 	 * @param amount the quantity of thing that has progressed.
 	 */
-	public synchronized void progress(long amount) {
-		addSample(amount);
+	public void progress(long amount) {
+		lock.lock();
+		try {
+			addSample(amount);
+		} finally {
+			lock.unlock();
+		}
+		//The parent is updated outside of our lock so siblings don't wait for each other while waiting for their parent:
 		if (parent!=null) parent.progress(amount);
 	}
 	
@@ -115,26 +125,44 @@ public class ProgressTracker {
 	 * This is equivalent to: progress(newPosition-getPosition());
 	 * @param newPosition
 	 */
-	public synchronized void progressTo(long newPosition) {
-		progress(newPosition-position);
+	public void progressTo(long newPosition) {
+		long amount;
+		lock.lock();
+		try {
+			amount = newPosition-position;
+			addSample(amount);
+		} finally {
+			lock.unlock();
+		}
+		if (parent!=null) parent.progress(amount);
 	}
 	
 	/**
 	 * Gets the total amount of progress that has happened since the start
 	 * @return
 	 */
-	public synchronized long getPosition() {
-		return position;
+	public long getPosition() {
+		lock.lock();
+		try {
+			return position;
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	/**
 	 * Atomically returns the position of this tracker and zeros the position.
 	 * @return
 	 */
-	public synchronized long getAndZeroPosition() {
-		long ret = position;
-		position = 0;
-		return ret;
+	public long getAndZeroPosition() {
+		lock.lock();
+		try {
+			long ret = position;
+			position = 0;
+			return ret;
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	/**
@@ -144,8 +172,13 @@ public class ProgressTracker {
 	 * @param pos the new position of the task.
 	 * @return
 	 */
-	public synchronized void setPosition(long pos) {
-		this.position = pos;
+	public void setPosition(long pos) {
+		lock.lock();
+		try {
+			this.position = pos;
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	/**
@@ -153,14 +186,19 @@ public class ProgressTracker {
 	 * 
 	 * @return the number of units per second currently occurring.
 	 */
-	public synchronized double getSpeed() {
-		addSample(0); //record that no units were added now, so that if this is polled when no progress is occurring it will decrease over time.
-		
-		long dur = getDuration();
-		if (dur==0l) {
-			return 0;  //speed is meaningless over an interval of zero time.
-		} else {
-			return (((double)accumulator)/(double)dur)*1000f;
+	public double getSpeed() {
+		lock.lock();
+		try {
+			addSample(0); //record that no units were added now, so that if this is polled when no progress is occurring it will decrease over time.
+			
+			long dur = getDuration();
+			if (dur==0l) {
+				return 0;  //speed is meaningless over an interval of zero time.
+			} else {
+				return (((double)accumulator)/(double)dur)*1000f;
+			}
+		} finally {
+			lock.unlock();
 		}
 	}
 	
@@ -172,13 +210,18 @@ public class ProgressTracker {
 	 * 
 	 * @return
 	 */
-	public synchronized long getEstimatedTimeRemaining() {
-		if (position>=expectedMaximum) return 0;
-		double speed = getSpeed();
-		if (speed==0) {
-			return Long.MAX_VALUE;
-		} else {
-			return (long) (((double)(expectedMaximum-position))/(speed)+0.5);
+	public long getEstimatedTimeRemaining() {
+		lock.lock();
+		try {
+			if (position>=expectedMaximum) return 0;
+			double speed = getSpeed();
+			if (speed==0) {
+				return Long.MAX_VALUE;
+			} else {
+				return (long) (((double)(expectedMaximum-position))/(speed)+0.5);
+			}
+		} finally {
+			lock.unlock();
 		}
 	}
 	
@@ -186,7 +229,7 @@ public class ProgressTracker {
 	 * Gets the estimated time of completion.
 	 * @return
 	 */
-	public synchronized Date getETA() {
+	public Date getETA() {
 		return new Date(getEstimatedTimeRemaining()+System.currentTimeMillis());
 	}
 	
@@ -195,7 +238,7 @@ public class ProgressTracker {
 	 * 
 	 * @return
 	 */
-	public synchronized String describeTimeRemaining() {
+	public String describeTimeRemaining() {
 		return Util.describeInterval(getEstimatedTimeRemaining());
 		
 	}
@@ -214,16 +257,21 @@ public class ProgressTracker {
 	 * 
 	 * @return
 	 */
-	public synchronized float percentComplete() {
-		if (expectedMaximum==0) return 0;
-		return ((float)position/(float)getMaximum())*100;
+	public float percentComplete() {
+		lock.lock();
+		try {
+			if (expectedMaximum==0) return 0;
+			return ((float)position/(float)getMaximum())*100;
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	/**
 	 * Returns a string expressing the percentage this task is complete.
 	 * @return
 	 */
-	public synchronized String percentCompleteString() {
+	public String percentCompleteString() {
 		return Util.oneDecimalPlace(percentComplete())+"%";
 	}
 	
@@ -234,12 +282,17 @@ public class ProgressTracker {
 	 * otherwise:						 55.5MiB of unknown at 10MiB/s
 	 * 
 	 */
-	public synchronized String describe() {
-		if (expectedMaximum==0) {
-			return Util.niceSize(position)+" of unknown at "+Util.niceSize((long)(getSpeed()))+"/s";
-		} else {
-			String ret = Util.niceSize(position)+" of "+Util.niceSize(expectedMaximum)+", "+describeTimeRemaining()+" remaining ("+percentCompleteString()+" at "+Util.niceSize((long)(getSpeed()))+"/s)";
-			return ret;
+	public String describe() {
+		lock.lock();
+		try {
+			if (expectedMaximum==0) {
+				return Util.niceSize(position)+" of unknown at "+Util.niceSize((long)(getSpeed()))+"/s";
+			} else {
+				String ret = Util.niceSize(position)+" of "+Util.niceSize(expectedMaximum)+", "+describeTimeRemaining()+" remaining ("+percentCompleteString()+" at "+Util.niceSize((long)(getSpeed()))+"/s)";
+				return ret;
+			}
+		} finally {
+			lock.unlock();
 		}
 	}
 	
@@ -282,23 +335,19 @@ public class ProgressTracker {
 	}
 	
 	private long clumpCount = 0;
+	private long lastSampleAt = 0;
+	//Called holding the lock. This clumps samples itself as Util.executeNeverFasterThan would synchronise every tracker on one table.
 	private void addSample(long amount) {
 		clumpCount += amount;
 		position += amount;
-		Util.executeNeverFasterThan(sampleClumpInterval, adder);
-	}
-
-	private SampleAdder adder = new SampleAdder();
-	private class SampleAdder implements Deferrable {
-		@Override
-		public void run() {
-			long now = System.currentTimeMillis();
+		long now = System.currentTimeMillis();
+		if (lastSampleAt+sampleClumpInterval<now) {
+			lastSampleAt = now;
 			accumulator += clumpCount;
 			samples.addFirst(new Sample(clumpCount, now));
 			clumpCount = 0;
 			dropSamples();
 		}
-		
 	}
 	
 	private void dropSamples() {
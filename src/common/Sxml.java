@@ -26,8 +26,6 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.xml.sax.InputSource;
 
-import com.sun.org.apache.xpath.internal.XPathAPI;
-
 
 /**
  * A helper class to make playing with XML using a DOM more friendly.
@@ -65,13 +63,26 @@ public class Sxml {
 		this.indentAmount = indentAmount;
 	}
 
+	/**
+	 * Returns the first element in the document with the id given, as '//*[@id=...]' would, or null if there isn't one.
+	 * This walks the tree itself, as evaluating an XPath over the whole document costs far more.
+	 * @param context any node of the document to search.
+	 */
 	public static Element getElementById(Node context, String id) {
-		try {
-			return (Element)XPathAPI.selectSingleNode(context, "//*[@id='"+id+"']");
-		} catch (TransformerException e) {
-			e.printStackTrace();
-			return null;
+		Node root = (context.getNodeType()==Node.DOCUMENT_NODE ? context : context.getOwnerDocument());
+		Node onNode = root.getFirstChild();
+		while (onNode!=null) {
+			if (onNode.getNodeType()==Node.ELEMENT_NODE && id.equals(((Element)onNode).getAttribute("id"))) return (Element)onNode;
+			if (onNode.getFirstChild()!=null) {
+				onNode = onNode.getFirstChild();
+				continue;
+			}
+			while (onNode!=root && onNode.getNextSibling()==null) {
+				onNode = onNode.getParentNode();
+			}
+			onNode = (onNode==root ? null : onNode.getNextSibling());
 		}
+		return null;
 	}
 	
 	public Element getElementById(String id) {
@@ -0,0 +1,179 @@
+package common;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Writes XML straight to a stream, laid out the same way as Sxml's output.
+ *
+ * A DOM can be written with this much faster than with a Transformer, and elements with many children can be
+ * written as they are generated instead of being built in the DOM first:
+ * an element with a Content object in its user data (under CONTENT_KEY) has that written as its children.
+ *
+ * @author gary
+ */
+public class SxmlWriter {
+
+	/**
+	 * Writes the children of an element as the document is written.
+	 */
+	public interface Content {
+		public void write(SxmlWriter out) throws IOException;
+	}
+
+	/** The DOM user data key of an element's Content.*/
+	public static final String CONTENT_KEY = "fs2-sxml-content";
+
+	/** Shared by every request thread, StAX factories aren't guaranteed to be thread safe so it's used synchronized.*/
+	private static final XMLOutputFactory factory = XMLOutputFactory.newInstance();
+
+	private final Writer out;
+	private final XMLStreamWriter xml;
+	private final boolean indent;
+	private final int indentAmount;
+	private int depth = 0;
+
+	/**
+	 * @param os the stream to write UTF-8 to. This is buffered internally and is not closed.
+	 * @param indent pretty-print?
+	 * @param indentAmount the number of spaces to indent each level by.
+	 */
+	public SxmlWriter(OutputStream os, boolean indent, int indentAmount) throws IOException {
+		this.out = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), FS2Constants.ARBITRARY_BUFFER_SIZE);
+		this.indent = indent;
+		this.indentAmount = indentAmount;
+		try {
+			synchronized (factory) {
+				xml = factory.createXMLStreamWriter(out);
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Writes a whole document, with its declaration and doctype.
+	 * @param doctypePublic the public doctype or empty for none.
+	 * @param doctypeSystem the system doctype or empty for none.
+	 */
+	public void writeDocument(Document doc, String doctypePublic, String doctypeSystem) throws IOException {
+		try {
+			//StAX can't write the standalone attribute so the declaration is written directly:
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>");
+			if (!doctypeSystem.equals("")) {
+				if (indent) out.write("\n");
+				Node root = doc.getDocumentElement();
+				out.write("<!DOCTYPE "+(root==null ? "html" : root.getNodeName()));
+				if (!doctypePublic.equals("")) out.write(" PUBLIC \""+doctypePublic+"\"");
+				else out.write(" SYSTEM");
+				out.write(" \""+doctypeSystem+"\">");
+			}
+			for (Node child = doc.getFirstChild(); child!=null; child = child.getNextSibling()) {
+				writeNode(child);
+			}
+			if (indent) xml.writeCharacters("\n");
+			xml.flush();
+			out.flush();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Writes a DOM node and its descendants.
+	 */
+	public void writeNode(Node node) throws IOException {
+		try {
+			if (node.getNodeType()==Node.TEXT_NODE) {
+				newline();
+				xml.writeCharacters(node.getNodeValue());
+			} else if (node.getNodeType()==Node.ELEMENT_NODE) {
+				Content content = (Content) node.getUserData(CONTENT_KEY);
+				newline();
+				if (content==null && !node.hasChildNodes()) {
+					xml.writeEmptyElement(node.getNodeName());
+					writeAttributes(node);
+					return;
+				}
+				xml.writeStartElement(node.getNodeName());
+				writeAttributes(node);
+				if (content==null && onlyText(node)) {
+					xml.writeCharacters(node.getTextContent());
+				} else {
+					depth++;
+					if (content!=null) {
+						content.write(this);
+					} else {
+						for (Node child = node.getFirstChild(); child!=null; child = child.getNextSibling()) {
+							writeNode(child);
+						}
+					}
+					depth--;
+					newline();
+				}
+				xml.writeEndElement();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Writes an element with only text in it.
+	 * @param text the element's text, an empty element is written if this is null or empty.
+	 * @param attributes the element's attributes as alternating names and values.
+	 */
+	public void element(String name, String text, String... attributes) throws IOException {
+		try {
+			newline();
+			if (text==null || text.equals("")) {
+				xml.writeEmptyElement(name);
+			} else {
+				xml.writeStartElement(name);
+			}
+			for (int i=0; i<attributes.length; i+=2) {
+				xml.writeAttribute(attributes[i], attributes[i+1]);
+			}
+			if (text!=null && !text.equals("")) {
+				xml.writeCharacters(text);
+				xml.writeEndElement();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void writeAttributes(Node node) throws XMLStreamException {
+		NamedNodeMap attributes = node.getAttributes();
+		for (int i=0; i<attributes.getLength(); i++) {
+			Node attribute = attributes.item(i);
+			xml.writeAttribute(attribute.getNodeName(), attribute.getNodeValue());
+		}
+	}
+
+	private boolean onlyText(Node node) {
+		for (Node child = node.getFirstChild(); child!=null; child = child.getNextSibling()) {
+			if (child.getNodeType()!=Node.TEXT_NODE) return false;
+		}
+		return true;
+	}
+
+	private void newline() throws XMLStreamException {
+		if (!indent) return;
+		StringBuilder sb = new StringBuilder(1+depth*indentAmount);
+		sb.append('\n');
+		for (int i=0; i<depth*indentAmount; i++) sb.append(' ');
+		xml.writeCharacters(sb.toString());
+	}
+}
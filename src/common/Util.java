@@ -127,6 +127,23 @@ public abstract class Util {
 		return sb.toString();
 	}
 	
+	/**
+	 * The reverse of bytesToHexString.
+	 * @param hex a string of lowercase hex digit pairs.
+	 * @return the bytes, or null if the string is not an even length of lowercase hex digits.
+	 */
+	public static byte[] hexStringToBytes(String hex) {
+		if (hex.length()%2!=0) return null;
+		byte[] ret = new byte[hex.length()/2];
+		for (int i=0; i<ret.length; i++) {
+			int hi = Character.digit(hex.charAt(i*2), 16);
+			int lo = Character.digit(hex.charAt(i*2+1), 16);
+			if (hi<0 || lo<0 || Character.isUpperCase(hex.charAt(i*2)) || Character.isUpperCase(hex.charAt(i*2+1))) return null;
+			ret[i] = (byte)((hi<<4)|lo);
+		}
+		return ret;
+	}
+	
 	public static void copyFile(File a, File b) throws IOException {
 		InputStream sa = new BufferedInputStream(new FileInputStream(a));
 		writeStreamToFile(sa, b);
@@ -148,7 +165,13 @@ public abstract class Util {
 	
 	public static void writeStreamToFile(InputStream is, File saveAs, SimpleDownloadProgress progress) throws IOException {
 		File partial = new File(saveAs.getAbsoluteFile()+".working");
-		OutputStream outs = new BufferedOutputStream(new FileOutputStream(partial));
+		OutputStream outs;
+		try {
+			outs = new BufferedOutputStream(new FileOutputStream(partial));
+		} catch (IOException e) {
+			is.close(); //the stream is still ours to close if the file can't be created.
+			throw e;
+		}
 		byte[] buf = new byte[FS2Constants.ARBITRARY_BUFFER_SIZE];
 		long soFar = 0;
 		int bytesRead = 0;
@@ -478,6 +501,17 @@ public abstract class Util {
 		System.setProperty("https.cipherSuites", join(plusone,","));
 	}
 	
+	/**
+	 * Lets HttpURLConnections keep more idle connections to each host, so that many requests to an indexnode or many
+	 * chunks from one peer reuse connections rather than connecting (and negotiating TLS) again.
+	 * This must be called before any HTTP connections are made.
+	 */
+	public static void enablePersistentHttpConnections() {
+		if (System.getProperty("http.maxConnections")==null) {
+			System.setProperty("http.maxConnections", Integer.toString(FS2Constants.CLIENT_HTTP_MAX_IDLE_CONNECTIONS_PER_HOST));
+		}
+	}
+	
 	/**
 	 * Calculates the md5 of the string in the default encoding, returning the result as a hex string.
 	 * @param input
@@ -0,0 +1,122 @@
+package common;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import common.CompactFileList.Visitor;
+
+/**
+ * Reads the old XML filelist format with a pull parser, passing items to a visitor as they are read.
+ *
+ * No DOM is built, so the memory used does not depend on the size of the list.
+ * The format is:
+ * <pre>
+ * &lt;filelist name="..." revision="n"&gt;
+ *   &lt;directory name="..."&gt; ... &lt;/directory&gt;
+ *   &lt;file name="..." hash="..." hash-version="MD5-v4" size="n"/&gt;
+ * &lt;/filelist&gt;
+ * </pre>
+ * Files with an unknown hash-version are passed to the visitor with a hash version of -1.
+ * Like the old DOM importer, the first filelist element is read wherever it is in the document,
+ * and anything else (including unknown elements and their contents) is ignored.
+ *
+ * @author gary
+ */
+public class XmlFileListReader {
+
+	private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+	static {
+		//Filelists come from untrusted peers:
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	/**
+	 * Reads an XML filelist from the stream. The stream is not closed.
+	 * @param is
+	 * @param visitor
+	 * @throws IOException if the stream couldn't be read or is not an XML filelist.
+	 */
+	public static void read(InputStream is, Visitor visitor) throws IOException {
+		XMLStreamReader reader = null;
+		try {
+			synchronized (factory) {
+				reader = factory.createXMLStreamReader(is);
+			}
+			boolean started = false;
+			boolean finished = false;
+			int depth = 0; //open directories within the filelist
+			int skip = 0; //open elements being ignored
+			while (!finished && reader.hasNext()) {
+				int event = reader.next();
+				if (event==XMLStreamConstants.START_ELEMENT) {
+					String tag = reader.getLocalName();
+					if (!started) {
+						if (!tag.equals("filelist")) continue; //look for the list anywhere in the document.
+						visitor.startList(attribute(reader, "name"), parseInt(attribute(reader, "revision")), 0L);
+						started = true;
+					} else if (skip>0) {
+						skip++;
+					} else if (tag.equals("directory")) {
+						visitor.startDirectory(attribute(reader, "name"), 0L);
+						depth++;
+					} else if (tag.equals("file")) {
+						int hashVersion = (attribute(reader, "hash-version").equals(FS2Constants.FILE_DIGEST_VERSION_XML) ? FS2Constants.FILE_DIGEST_VERSION_INT : -1);
+						long size = 0L;
+						try {
+							size = Long.parseLong(attribute(reader, "size"));
+						} catch (NumberFormatException e) {
+							hashVersion = -1; //Can't be listed without a size.
+						}
+						visitor.file(attribute(reader, "name"), attribute(reader, "hash"), hashVersion, size, 0L);
+						skip++; //a file has no children.
+					} else {
+						skip++;
+					}
+				} else if (event==XMLStreamConstants.END_ELEMENT && started) {
+					if (skip>0) {
+						skip--;
+					} else if (depth>0) {
+						visitor.endDirectory();
+						depth--;
+					} else {
+						finished = true; //the end of the filelist element, the rest of the document is ignored.
+					}
+				}
+			}
+			if (!started) throw new IOException("Empty XML filelist.");
+			if (!finished) throw new IOException("Truncated XML filelist.");
+		} catch (XMLStreamException e) {
+			throw new IOException("Malformed XML filelist: "+e.getMessage());
+		} finally {
+			if (reader!=null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					Logger.log(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the attribute's value or "" if it is missing, like DOM does.
+	 */
+	private static String attribute(XMLStreamReader reader, String name) {
+		String ret = reader.getAttributeValue(null, name);
+		return (ret==null ? "" : ret);
+	}
+
+	private static int parseInt(String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+}
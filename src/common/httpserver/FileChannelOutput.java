@@ -0,0 +1,26 @@
+package common.httpserver;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implemented by response body streams that can send part of a file themselves,
+ * so that it needn't be read into the heap and written to the stream.
+ *
+ * Filters that wrap a response body should implement this too if they can, by passing the transfer on to the stream they wrap.
+ *
+ * @author gp
+ */
+public interface FileChannelOutput {
+
+	/**
+	 * Sends bytes from the file, starting at position, to this stream.
+	 * This may send fewer than count bytes, but always sends at least one unless count is zero.
+	 * @param file the file to send from, its own position is not used or changed.
+	 * @param position where in the file to start.
+	 * @param count the most bytes to send.
+	 * @return the number of bytes sent.
+	 * @throws IOException
+	 */
+	public long transferFrom(FileChannel file, long position, long count) throws IOException;
+}
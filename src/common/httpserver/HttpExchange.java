@@ -18,7 +18,7 @@ public abstract class HttpExchange {
 
 	/**
 	 * Ensures that all resources used by this exchange are freed.
-	 * This will close open streams, close the TCP connection and free any non-heap resources allocated by the server during the request.
+	 * This will finish the response, close the TCP connection unless it can be used for another request, and free any non-heap resources allocated by the server during the request.
 	 */
 	public abstract void close();
 
@@ -71,8 +71,9 @@ public abstract class HttpExchange {
 
 	/**
 	 * Issues the standard HTTP response to the client. This includes a serialisation of the headers and the standard HTTP response line.
+	 * Exactly responseLength bytes must then be written to the response body.
 	 * @param rCode
-	 * @param responseLength
+	 * @param responseLength the length of the body, or negative if it isn't known in which case the body is sent chunked.
 	 * @throws IOException
 	 */
 	public abstract void sendResponseHeaders(int rCode, long responseLength) throws IOException;
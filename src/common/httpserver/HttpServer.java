@@ -6,6 +6,7 @@ import java.util.concurrent.ExecutorService;
 
 import javax.net.ssl.SSLContext;
 
+import common.FS2Constants;
 import common.httpserver.impl.ServerImpl;
 
 /**
@@ -30,6 +31,8 @@ public abstract class HttpServer {
 
 	protected boolean useKeepAlives = true;
 	protected int soTimeout = 0; 
+	protected int maxPersistentConnections = FS2Constants.HTTP_MAX_PERSISTENT_CONNECTIONS;
+	protected boolean useSelector = false;
 	
 	/**
 	 * Return a new instance of an HttpServer, bound to the address provided
@@ -132,4 +135,40 @@ public abstract class HttpServer {
 		this.soTimeout = soTimeout;
 	}
 
+	
+	/**
+	 * Returns the number of connections this server will keep open for further requests.
+	 * @return
+	 */
+	public int getMaxPersistentConnections() {
+		return maxPersistentConnections;
+	}
+	
+	/**
+	 * Sets how many connections this server will keep open for further requests (HTTP keep-alive)
+	 * Connections beyond this are closed after each response.
+	 * @param maxPersistentConnections zero to close every connection after one request.
+	 */
+	public void setMaxPersistentConnections(int maxPersistentConnections) {
+		this.maxPersistentConnections = maxPersistentConnections;
+	}
+
+	/**
+	 * Returns true if this server uses a selector to hold connections while they are idle.
+	 * @return
+	 */
+	public boolean isUsingSelector() {
+		return useSelector;
+	}
+	
+	/**
+	 * Sets whether this server uses a selector thread to accept connections and hold them while they are idle,
+	 * rather than a thread per idle connection. Requests are still handled by the executor's threads,
+	 * so a bounded executor can then serve many more connections than it has threads.
+	 * This must be set before the server is started.
+	 * @param useSelector
+	 */
+	public void setUseSelector(boolean useSelector) {
+		this.useSelector = useSelector;
+	}
 }
@@ -1,7 +1,7 @@
 package common.httpserver.impl;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -9,15 +9,22 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.net.ssl.SSLSocket;
 
+import common.FS2Constants;
 import common.HttpUtil;
 import common.Logger;
 import common.Util;
+import common.httpserver.FileChannelOutput;
 import common.httpserver.Headers;
 import common.httpserver.HttpContext;
 import common.httpserver.HttpExchange;
@@ -25,6 +32,10 @@ import common.httpserver.Filter.Chain;
 
 /**
  * An implementation of the HttpExchange class.
+ * 
+ * Each exchange is one request on a connection. Request and response bodies are framed by their lengths (or chunked)
+ * so that the connection can be used for further requests once this exchange is closed.
+ * 
  * @author gp
  *
  */
@@ -79,35 +90,53 @@ public class ExchangeImpl extends HttpExchange{
 	}
 	
 	final Socket rsock;
+	final ServerImpl srv;
+	/** The connection's streams, which outlive this exchange.*/
+	final InputStream connIn;
+	final OutputStream connOut;
 	InputStream in;
 	OutputStream out;
+	final ResponseBody responseBody;
+	RequestBody requestBody;
 	ContextImpl context;
 	Headers requestHeaders;
 	final Headers responseHeaders = new Headers();
 	URI requestURI;
 	String requestMethod;
+	int httpMinor;
+	/** True if the connection may be used for another request after this one.*/
+	boolean persistent = false;
+	boolean closed = false;
 	
 	/**
-	 * Package-private constructor to build this exchange from only a socket with the client and the server it was created from.
+	 * Package-private constructor to build this exchange from the next request on a connection and the server it was created from.
+	 * @param connIn the connection's (buffered) input, positioned at the start of a request.
+	 * @param connOut the connection's (buffered) output.
 	 * @throws IOException 
 	 */
-	ExchangeImpl(Socket request, ServerImpl srv) throws IOException {
+	ExchangeImpl(Socket request, InputStream connIn, OutputStream connOut, ServerImpl srv) throws IOException {
 		rsock = request;
+		this.srv = srv;
+		this.connIn = connIn;
+		this.connOut = connOut;
+		//Until the request has been read it has no body:
+		in = requestBody = new RequestBody(connIn, 0);
+		//An SSLSocket layered over a channel's socket returns that channel, which would bypass TLS:
+		out = responseBody = new ResponseBody(connOut, request instanceof SSLSocket ? null : request.getChannel());
 		try {
-			in = new BufferedInputStream(rsock.getInputStream());
-			out = new BufferedOutputStream(rsock.getOutputStream());
-			
 			//Now process the request:
 			//1) get and process request line
 			if (!parseRequestLine()) return;
 			//2) build headers
 			try {
-				requestHeaders = new Headers(in); 
+				requestHeaders = new Headers(connIn); 
 			} catch (Exception e) {
 				Logger.warn("Client sent invalid HTTP request headers: "+e);
 				HttpUtil.simple400(this);
 				return;
 			}
+			if (!setupRequestBody()) return;
+			persistent = wantsPersistence();
 			
 			//now determine the context
 			context = srv.determineContext(requestURI);
@@ -123,7 +152,7 @@ public class ExchangeImpl extends HttpExchange{
 			ch.doFilter(this);
 			
 		} finally {
-			close(); //ensure that the socket is always freed even if the HttpHandler forgets.
+			close(); //ensure that the response is always finished even if the HttpHandler forgets.
 		}
 	}
 	
@@ -133,7 +162,7 @@ public class ExchangeImpl extends HttpExchange{
 	 * @throws IOException
 	 */
 	private boolean parseRequestLine() throws IOException {
-		String reqLine = new String(Util.readLine(in)).trim();
+		String reqLine = new String(Util.readLine(connIn)).trim();
 		
 		Matcher rlm = REQUEST_LINE_PATTERN.matcher(reqLine);
 		if (!rlm.matches()) {
@@ -151,7 +180,7 @@ public class ExchangeImpl extends HttpExchange{
 			return false;
 		}
 		//TBH, we don't really care too much about the minor http version, but why not sanity check anyway?
-		int httpMinor = Integer.parseInt(rlm.group(3));
+		httpMinor = Integer.parseInt(rlm.group(3));
 		if (httpMinor != 1 && httpMinor != 0) {
 			Logger.warn("Client requested to use an unsupported HTTP version: "+reqLine);
 			HttpUtil.simple400(this); //Send them home...
@@ -160,17 +189,82 @@ public class ExchangeImpl extends HttpExchange{
 		return true;
 	}
 	
+	/**
+	 * Frames the request body using the request's headers.
+	 */
+	private boolean setupRequestBody() throws IOException {
+		String encoding = getRequestHeaderIgnoreCase("Transfer-Encoding");
+		String length = getRequestHeaderIgnoreCase("Content-Length");
+		if (encoding!=null && !encoding.equalsIgnoreCase("identity")) {
+			if (!encoding.equalsIgnoreCase("chunked")) {
+				Logger.warn("Client sent a request body with an unsupported transfer-encoding: "+encoding);
+				HttpUtil.simple400(this);
+				return false;
+			}
+			in = requestBody = new ChunkedRequestBody(connIn);
+		} else if (length!=null) {
+			try {
+				in = requestBody = new RequestBody(connIn, Long.parseLong(length.trim()));
+			} catch (NumberFormatException e) {
+				Logger.warn("Client sent an invalid content-length: "+length);
+				HttpUtil.simple400(this);
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Should the connection be kept open after this exchange? This depends on the client and how busy the server is.
+	 */
+	private boolean wantsPersistence() {
+		if (requestMethod.equals("HEAD")) return false; //Our handlers always send a body.
+		String connection = getRequestHeaderIgnoreCase("Connection");
+		boolean clientWants;
+		if (httpMinor==0) {
+			clientWants = connection!=null && connection.equalsIgnoreCase("keep-alive");
+		} else {
+			clientWants = connection==null || !connection.equalsIgnoreCase("close");
+		}
+		return clientWants && srv.mayPersist();
+	}
+	
+	private String getRequestHeaderIgnoreCase(String name) {
+		for (Map.Entry<String, LinkedList<String>> header : requestHeaders.entrySet()) {
+			if (header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty()) return header.getValue().get(0);
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns true if the connection can be used for another request now that this exchange is closed.
+	 */
+	boolean isPersistent() {
+		return persistent && closed;
+	}
+	
 	@Override
 	public void close() {
+		if (closed) return;
+		closed = true;
 		try {
 			try {
-				out.flush();
+				//The response must have been sent in full for the connection to be reused:
+				if (!responseBody.finish()) persistent = false;
+				//and the rest of the request must be skipped so that the next request is at the start of the stream:
+				if (persistent && !requestBody.skipRemaining(FS2Constants.HTTP_MAX_SKIPPED_BODY)) persistent = false;
+				connOut.flush();
 			} finally {
-				rsock.close();
+				if (!persistent) rsock.close();
 			}
 		} catch (IOException e) {
+			persistent = false;
 			Logger.warn("While closing HTTP server socket: "+e);
-			//e.printStackTrace();
+			try {
+				rsock.close();
+			} catch (IOException e1) {
+				//Already dead.
+			}
 		}
 	}
 	
@@ -216,11 +310,24 @@ public class ExchangeImpl extends HttpExchange{
 
 	@Override
 	public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+		if (responseBody.started) throw new IOException("Response headers have already been sent.");
 		String headerLine = "HTTP/1.1 "+rCode+" "+statuses.get(rCode)+"\r\n";
-		out.write(headerLine.getBytes("ASCII"));
-		responseHeaders.add("Content-Length", Long.toString(responseLength));
-		out.write(responseHeaders.toString().getBytes("ASCII"));
-		out.write("\r\n".getBytes("ASCII"));
+		connOut.write(headerLine.getBytes("ASCII"));
+		if (responseLength<0) {
+			responseHeaders.remove("Content-Length");
+			responseHeaders.set("Transfer-Encoding", "chunked");
+		} else {
+			responseHeaders.set("Content-Length", Long.toString(responseLength));
+		}
+		if (persistent) {
+			if (httpMinor==0) responseHeaders.set("Connection", "keep-alive");
+			responseHeaders.set("Keep-Alive", "timeout="+FS2Constants.HTTP_PERSISTENT_ADVERTISED_TIMEOUT_S);
+		} else {
+			responseHeaders.set("Connection", "close");
+		}
+		connOut.write(responseHeaders.toString().getBytes("ASCII"));
+		connOut.write("\r\n".getBytes("ASCII"));
+		responseBody.start(responseLength);
 	}
 
 	@Override
@@ -233,4 +340,216 @@ public class ExchangeImpl extends HttpExchange{
 	public boolean isSecure() {
 		return (rsock instanceof SSLSocket);
 	}
+	
+	/**
+	 * The body of a request with a known length. Closing it does not close the connection.
+	 */
+	private static class RequestBody extends InputStream {
+		final InputStream conn;
+		long remaining;
+		
+		RequestBody(InputStream conn, long length) {
+			this.conn = conn;
+			this.remaining = length;
+		}
+		
+		/**
+		 * Makes more of the body available, returning false at the end of the body.
+		 */
+		boolean fill() throws IOException {
+			return remaining>0;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if (!fill()) return -1;
+			int ret = conn.read();
+			if (ret<0) throw new EOFException("The connection closed before the request body was complete.");
+			remaining--;
+			return ret;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len==0) return 0;
+			if (!fill()) return -1;
+			int ret = conn.read(b, off, (int) Math.min(len, remaining));
+			if (ret<0) throw new EOFException("The connection closed before the request body was complete.");
+			remaining -= ret;
+			return ret;
+		}
+		
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(conn.available(), remaining);
+		}
+		
+		/**
+		 * Skips the rest of this body if it is no larger than the limit given.
+		 * @return true if the connection is now at the end of this body.
+		 */
+		boolean skipRemaining(long limit) throws IOException {
+			byte[] discard = null;
+			while (fill()) {
+				if (remaining>limit) return false;
+				if (discard==null) discard = new byte[(int) Math.min(FS2Constants.ARBITRARY_BUFFER_SIZE, limit)];
+				limit -= read(discard, 0, discard.length);
+			}
+			return true;
+		}
+		
+		@Override
+		public void close() {
+			//The connection might be used again, so it is not closed.
+		}
+	}
+	
+	/**
+	 * A request body sent with chunked transfer-encoding.
+	 */
+	private static class ChunkedRequestBody extends RequestBody {
+		boolean done = false;
+		boolean first = true;
+		
+		ChunkedRequestBody(InputStream conn) {
+			super(conn, 0);
+		}
+		
+		@Override
+		boolean fill() throws IOException {
+			if (remaining>0) return true;
+			if (done) return false;
+			if (!first) Util.readLine(conn); //the CRLF after the last chunk.
+			first = false;
+			String sizeLine = new String(Util.readLine(conn), "ASCII").trim();
+			int ext = sizeLine.indexOf(';');
+			if (ext>=0) sizeLine = sizeLine.substring(0, ext);
+			try {
+				remaining = Long.parseLong(sizeLine, 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid chunk size in request body: "+sizeLine);
+			}
+			if (remaining==0) {
+				//Skip any trailers:
+				while (new String(Util.readLine(conn), "ASCII").trim().length()>0);
+				done = true;
+				return false;
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * The body of a response, framed by the length given when the headers were sent.
+	 * Closing this finishes the response but does not close the connection.
+	 * 
+	 * Files are sent with FileChannel.transferTo (sendfile) on plain connections. TLS connections only have a stream,
+	 * so files are read straight into a buffer for it, which is still one copy fewer than reading them through a stream.
+	 */
+	private static class ResponseBody extends FilterOutputStream implements FileChannelOutput {
+		/** The plain connection's channel, or null for TLS.*/
+		final SocketChannel channel;
+		boolean started = false;
+		boolean chunked = false;
+		boolean finished = false;
+		long remaining;
+		ByteBuffer copyBuffer;
+		
+		ResponseBody(OutputStream conn, SocketChannel channel) {
+			super(conn);
+			this.channel = channel;
+		}
+		
+		void start(long length) {
+			started = true;
+			chunked = length<0;
+			remaining = length;
+		}
+		
+		private void check(long len) throws IOException {
+			if (!started) throw new IOException("Response headers must be sent before the body.");
+			if (finished) throw new IOException("The response has been closed.");
+			if (!chunked && len>remaining) throw new IOException("Response body is longer than the length sent.");
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			check(1);
+			if (chunked) {
+				out.write("1\r\n".getBytes("ASCII"));
+				out.write(b);
+				out.write("\r\n".getBytes("ASCII"));
+			} else {
+				out.write(b);
+				remaining--;
+			}
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len==0) return;
+			check(len);
+			if (chunked) {
+				out.write((Integer.toHexString(len)+"\r\n").getBytes("ASCII"));
+				out.write(b, off, len);
+				out.write("\r\n".getBytes("ASCII"));
+			} else {
+				out.write(b, off, len);
+				remaining -= len;
+			}
+		}
+		
+		/**
+		 * Sends exactly count bytes, unless the file is shorter.
+		 */
+		@Override
+		public long transferFrom(FileChannel file, long position, long count) throws IOException {
+			if (count==0) return 0;
+			check(count);
+			if (chunked) out.write((Long.toHexString(count)+"\r\n").getBytes("ASCII"));
+			long sent = 0;
+			if (channel!=null && channel.isBlocking()) {
+				out.flush(); //The headers must be on the wire first.
+				while (sent<count) {
+					long got = file.transferTo(position+sent, count-sent, channel);
+					if (got<=0) throw new EOFException("The file is shorter than the response.");
+					sent += got;
+				}
+			} else {
+				if (copyBuffer==null) copyBuffer = ByteBuffer.allocate(FS2Constants.ARBITRARY_BUFFER_SIZE);
+				while (sent<count) {
+					copyBuffer.clear();
+					copyBuffer.limit((int) Math.min(copyBuffer.capacity(), count-sent));
+					int got = file.read(copyBuffer, position+sent);
+					if (got<0) throw new EOFException("The file is shorter than the response.");
+					out.write(copyBuffer.array(), 0, got);
+					sent += got;
+				}
+			}
+			if (chunked) {
+				out.write("\r\n".getBytes("ASCII"));
+			} else {
+				remaining -= sent;
+			}
+			return sent;
+		}
+		
+		/**
+		 * Completes the response.
+		 * @return true if the whole response was sent, so the connection may be reused.
+		 */
+		boolean finish() throws IOException {
+			if (finished) return started && (chunked || remaining==0);
+			finished = true;
+			if (!started) return false;
+			if (chunked) out.write("0\r\n\r\n".getBytes("ASCII"));
+			out.flush();
+			return chunked || remaining==0;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			finish();
+		}
+	}
 }
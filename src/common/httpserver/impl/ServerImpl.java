@@ -1,20 +1,32 @@
 package common.httpserver.impl;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
-import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
 
+import common.FS2Constants;
 import common.Logger;
 import common.httpserver.HttpContext;
 import common.httpserver.HttpHandler;
@@ -22,33 +34,59 @@ import common.httpserver.HttpServer;
 
 /**
  * An implementation of an HttpServer meeting a subset of the com.sun.net.httpserver.HttpServer specification.
- * 
+ *
  * This will not efficiently handle many contexts, lookup time per request is O(n) where n=number of contexts.
  * This is likely to be sufficient until there are more than thousands of contexts due to likely network/handling overheads.
- * 
+ *
+ * Connections are kept open for further requests (HTTP/1.1 persistent connections) while there are fewer than
+ * maxPersistentConnections of them.
+ *
+ * By default each socket has a thread blocked in accept() and each connection keeps its executor thread while it is idle,
+ * so an idle connection gives up as soon as another connection is waiting for the executor.
+ *
+ * With useSelector a single selector thread accepts connections and holds them while they are idle. A connection is only
+ * given to the executor once it has something to read: for plain HTTP that is once its request headers have arrived,
+ * for HTTPS it is as soon as any bytes arrive, as the handshake and headers are then read by the executor's thread.
+ *
  * @author gp
  */
 public class ServerImpl extends HttpServer {
 
-	ServerSocket insecureSocket = null;
-	SSLServerSocket secureSocket = null;
+	ServerSocketChannel insecureChannel = null;
+	ServerSocketChannel secureChannel = null;
+	SSLContext sslContext;
+	String[] cipherSuites;
 	LinkedList<ContextImpl> contexts = new LinkedList<ContextImpl>();
 	ExecutorService executor = Executors.newSingleThreadExecutor(); //setup a default executor.
 	Thread insecureListener;
 	Thread secureListener;
-	
+	/** Connections accepted but not yet being handled by the executor.*/
+	final AtomicInteger waitingConnections = new AtomicInteger();
+	/** Connections being handled by the executor, including those idle between requests. With a selector this includes those parked in it.*/
+	final AtomicInteger openConnections = new AtomicInteger();
+
+	Selector selector;
+	Thread selectorThread;
+	/** Connections waiting to be registered with the selector.*/
+	final ConcurrentLinkedQueue<Connection> parking = new ConcurrentLinkedQueue<Connection>();
+	volatile boolean stopped = false;
+
 	public ServerImpl(InetSocketAddress insecure, InetSocketAddress secure, SSLContext context, String[] cipherSuites, int backlog) throws IOException {
-		if (insecure!=null) {
-			insecureSocket = new ServerSocket(insecure.getPort(), backlog, insecure.getAddress());
-			insecureSocket.setPerformancePreferences(2, 1, 3); //probably has no effect on the TCP connections we're using.
-		}
+		if (insecure!=null) insecureChannel = bind(insecure, backlog);
 		if (secure!=null) {
-			secureSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(secure.getPort(), backlog, secure.getAddress());
-			if (cipherSuites!=null) secureSocket.setEnabledCipherSuites(cipherSuites);
-			secureSocket.setPerformancePreferences(2, 1, 3); //again, probably no effect.
+			sslContext = context;
+			this.cipherSuites = cipherSuites;
+			secureChannel = bind(secure, backlog);
 		}
 	}
-	
+
+	private ServerSocketChannel bind(InetSocketAddress addr, int backlog) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		channel.socket().setPerformancePreferences(2, 1, 3); //probably has no effect on the TCP connections we're using.
+		channel.socket().bind(addr, backlog);
+		return channel;
+	}
+
 	@Override
 	public HttpContext createContext(String path, HttpHandler handler) {
 		ContextImpl nc = new ContextImpl(path, handler);
@@ -74,7 +112,7 @@ public class ServerImpl extends HttpServer {
 	public void setExecutor(ExecutorService exec) {
 		this.executor = exec;
 	}
-	
+
 	/**
 	 * Returns the matching context for the URI specified.
 	 * @param requestUri
@@ -94,24 +132,32 @@ public class ServerImpl extends HttpServer {
 		}
 		return ret;
 	}
-	
+
 	@Override
 	public void start() {
-		if (insecureSocket!=null) insecureListener = listenOn(insecureSocket);
-		if (secureSocket  !=null) secureListener   = listenOn(secureSocket);
+		if (useSelector) {
+			try {
+				startSelector();
+				return;
+			} catch (IOException e) {
+				Logger.warn("Can't start the HTTP server's selector, falling back to a thread per connection: "+e);
+				Logger.log(e);
+				useSelector = false;
+			}
+		}
+		if (insecureChannel!=null) insecureListener = listenOn(insecureChannel, false);
+		if (secureChannel  !=null) secureListener   = listenOn(secureChannel, true);
 	}
 
-	private Thread listenOn(final ServerSocket socket) {
+	private Thread listenOn(final ServerSocketChannel channel, final boolean secure) {
 		Thread listener = new Thread(new Runnable() {
 			@Override
 			public void run() {
 				while (true) {
 					try {
-						final Socket req = socket.accept();
-						//set socket options:
-						req.setKeepAlive(useKeepAlives);
-						req.setSoTimeout(soTimeout);
-						
+						final Connection conn = accept(channel.accept(), secure);
+						if (conn==null) continue;
+
 						//Simulate a slow connection:
 //						try {
 //							Thread.sleep(1000);
@@ -119,55 +165,314 @@ public class ServerImpl extends HttpServer {
 //							// TODO Auto-generated catch block
 //							e1.printStackTrace();
 //						}
-						
+
+						waitingConnections.incrementAndGet();
 						executor.submit(new Runnable() {
 							@Override
 							public void run() {
-								try {
-									try {
-										new ExchangeImpl(req, ServerImpl.this);}
-									finally {
-										if (!req.isClosed()) req.close();
-									}
-								} catch (SSLException e) {
-									Logger.warn(req.getRemoteSocketAddress()+" can't handshake with us: "+e);
-								} catch (SocketException e) { 
-									Logger.warn("General socket bork while handling HTTP(s) from '"+req.getRemoteSocketAddress()+"': "+e);
-								} catch (SocketTimeoutException e) { 
-									Logger.warn("Socket timeout while handling HTTP(s) from '"+req.getRemoteSocketAddress()+"': "+e);
-								} catch (IOException e) {
-									Logger.warn("Can't handle HTTP"+(socket instanceof SSLServerSocket ? "S" : "")+" request from "+req.getRemoteSocketAddress()+": "+e);
-									Logger.log(e);
-								} catch (Throwable t) {
-									Logger.severe("Unexpected throwable by http exchange: "+t);
-									Logger.log(t);
-								}
+								waitingConnections.decrementAndGet();
+								serve(conn);
 							}
 						});
 					} catch (IOException e) {
-						if (Thread.currentThread().isInterrupted()) return; //shutdown listener
-						Logger.warn("Can't accept an HTTP"+(socket instanceof SSLServerSocket ? "S" : "")+" request: "+e);
+						if (Thread.currentThread().isInterrupted() || !channel.isOpen()) return; //shutdown listener
+						Logger.warn("Can't accept an HTTP"+(secure ? "S" : "")+" request: "+e);
 						Logger.log(e);
 					}
 				}
 			}
-		},this.getClass().getCanonicalName()+(socket instanceof SSLServerSocket ? " secure" : " insecure")+" listener");
+		},this.getClass().getCanonicalName()+(secure ? " secure" : " insecure")+" listener");
 		listener.setDaemon(false);
 		listener.start();
 		return listener;
 	}
 
+	/**
+	 * Sets up a newly accepted connection, which must still be in blocking mode.
+	 * @return the connection or null if it couldn't be set up.
+	 */
+	private Connection accept(SocketChannel channel, boolean secure) {
+		try {
+			Connection conn = new Connection(channel, secure);
+			openConnections.incrementAndGet();
+			return conn;
+		} catch (IOException e) {
+			Logger.warn("Can't set up HTTP"+(secure ? "S" : "")+" connection from "+channel.socket().getRemoteSocketAddress()+": "+e);
+			Logger.log(e);
+			try {
+				channel.close();
+			} catch (IOException e1) {
+				Logger.log(e1);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Handles requests on a connection using the executor's thread, until the connection is closed or parked in the selector.
+	 */
+	private void serve(Connection conn) {
+		boolean parked = false;
+		try {
+			try {
+				parked = useSelector ? serveUntilIdle(conn) : serveConnection(conn);
+			} finally {
+				if (!parked) conn.close();
+			}
+		} catch (SSLException e) {
+			Logger.warn(conn.socket.getRemoteSocketAddress()+" can't handshake with us: "+e);
+		} catch (SocketException e) {
+			Logger.warn("General socket bork while handling HTTP(s) from '"+conn.socket.getRemoteSocketAddress()+"': "+e);
+		} catch (SocketTimeoutException e) {
+			Logger.warn("Socket timeout while handling HTTP(s) from '"+conn.socket.getRemoteSocketAddress()+"': "+e);
+		} catch (IOException e) {
+			Logger.warn("Can't handle HTTP"+(conn.secure ? "S" : "")+" request from "+conn.socket.getRemoteSocketAddress()+": "+e);
+			Logger.log(e);
+		} catch (Throwable t) {
+			Logger.severe("Unexpected throwable by http exchange: "+t);
+			Logger.log(t);
+		}
+	}
+
+	/**
+	 * Handles requests on a connection until either end wants it closed.
+	 * @return false, the connection is never parked.
+	 */
+	private boolean serveConnection(Connection conn) throws IOException {
+		while (new ExchangeImpl(conn.socket, conn.in, conn.out, this).isPersistent()) {
+			if (!awaitRequest(conn.socket, conn.in)) return false;
+		}
+		return false;
+	}
+
+	/**
+	 * Waits for the next request on an idle connection.
+	 * @return true if a request has started to arrive, false if the connection should be closed.
+	 */
+	private boolean awaitRequest(Socket req, InputStream in) throws IOException {
+		if (in.available()>0) return true; //pipelined.
+		long giveUp = System.currentTimeMillis()+FS2Constants.HTTP_PERSISTENT_IDLE_TIMEOUT_MS;
+		req.setSoTimeout(FS2Constants.HTTP_PERSISTENT_IDLE_POLL_MS);
+		try {
+			while (true) {
+				try {
+					in.mark(1);
+					if (in.read()<0) return false; //closed by the client.
+					in.reset();
+					return true;
+				} catch (SocketTimeoutException e) {
+					//Our thread might be better used by a new connection:
+					if (waitingConnections.get()>0 || System.currentTimeMillis()>giveUp || Thread.currentThread().isInterrupted()) return false;
+				}
+			}
+		} finally {
+			if (!req.isClosed()) req.setSoTimeout(soTimeout);
+		}
+	}
+
+	/**
+	 * Handles requests on a connection until it's idle, and then parks it in the selector to wait for the next request.
+	 * @return true if the connection was parked, false if it should be closed.
+	 */
+	private boolean serveUntilIdle(Connection conn) throws IOException {
+		while (new ExchangeImpl(conn.socket, conn.in, conn.out, this).isPersistent()) {
+			if (conn.in.available()>0) continue; //pipelined.
+			park(conn);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if a connection may be kept open after its current request.
+	 */
+	boolean mayPersist() {
+		//Idle connections only cost a thread without a selector:
+		return openConnections.get()<maxPersistentConnections && (useSelector || waitingConnections.get()==0);
+	}
+
+	private void startSelector() throws IOException {
+		selector = Selector.open();
+		if (insecureChannel!=null) {
+			insecureChannel.configureBlocking(false);
+			insecureChannel.register(selector, SelectionKey.OP_ACCEPT, Boolean.FALSE);
+		}
+		if (secureChannel!=null) {
+			secureChannel.configureBlocking(false);
+			secureChannel.register(selector, SelectionKey.OP_ACCEPT, Boolean.TRUE);
+		}
+		selectorThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					select();
+				} catch (Throwable t) {
+					if (!stopped) {
+						Logger.severe("The HTTP server's selector has failed: "+t);
+						Logger.log(t);
+					}
+				} finally {
+					closeSelector();
+				}
+			}
+		}, this.getClass().getCanonicalName()+" selector");
+		selectorThread.setDaemon(false);
+		selectorThread.start();
+	}
+
+	/**
+	 * Hands an idle connection to the selector thread to wait for its next request.
+	 */
+	private void park(Connection conn) {
+		conn.parkedAt = System.currentTimeMillis();
+		parking.add(conn);
+		selector.wakeup();
+		//The selector may have finished before it could see this connection:
+		if (stopped && parking.remove(conn)) conn.close();
+	}
+
+	/**
+	 * The selector thread's loop. This accepts new connections, reads the headers of plain HTTP requests,
+	 * and gives connections with a request to the executor.
+	 */
+	private void select() throws IOException {
+		ArrayList<Connection> ready = new ArrayList<Connection>();
+		long nextSweep = System.currentTimeMillis()+FS2Constants.HTTP_SELECTOR_SWEEP_INTERVAL_MS;
+		while (!stopped) {
+			//Keys that were selected by the last selectNow() are handled without waiting:
+			if (selector.selectedKeys().isEmpty()) {
+				selector.select(FS2Constants.HTTP_SELECTOR_SWEEP_INTERVAL_MS);
+			}
+
+			Connection parked;
+			while ((parked = parking.poll())!=null) {
+				try {
+					parked.channel.configureBlocking(false);
+					parked.channel.register(selector, SelectionKey.OP_READ, parked);
+				} catch (IOException e) {
+					parked.close();
+				}
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid()) continue;
+				if (key.isAcceptable()) {
+					acceptAll((ServerSocketChannel) key.channel(), (Boolean) key.attachment());
+				} else if (key.isReadable()) {
+					Connection conn = (Connection) key.attachment();
+					try {
+						if (conn.readRequest()) {
+							key.cancel();
+							ready.add(conn);
+						}
+					} catch (IOException e) {
+						key.cancel();
+						conn.close();
+					}
+				}
+			}
+
+			if (!ready.isEmpty()) {
+				//Deregister the cancelled keys so that these connections can be blocking again:
+				selector.selectNow();
+				for (final Connection conn : ready) {
+					try {
+						conn.channel.configureBlocking(true);
+					} catch (IOException e) {
+						conn.close();
+						continue;
+					}
+					waitingConnections.incrementAndGet();
+					executor.submit(new Runnable() {
+						@Override
+						public void run() {
+							waitingConnections.decrementAndGet();
+							serve(conn);
+						}
+					});
+				}
+				ready.clear();
+			}
+
+			if (System.currentTimeMillis()>nextSweep) {
+				sweep();
+				nextSweep = System.currentTimeMillis()+FS2Constants.HTTP_SELECTOR_SWEEP_INTERVAL_MS;
+			}
+		}
+	}
+
+	private void acceptAll(ServerSocketChannel listener, boolean secure) {
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = listener.accept();
+			} catch (IOException e) {
+				Logger.warn("Can't accept an HTTP"+(secure ? "S" : "")+" request: "+e);
+				Logger.log(e);
+				return;
+			}
+			if (channel==null) return;
+			Connection conn = accept(channel, secure);
+			if (conn==null) continue;
+			conn.parkedAt = System.currentTimeMillis();
+			try {
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ, conn);
+			} catch (IOException e) {
+				conn.close();
+			}
+		}
+	}
+
+	/**
+	 * Closes connections that have been idle in the selector for too long.
+	 */
+	private void sweep() {
+		long giveUp = System.currentTimeMillis()-FS2Constants.HTTP_PERSISTENT_IDLE_TIMEOUT_MS;
+		for (SelectionKey key : selector.keys()) {
+			if (!(key.attachment() instanceof Connection)) continue;
+			Connection conn = (Connection) key.attachment();
+			if (key.isValid() && conn.parkedAt<giveUp) {
+				key.cancel();
+				conn.close();
+			}
+		}
+	}
+
+	private void closeSelector() {
+		try {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Connection) ((Connection) key.attachment()).close();
+			}
+			Connection parked;
+			while ((parked = parking.poll())!=null) parked.close();
+			selector.close();
+		} catch (IOException e) {
+			Logger.warn("While closing http server selector: "+e);
+			Logger.log(e);
+		}
+	}
+
 	@Override
 	public void stop() {
+		stopped = true;
 		try {
 			executor.shutdownNow();
+			if (selectorThread!=null) {
+				selector.wakeup();
+				if (insecureChannel!=null) insecureChannel.close();
+				if (secureChannel!=null) secureChannel.close();
+			}
 			if (insecureListener!=null) {
 				insecureListener.interrupt();
-				insecureSocket.close();
+				insecureChannel.close();
 			}
 			if (secureListener!=null) {
 				secureListener.interrupt();
-				secureSocket.close();
+				secureChannel.close();
 			}
 		} catch (IOException e) {
 			Logger.warn("While closing http server socket: "+e);
@@ -175,4 +480,120 @@ public class ServerImpl extends HttpServer {
 		}
 	}
 
+	/**
+	 * An accepted connection and its streams, which last for all of the requests made on it.
+	 */
+	class Connection {
+		final SocketChannel channel;
+		/** The socket requests are read from, this is an SSLSocket layered over the channel's for HTTPS.*/
+		final Socket socket;
+		final boolean secure;
+		final BufferedInputStream in;
+		final BufferedOutputStream out;
+		/** Bytes of a plain HTTP request read by the selector, these are read before the socket's stream.*/
+		ByteBuffer head;
+		/** When this connection was last given to the selector.*/
+		long parkedAt;
+		private boolean closed = false;
+
+		Connection(SocketChannel channel, boolean secure) throws IOException {
+			this.channel = channel;
+			this.secure = secure;
+			Socket plain = channel.socket();
+			plain.setKeepAlive(useKeepAlives);
+			plain.setSoTimeout(soTimeout);
+			//Responses are buffered and flushed whole, so Nagle would only hold back their last segment until the client's delayed ack:
+			plain.setTcpNoDelay(true);
+			if (secure) {
+				SSLSocket ssl = (SSLSocket) sslContext.getSocketFactory().createSocket(plain, plain.getInetAddress().getHostAddress(), plain.getPort(), true);
+				ssl.setUseClientMode(false);
+				if (cipherSuites!=null) ssl.setEnabledCipherSuites(cipherSuites);
+				socket = ssl;
+				in = new BufferedInputStream(ssl.getInputStream());
+			} else {
+				socket = plain;
+				in = new BufferedInputStream(new HeadInputStream(plain.getInputStream()));
+			}
+			out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		/**
+		 * Reads what has arrived on this connection while it is in the selector.
+		 * @return true once a request is ready to be handled.
+		 * @throws IOException if the connection has been closed by the client.
+		 */
+		boolean readRequest() throws IOException {
+			//TLS records can't be read without blocking, so the executor does all of the work of HTTPS requests:
+			if (secure) return true;
+			if (head==null) head = ByteBuffer.allocate(FS2Constants.HTTP_SELECTOR_HEADER_BUFFER);
+			if (channel.read(head)<0) throw new IOException("Connection closed by the client");
+			if (head.hasRemaining() && !headersComplete()) return false;
+			//Either all of the headers are here or they're too big for us to wait for:
+			head.flip();
+			return true;
+		}
+
+		/**
+		 * Returns true if the head contains a blank line: the end of the request headers.
+		 */
+		private boolean headersComplete() {
+			byte[] b = head.array();
+			int end = head.position();
+			for (int i=1; i<end; i++) {
+				if (b[i]=='\n' && (b[i-1]=='\n' || (i>=3 && b[i-1]=='\r' && b[i-2]=='\n' && b[i-3]=='\r'))) return true;
+			}
+			return false;
+		}
+
+		synchronized void close() {
+			if (closed) return;
+			closed = true;
+			try {
+				//A socket in non-blocking mode can't be closed through its (SSL) socket.
+				if (channel.isBlocking()) socket.close(); else channel.close();
+			} catch (IOException e) {
+				Logger.log(e);
+			} finally {
+				openConnections.decrementAndGet();
+			}
+		}
+
+		/**
+		 * Reads the head read by the selector and then the socket.
+		 */
+		private class HeadInputStream extends InputStream {
+			private final InputStream socketIn;
+
+			HeadInputStream(InputStream socketIn) {
+				this.socketIn = socketIn;
+			}
+
+			@Override
+			public int read() throws IOException {
+				if (head!=null) {
+					int b = head.get() & 0xff;
+					if (!head.hasRemaining()) head = null;
+					return b;
+				}
+				return socketIn.read();
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len==0) return 0;
+				if (head!=null) {
+					len = Math.min(len, head.remaining());
+					head.get(b, off, len);
+					if (!head.hasRemaining()) head = null;
+					return len;
+				}
+				return socketIn.read(b, off, len);
+			}
+
+			@Override
+			public int available() throws IOException {
+				return (head==null ? 0 : head.remaining())+socketIn.available();
+			}
+		}
+	}
 }
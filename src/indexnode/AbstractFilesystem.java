@@ -0,0 +1,475 @@
+package indexnode;
+
+import indexnode.IndexNode.Client;
+import indexnode.IndexNode.Share;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.CompactFileList;
+import common.FS2Constants;
+import common.FileListDelta;
+import common.FileListDelta.Change;
+import common.Util;
+import common.XmlFileListReader;
+import common.FileList.Item;
+
+/**
+ * The parts of a filesystem that only need the FilesystemEntry interface:
+ * importing, updating and delisting shares, registering clients and path lookups.
+ *
+ * Implementations supply the storage of the entries and the indices.
+ *
+ * @author gary
+ */
+public abstract class AbstractFilesystem implements Filesystem {
+
+	@Override
+	public void delistShare(Share share) {
+		//Logger.log("Delisting share: "+share.getName());
+
+		FilesystemEntry clientRoot = share.getOwner().getFilesystemRoot();
+		FilesystemEntry shareRoot = clientRoot.getNamedChild(share.getName());
+		//Decrease the client's total sharesize:
+		clientRoot.adjustSize(-shareRoot.getSize());
+		clientRoot.adjustLinkCount(-1);
+		getRootEntry().adjustSize(-shareRoot.getSize());
+		shareRoot.erase();
+	}
+
+	@Override
+	public void deregisterClient(FilesystemEntry entry) {
+		getRootEntry().adjustSize(-entry.getSize());
+		getRootEntry().adjustLinkCount(-1);
+		entry.erase();
+	}
+
+	@Override
+	public FilesystemEntry registerClient(Client client){
+		getRootEntry().adjustLinkCount(1);
+		return getRootEntry().createChildDirectory(client.getAlias(),null);
+	}
+
+	@Override
+	public void importShare(Item root, Share share) {
+		//Logger.log("Adding to filesystem:"+root.name);
+		FilesystemEntry shareRoot = share.getOwner().getFilesystemRoot().createChildDirectory(share.getName(), share);
+		importFileListIntoFilesystem(root, shareRoot, share);
+		share.getOwner().getFilesystemRoot().adjustLinkCount(1);
+		share.getOwner().getFilesystemRoot().adjustSize(shareRoot.getSize());
+		getRootEntry().adjustSize(shareRoot.getSize());
+	}
+
+	@Override
+	public void updateShare(Item root, Share share) {
+		FilesystemEntry clientRoot = share.getOwner().getFilesystemRoot();
+		FilesystemEntry shareRoot = clientRoot.getNamedChild(share.getName());
+		if (shareRoot == null) {
+			importShare(root, share);
+			return;
+		}
+		long oldSize = shareRoot.getSize();
+		updateFileListInFilesystem(root, shareRoot, share);
+		clientRoot.adjustSize(shareRoot.getSize()-oldSize);
+		getRootEntry().adjustSize(shareRoot.getSize()-oldSize);
+	}
+
+	@Override
+	public int updateXMLShare(InputStream xmlList, Share share) throws IOException {
+		FilesystemEntry clientRoot = share.getOwner().getFilesystemRoot();
+		FilesystemEntry shareRoot = clientRoot.getNamedChild(share.getName());
+		if (shareRoot == null) return importXMLShare(xmlList, share);
+		long oldSize = shareRoot.getSize();
+		StreamedUpdater updater = new StreamedUpdater(shareRoot, share);
+		try {
+			XmlFileListReader.read(xmlList, updater);
+			updater.endDirectory(); //the share root itself.
+		} catch (IOException e) {
+			abandonUpdate(shareRoot, oldSize, clientRoot);
+			throw e;
+		} catch (RuntimeException e) {
+			abandonUpdate(shareRoot, oldSize, clientRoot);
+			throw new IOException("Malformed filelist: "+e, e);
+		}
+		clientRoot.adjustSize(shareRoot.getSize()-oldSize);
+		getRootEntry().adjustSize(shareRoot.getSize()-oldSize);
+		return updater.revision;
+	}
+
+	/**
+	 * Removes a share whose update failed part-way through, as it is neither the old nor the new list.
+	 * The totals above the share still count its old size.
+	 */
+	private void abandonUpdate(FilesystemEntry shareRoot, long oldSize, FilesystemEntry clientRoot) {
+		clientRoot.adjustSize(-oldSize);
+		clientRoot.adjustLinkCount(-1);
+		getRootEntry().adjustSize(-oldSize);
+		shareRoot.erase();
+	}
+
+	/**
+	 * Returns true if the file item given can be listed in the filesystem.
+	 */
+	private boolean isImportableFile(Item item) {
+		return isImportableFile(item.hash, item.hashVersion);
+	}
+
+	/**
+	 * Returns true if a file with this hash can be listed in the filesystem.
+	 * Implementations may be stricter about the hashes they can store.
+	 */
+	protected boolean isImportableFile(String hash, int hashVersion) {
+		return hashVersion==FS2Constants.FILE_DIGEST_VERSION_INT && hash!=null && hash.length()==32;
+	}
+
+	@Override
+	public int importShare(InputStream compactList, Share share) throws IOException {
+		return importStreamedShare(compactList, false, share);
+	}
+
+	@Override
+	public int importXMLShare(InputStream xmlList, Share share) throws IOException {
+		return importStreamedShare(xmlList, true, share);
+	}
+
+	/**
+	 * Imports a share as its filelist is read from a stream, without building the list in memory first.
+	 * @param xml true if the stream is an XML filelist, false if it is a compact filelist.
+	 * @return the revision of the list.
+	 */
+	private int importStreamedShare(InputStream list, boolean xml, Share share) throws IOException {
+		FilesystemEntry shareRoot = share.getOwner().getFilesystemRoot().createChildDirectory(share.getName(), share);
+		StreamedImporter importer = new StreamedImporter(shareRoot, share);
+		try {
+			if (xml) {
+				XmlFileListReader.read(list, importer);
+			} else {
+				CompactFileList.read(list, importer);
+			}
+			importer.endDirectory(); //the share root itself.
+		} catch (IOException e) {
+			//Don't leave half a share in the filesystem:
+			shareRoot.erase();
+			throw e;
+		} catch (RuntimeException e) {
+			//A malformed list can fail in the importer rather than the reader, it's no less a bad list:
+			shareRoot.erase();
+			throw new IOException("Malformed filelist: "+e, e);
+		}
+		share.getOwner().getFilesystemRoot().adjustLinkCount(1);
+		share.getOwner().getFilesystemRoot().adjustSize(shareRoot.getSize());
+		getRootEntry().adjustSize(shareRoot.getSize());
+		return importer.revision;
+	}
+
+	/**
+	 * Creates filesystem entries directly from a filelist as it is read.
+	 */
+	private class StreamedImporter implements CompactFileList.Visitor {
+		class Frame {
+			FilesystemEntry entry;
+			long size = 0L;
+			int links = 0;
+			Frame(FilesystemEntry entry) {
+				this.entry = entry;
+			}
+		}
+
+		Share share;
+		LinkedList<Frame> stack = new LinkedList<Frame>();
+		int revision;
+
+		StreamedImporter(FilesystemEntry shareRoot, Share share) {
+			this.share = share;
+			stack.push(new Frame(shareRoot));
+		}
+
+		@Override
+		public void startList(String name, int revision, long lastRefreshed) {
+			this.revision = revision;
+		}
+
+		@Override
+		public void startDirectory(String name, long lastModified) {
+			Frame parent = stack.peek();
+			parent.links++;
+			stack.push(new Frame(parent.entry.createChildDirectory(name, share)));
+		}
+
+		@Override
+		public void file(String name, String hash, int hashVersion, long size, long lastModified) {
+			if (!isImportableFile(hash, hashVersion)) return;
+			Frame dir = stack.peek();
+			dir.entry.createChildEntry(name, hash, size, 1, share);
+			dir.size += size;
+		}
+
+		@Override
+		public void endDirectory() {
+			Frame done = stack.pop();
+			done.entry.adjustLinkCount(done.links);
+			done.entry.adjustSize(done.size);
+			if (!stack.isEmpty()) stack.peek().size += done.size;
+		}
+	}
+
+	/**
+	 * Brings an existing share into line with a filelist as it is read, like updateFileListInFilesystem does for a whole list.
+	 * Only the directories currently being read are held, so memory doesn't grow with the size of the list.
+	 */
+	private class StreamedUpdater implements CompactFileList.Visitor {
+		class Frame {
+			FilesystemEntry entry;
+			/** The entries that were in this directory and haven't been seen in the list yet.*/
+			HashMap<String, FilesystemEntry> unseen;
+			Frame(FilesystemEntry entry) {
+				this.entry = entry;
+				unseen = copyChildren(entry);
+			}
+		}
+
+		Share share;
+		LinkedList<Frame> stack = new LinkedList<Frame>();
+		int revision;
+
+		StreamedUpdater(FilesystemEntry shareRoot, Share share) {
+			this.share = share;
+			stack.push(new Frame(shareRoot));
+		}
+
+		@Override
+		public void startList(String name, int revision, long lastRefreshed) {
+			this.revision = revision;
+		}
+
+		@Override
+		public void startDirectory(String name, long lastModified) {
+			Frame parent = stack.peek();
+			FilesystemEntry existing = parent.unseen.remove(name);
+			if (existing == null || !existing.isDirectory()) {
+				if (existing != null) existing.erase();
+				existing = parent.entry.createChildDirectory(name, share);
+			}
+			stack.push(new Frame(existing));
+		}
+
+		@Override
+		public void file(String name, String hash, int hashVersion, long size, long lastModified) {
+			Frame dir = stack.peek();
+			FilesystemEntry existing = dir.unseen.remove(name);
+			if (!isImportableFile(hash, hashVersion)) {
+				if (existing != null) existing.erase();
+				return;
+			}
+			if (existing != null) {
+				if (!existing.isDirectory() && existing.getHash().equals(hash) && existing.getSize()==size) return;
+				existing.erase();
+			}
+			dir.entry.createChildEntry(name, hash, size, 1, share);
+		}
+
+		@Override
+		public void endDirectory() {
+			Frame done = stack.pop();
+			//Anything left over is no longer in the share:
+			for (FilesystemEntry gone : done.unseen.values()) {
+				gone.erase();
+			}
+			recalculateTotals(done.entry);
+		}
+	}
+
+	/**
+	 * Returns a copy of the children of an entry, so that it may be modified while they are iterated.
+	 */
+	private HashMap<String, FilesystemEntry> copyChildren(FilesystemEntry entry) {
+		Map<String, ? extends FilesystemEntry> children = entry.getChildren();
+		synchronized (children) {
+			return new HashMap<String, FilesystemEntry>(children);
+		}
+	}
+
+	/**
+	 * Brings an existing directory in the filesystem into line with the filelist item given.
+	 * Only entries that have been added, removed or changed are touched; unchanged entries are left in place
+	 * so their index entries do not need to be rebuilt.
+	 *
+	 * The size and link count of the directory are corrected to match its new contents.
+	 *
+	 * @param onItem The directory item from the new filelist.
+	 * @param fsItem The existing directory entry for it.
+	 */
+	private void updateFileListInFilesystem(Item onItem, FilesystemEntry fsItem, Share share) {
+		HashMap<String, FilesystemEntry> unseen = copyChildren(fsItem);
+
+		for (Item childItem : onItem.children.values()) {
+			FilesystemEntry existing = unseen.remove(childItem.name);
+			if (childItem.isDirectory()) {
+				if (existing != null && existing.isDirectory()) {
+					updateFileListInFilesystem(childItem, existing, share);
+				} else {
+					if (existing != null) existing.erase();
+					importFileListIntoFilesystem(childItem, fsItem.createChildDirectory(childItem.name, share), share);
+				}
+			} else {
+				if (!isImportableFile(childItem)) {
+					if (existing != null) existing.erase();
+					continue;
+				}
+				if (existing != null) {
+					if (!existing.isDirectory() && existing.getHash().equals(childItem.hash) && existing.getSize()==childItem.size) continue;
+					existing.erase();
+				}
+				fsItem.createChildEntry(childItem.name, childItem.hash, childItem.size, 1, share);
+			}
+		}
+
+		//Anything left over is no longer in the share:
+		for (FilesystemEntry gone : unseen.values()) {
+			gone.erase();
+		}
+
+		//Now the children are correct, so recalculate our totals from them:
+		recalculateTotals(fsItem);
+	}
+
+	/**
+	 * Sets the size and link count of a directory from its direct children.
+	 * The children must already be correct.
+	 * @param fsItem
+	 */
+	private void recalculateTotals(FilesystemEntry fsItem) {
+		int links = 2;
+		long size = 0L;
+		for (FilesystemEntry child : copyChildren(fsItem).values()) {
+			if (child.isDirectory()) links++;
+			size += child.getSize();
+		}
+		fsItem.adjustLinkCount(links-fsItem.getLinkCount());
+		fsItem.adjustSize(size-fsItem.getSize());
+	}
+
+	@Override
+	public void applyShareDelta(FileListDelta delta, Share share) {
+		FilesystemEntry clientRoot = share.getOwner().getFilesystemRoot();
+		FilesystemEntry shareRoot = clientRoot.getNamedChild(share.getName());
+		if (shareRoot == null) throw new IllegalArgumentException("A delta can't be applied to a share that isn't listed.");
+		long oldSize = shareRoot.getSize();
+
+		//The paths of the directories whose contents were changed, and of their ancestors within the share (the share root is the empty path).
+		//Paths rather than entries are kept, as entries can be erased (and their storage reused) by later changes in the delta.
+		HashMap<String, String[]> touched = new HashMap<String, String[]>();
+		for (Change change : delta.changes) {
+			String[] bits = FileListDelta.splitPath(change.path);
+			FilesystemEntry dir = shareRoot;
+			for (int i=0; i<bits.length-1; i++) {
+				dir = dir.getNamedChild(bits[i]);
+				if (dir == null || !dir.isDirectory()) throw new IllegalArgumentException("The delta doesn't match the listed share at: "+change.path);
+			}
+			String leaf = bits[bits.length-1];
+			FilesystemEntry existing = dir.getNamedChild(leaf);
+			if (existing != null) existing.erase();
+			if (!change.isRemoval()) {
+				if (change.item.isDirectory()) {
+					importFileListIntoFilesystem(change.item, dir.createChildDirectory(leaf, share), share);
+				} else if (isImportableFile(change.item)) {
+					dir.createChildEntry(leaf, change.item.hash, change.item.size, 1, share);
+				}
+			}
+			for (int i=0; i<bits.length; i++) {
+				String[] ancestor = Arrays.copyOf(bits, i);
+				touched.put(Util.join(ancestor, "/"), ancestor);
+			}
+		}
+
+		//Every changed directory and ancestor that still exists needs its totals recalculating, deepest first:
+		ArrayList<String[]> ordered = new ArrayList<String[]>(touched.values());
+		Collections.sort(ordered, new Comparator<String[]>() {
+			@Override
+			public int compare(String[] o1, String[] o2) {
+				return o2.length-o1.length;
+			}
+		});
+		for (String[] path : ordered) {
+			FilesystemEntry dir = shareRoot;
+			for (int i=0; dir!=null && i<path.length; i++) dir = dir.getNamedChild(path[i]);
+			if (dir != null && dir.isDirectory()) recalculateTotals(dir); //it might have been removed by a later change.
+		}
+
+		clientRoot.adjustSize(shareRoot.getSize()-oldSize);
+		getRootEntry().adjustSize(shareRoot.getSize()-oldSize);
+	}
+
+	/**
+	 * Returns the filesize size of all items it contains.
+	 * @param xmlItem
+	 * @param fsItem
+	 * @return
+	 */
+	private long importFileListIntoFilesystem(Item onItem, FilesystemEntry fsItem, Share share) {
+		int linksAcc = 0;
+		long sizeAcc = 0L;
+
+		for (Item childItem : onItem.children.values()) {
+			if (childItem.children!=null) {
+				sizeAcc += importFileListIntoFilesystem(childItem, fsItem.createChildDirectory(childItem.name, share), share);
+				linksAcc+=1;
+			} else {
+				if (!isImportableFile(childItem)) continue;
+				sizeAcc += childItem.size;
+				fsItem.createChildEntry(childItem.name, childItem.hash, childItem.size, 1, share);
+			}
+		}
+
+		fsItem.adjustLinkCount(linksAcc);
+		fsItem.adjustSize(sizeAcc);
+		return sizeAcc;
+	}
+
+	@Override
+	public FilesystemEntry lookupFromPath(String path) {
+		String[] splitString = path.split("/");
+		FilesystemEntry ret = getRootEntry();
+
+		int onIndex = 0;
+		while (onIndex < splitString.length) {
+			try {
+				if (splitString[onIndex].equals("")) {
+					continue;
+				}
+				ret = ret.getNamedChild(splitString[onIndex]);
+				//If any path element is not found then just return "not found"
+				if (ret == null) return null;
+			} finally {
+				onIndex++;
+			}
+		}
+
+		return ret;
+	}
+
+	@Override
+	public long totalSize() {
+		return getRootEntry().getSize();
+	}
+
+	private AtomicLong estimatedTransfer = new AtomicLong();
+
+	@Override
+	public long getEstimatedTransfer() {
+		return estimatedTransfer.get();
+	}
+
+	@Override
+	public void incrementSent(long addSize) {
+		estimatedTransfer.addAndGet(addSize);
+	}
+}
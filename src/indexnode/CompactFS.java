@@ -0,0 +1,958 @@
+package indexnode;
+
+import indexnode.IndexNode.Share;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import common.FS2Constants;
+import common.HttpUtil;
+import common.Logger;
+import common.Util;
+
+/**
+ * An implementation of a FS2 filesystem that packs the whole tree into primitive arrays.
+ *
+ * Each entry is a node number. A node's parent, first child and siblings are node numbers, its name is an offset
+ * into a shared pool of UTF-8 bytes, and a file's hash is stored as two longs rather than a 32 character string.
+ * Children are found by name through a single open addressing table keyed on (parent, name) and files with the
+ * same hash are chained together from a second table keyed on the hash, so there are no per-entry maps or sets.
+ *
+ * FilesystemEntries handed out are lightweight views onto a node: they are created as needed and compare equal when
+ * they view the same node. Nodes are reused once erased, so each node has a generation that views check, and a view
+ * kept after its entry was erased behaves as an empty, erased entry rather than as whatever reused the node.
+ *
+ * Only files with 32 digit lower case hex hashes can be stored.
+ *
+ * All structure is guarded by a single read/write lock.
+ *
+ * @author gary
+ */
+public class CompactFS extends AbstractFilesystem {
+
+	/**
+	 * A view onto a single node of the filesystem.
+	 *
+	 * The view remembers the generation of its node, so once the node is freed (and perhaps reused for another entry)
+	 * the view behaves as an erased entry: it has no name, size, parent, share or children, rather than showing
+	 * whatever the node holds now.
+	 */
+	private class CompactEntry implements FilesystemEntry, KeywordIndex.Indexable {
+		private final int node;
+		private final int generation;
+
+		/** Must be called with the lock held. */
+		CompactEntry(int node) {
+			this.node = node;
+			this.generation = generations[node];
+		}
+
+		/** true if this view's node hasn't been freed since the view was made. Must be called with the lock held. */
+		private boolean live() {
+			return (flags[node] & IN_USE)!=0 && generations[node]==generation;
+		}
+
+		@Override
+		public boolean isRoot() {
+			lock.readLock().lock();
+			try {
+				return live() && parents[node]==NONE;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		@Override
+		public String getName() {
+			lock.readLock().lock();
+			try {
+				return (live() ? readName(node) : "");
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		@Override
+		public long getSize() {
+			lock.readLock().lock();
+			try {
+				return (live() ? sizes[node] : 0L);
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		@Override
+		public int getLinkCount() {
+			lock.readLock().lock();
+			try {
+				return (live() ? links[node] : 0);
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		@Override
+		public FilesystemEntry getParent() {
+			lock.readLock().lock();
+			try {
+				return (live() ? view(parents[node]) : null);
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		@Override
+		public String getHash() {
+			lock.readLock().lock();
+			try {
+				return (live() ? hashString(node) : "");
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		@Override
+		public Share getShare() {
+			lock.readLock().lock();
+			try {
+				return (live() ? shareTable[shareIds[node]] : null);
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		@Override
+		public boolean isDirectory() {
+			lock.readLock().lock();
+			try {
+				return live() && isDirectoryNode(node);
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		@Override
+		public Collection<CompactEntry> getAlternatives() {
+			LinkedList<CompactEntry> ret = new LinkedList<CompactEntry>();
+			lock.readLock().lock();
+			try {
+				if (!live() || isDirectoryNode(node)) return ret;
+				for (int alt=hashHead(node); alt!=NONE; alt=nextSameHash[alt]) ret.add(view(alt));
+			} finally {
+				lock.readLock().unlock();
+			}
+			return ret;
+		}
+
+		@Override
+		public Map<String, CompactEntry> getChildren() {
+			LinkedHashMap<String, CompactEntry> ret = new LinkedHashMap<String, CompactEntry>();
+			lock.readLock().lock();
+			try {
+				if (!live()) return ret;
+				for (int child=firstChildren[node]; child!=NONE; child=nextSiblings[child]) {
+					ret.put(readName(child), view(child));
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			return ret;
+		}
+
+		@Override
+		public FilesystemEntry getNamedChild(String name) {
+			byte[] nameBytes = encodeName(name);
+			lock.readLock().lock();
+			try {
+				return (live() ? view(findChild(node, nameBytes)) : null);
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		@Override
+		public String getPath(boolean urlEncode, boolean includeOwner) throws UnsupportedEncodingException {
+			LinkedList<String> pathBits = new LinkedList<String>();
+			lock.readLock().lock();
+			try {
+				if (!live()) return "";
+				//The ancestors of a live node are live too, they'd have been freed with it.
+				for (int current=node; parents[current]!=NONE; current=parents[current]) {
+					pathBits.addFirst(readName(current));
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			if (!includeOwner && !pathBits.isEmpty()) pathBits.remove();
+			if (urlEncode) {
+				LinkedList<String> encoded = new LinkedList<String>();
+				for (String bit : pathBits) encoded.add(HttpUtil.urlEncode(bit));
+				pathBits = encoded;
+			}
+			return Util.join(pathBits.toArray(), "/");
+		}
+
+		@Override
+		public String getURL() {
+			try {
+				Share share = getShare();
+				if (share==null) return "";
+				return "http://"+share.getOwner().getURLAddress()+"/shares/"+getPath(true, false);
+			} catch (Exception e){
+				Logger.severe(e.toString());
+				Logger.log(e);
+				return "";
+			}
+		}
+
+		@Override
+		public void adjustSize(long size) {
+			lock.writeLock().lock();
+			try {
+				if (!live()) return;
+				sizes[node] += size;
+				//The first file of each hash is the one counted in the unique size:
+				if (!isDirectoryNode(node) && hashHead(node)==node) uniqueBytes += size;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		@Override
+		public void adjustLinkCount(int count) {
+			lock.writeLock().lock();
+			try {
+				if (!live()) return;
+				links[node] += count;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		@Override
+		//Does not update sizes or link counts!
+		public FilesystemEntry createChildEntry(String name, String hash, long size, int links, Share share) {
+			return createNode(this, name, hash, size, links, share);
+		}
+
+		@Override
+		public FilesystemEntry createChildDirectory(String name, Share share) {
+			return createChildEntry(name, "", 0, 2, share);
+		}
+
+		@Override
+		/**
+		 * Erases this entry and recursively all descendant entries.
+		 * Does not update link counts or sizes!
+		 */
+		public void erase() {
+			lock.writeLock().lock();
+			try {
+				if (live()) eraseNode(node);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		@Override
+		public String getOwnerAlias() {
+			Share share = getShare();
+			return (share==null ? "" : share.getOwner().getAlias());
+		}
+
+		@Override
+		public void rename(String newName) {
+			byte[] nameBytes = encodeName(newName);
+			lock.writeLock().lock();
+			try {
+				if (live()) renameNode(node, nameBytes);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		@Override
+		public String getIndexName() {
+			return getName();
+		}
+
+		//The document id is only ever changed by the keyword index while this filesystem's write lock is held.
+		@Override
+		public int getDocId() {
+			return docIds[node];
+		}
+
+		@Override
+		public void setDocId(int docId) {
+			docIds[node] = docId;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return (obj instanceof CompactEntry) && ((CompactEntry)obj).node==node && ((CompactEntry)obj).generation==generation && ((CompactEntry)obj).owner()==CompactFS.this;
+		}
+
+		@Override
+		public int hashCode() {
+			return node;
+		}
+
+		private CompactFS owner() {
+			return CompactFS.this;
+		}
+	}
+
+	private static final int NONE = -1;
+	private static final int EMPTY_SLOT = -1;
+	private static final int DELETED_SLOT = -2;
+
+	private static final byte IN_USE = 1;
+	private static final byte DIRECTORY = 2;
+
+	private static final int INITIAL_NODES = 1024;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	//Per node storage, indexed by node number:
+	private int[] parents = new int[INITIAL_NODES];
+	private int[] firstChildren = new int[INITIAL_NODES];
+	private int[] nextSiblings = new int[INITIAL_NODES];
+	private int[] prevSiblings = new int[INITIAL_NODES];
+	private int[] nameOffsets = new int[INITIAL_NODES];
+	private long[] sizes = new long[INITIAL_NODES];
+	private int[] links = new int[INITIAL_NODES];
+	/** two longs per node, the high then the low half of the hash. */
+	private long[] hashes = new long[INITIAL_NODES*2];
+	private int[] nextSameHash = new int[INITIAL_NODES];
+	private int[] prevSameHash = new int[INITIAL_NODES];
+	private int[] shareIds = new int[INITIAL_NODES];
+	private int[] docIds = new int[INITIAL_NODES];
+	private byte[] flags = new byte[INITIAL_NODES];
+	/** Counts the times each node has been freed, so views can tell their node has been reused. */
+	private int[] generations = new int[INITIAL_NODES];
+
+	/** the number of node numbers ever used, nodes below this may be free. */
+	private int nodesUsed = 0;
+	private int[] freeNodes = new int[64];
+	private int freeCount = 0;
+
+	/** Each name is a varint length followed by its UTF-8 bytes. */
+	private byte[] namePool = new byte[INITIAL_NODES*16];
+	private int namePoolUsed = 0;
+	private int namePoolGarbage = 0;
+
+	/** (parent, name) -> child node. */
+	private int[] childSlots = emptySlots(INITIAL_NODES*2);
+	private int childSlotsFilled = 0;
+	/** hash -> first node with that hash. */
+	private int[] hashSlots = emptySlots(INITIAL_NODES*2);
+	private int hashSlotsFilled = 0;
+
+	/** Shares are stored as small ids. Id zero is no share (client directories and the root) */
+	private Share[] shareTable = new Share[16];
+	private int[] shareRefs = new int[16];
+	private HashMap<Share, Integer> shareLookup = new HashMap<Share, Integer>();
+
+	private int fileCount = 0;
+	private int uniqueCount = 0;
+	private long uniqueBytes = 0L;
+	/** The heads of hashes with more than one file, by their number of files.*/
+	private PopularityIndex<Integer> popularity = new PopularityIndex<Integer>(2);
+
+	/**
+	 * A keyword index that stores node numbers rather than entries.
+	 */
+	private class NodeKeywordIndex extends KeywordIndex<CompactEntry> {
+		private int[] docNodes = emptySlots(INITIAL_DOCS);
+
+		@Override
+		protected void storeDoc(int id, CompactEntry entry) {
+			docNodes[id] = entry.node;
+		}
+
+		//Always called with the filesystem locked, by a search or while entries are indexed.
+		@Override
+		protected CompactEntry loadDoc(int id) {
+			return new CompactEntry(docNodes[id]);
+		}
+
+		@Override
+		protected boolean isLiveDoc(int id) {
+			return docNodes[id]!=NONE;
+		}
+
+		@Override
+		protected void clearDoc(int id) {
+			docNodes[id] = NONE;
+		}
+
+		@Override
+		protected void growDocs(int capacity) {
+			int oldLength = docNodes.length;
+			docNodes = Arrays.copyOf(docNodes, capacity);
+			Arrays.fill(docNodes, oldLength, capacity, NONE);
+		}
+	}
+
+	/** maps keywords onto the entries whose names contain them. */
+	private NodeKeywordIndex nameIndex = new NodeKeywordIndex();
+
+	private final CompactEntry root;
+
+	public CompactFS() {
+		int rootNode = allocateNode();
+		parents[rootNode] = NONE;
+		nameOffsets[rootNode] = storeName(encodeName(""));
+		firstChildren[rootNode] = NONE;
+		docIds[rootNode] = KeywordIndex.NO_DOC;
+		flags[rootNode] = IN_USE | DIRECTORY;
+		links[rootNode] = 2;
+		root = view(rootNode);
+	}
+
+	private static int[] emptySlots(int size) {
+		int[] ret = new int[size];
+		Arrays.fill(ret, EMPTY_SLOT);
+		return ret;
+	}
+
+	private CompactEntry view(int node) {
+		return (node==NONE ? null : new CompactEntry(node));
+	}
+
+	private boolean isDirectoryNode(int node) {
+		return (flags[node] & DIRECTORY)!=0;
+	}
+
+	//--- Nodes: all of these must be called with the write lock held.
+
+	private int allocateNode() {
+		if (freeCount>0) return freeNodes[--freeCount];
+		if (nodesUsed==parents.length) growNodes(parents.length+parents.length/2);
+		return nodesUsed++;
+	}
+
+	private void growNodes(int capacity) {
+		parents = Arrays.copyOf(parents, capacity);
+		firstChildren = Arrays.copyOf(firstChildren, capacity);
+		nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+		prevSiblings = Arrays.copyOf(prevSiblings, capacity);
+		nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+		sizes = Arrays.copyOf(sizes, capacity);
+		links = Arrays.copyOf(links, capacity);
+		hashes = Arrays.copyOf(hashes, capacity*2);
+		nextSameHash = Arrays.copyOf(nextSameHash, capacity);
+		prevSameHash = Arrays.copyOf(prevSameHash, capacity);
+		shareIds = Arrays.copyOf(shareIds, capacity);
+		docIds = Arrays.copyOf(docIds, capacity);
+		flags = Arrays.copyOf(flags, capacity);
+		generations = Arrays.copyOf(generations, capacity);
+	}
+
+	private CompactEntry createNode(CompactEntry parentEntry, String name, String hash, long size, int linkCount, Share share) {
+		boolean directory = hash.equals("");
+		byte[] binaryHash = null;
+		if (!directory) {
+			binaryHash = Util.hexStringToBytes(hash);
+			if (binaryHash==null || binaryHash.length!=16) throw new IllegalArgumentException("Only 32 digit lower case hex hashes can be stored: "+hash);
+		}
+		byte[] nameBytes = encodeName(name);
+		CompactEntry created;
+		lock.writeLock().lock();
+		try {
+			if (!parentEntry.live()) throw new IllegalStateException("Can't create "+name+" in an erased directory.");
+			int parent = parentEntry.node;
+			//Like a map, an entry with the same name is replaced:
+			int existing = findChild(parent, nameBytes);
+			if (existing!=NONE) eraseNode(existing);
+
+			int node = allocateNode();
+			parents[node] = parent;
+			firstChildren[node] = NONE;
+			prevSiblings[node] = NONE;
+			nextSiblings[node] = firstChildren[parent];
+			if (firstChildren[parent]!=NONE) prevSiblings[firstChildren[parent]] = node;
+			firstChildren[parent] = node;
+			nameOffsets[node] = storeName(nameBytes);
+			sizes[node] = size;
+			links[node] = linkCount;
+			shareIds[node] = shareIdFor(share);
+			docIds[node] = KeywordIndex.NO_DOC;
+			nextSameHash[node] = NONE;
+			prevSameHash[node] = NONE;
+			flags[node] = (byte)(IN_USE | (directory ? DIRECTORY : 0));
+			insertChild(node, nameBytes);
+
+			if (!directory) {
+				hashes[node*2] = bytesToLong(binaryHash, 0);
+				hashes[node*2+1] = bytesToLong(binaryHash, 8);
+				addToHashChain(node);
+				fileCount++;
+			}
+
+			created = view(node);
+			nameIndex.add(created);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		return created;
+	}
+
+	private void eraseNode(int node) {
+		lock.writeLock().lock();
+		try {
+			if ((flags[node] & IN_USE)==0) return;
+			//Unlink from our parent, descendants are freed with us so they needn't be unlinked:
+			int parent = parents[node];
+			if (parent!=NONE) {
+				if (prevSiblings[node]==NONE) {
+					firstChildren[parent] = nextSiblings[node];
+				} else {
+					nextSiblings[prevSiblings[node]] = nextSiblings[node];
+				}
+				if (nextSiblings[node]!=NONE) prevSiblings[nextSiblings[node]] = prevSiblings[node];
+			}
+			int[] stack = new int[16];
+			int depth = 0;
+			stack[depth++] = node;
+			while (depth>0) {
+				int current = stack[--depth];
+				for (int child=firstChildren[current]; child!=NONE; child=nextSiblings[child]) {
+					if (depth==stack.length) stack = Arrays.copyOf(stack, depth*2);
+					stack[depth++] = child;
+				}
+				freeNode(current);
+			}
+			if (namePoolGarbage > namePoolUsed/2 && namePoolUsed > FS2Constants.ARBITRARY_BUFFER_SIZE) compactNamePool();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void freeNode(int node) {
+		nameIndex.remove(new CompactEntry(node));
+		removeChild(node);
+		if (!isDirectoryNode(node)) {
+			removeFromHashChain(node);
+			fileCount--;
+		}
+		namePoolGarbage += nameLength(nameOffsets[node]);
+		releaseShareId(shareIds[node]);
+		flags[node] = 0;
+		generations[node]++; //views of this node are now stale.
+		if (freeCount==freeNodes.length) freeNodes = Arrays.copyOf(freeNodes, freeCount*2);
+		freeNodes[freeCount++] = node;
+	}
+
+	private void renameNode(int node, byte[] nameBytes) {
+		lock.writeLock().lock();
+		try {
+			CompactEntry entry = view(node);
+			nameIndex.remove(entry);
+			removeChild(node);
+			namePoolGarbage += nameLength(nameOffsets[node]);
+			nameOffsets[node] = storeName(nameBytes);
+			insertChild(node, nameBytes);
+			nameIndex.add(entry);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	//--- Names
+
+	private static byte[] encodeName(String name) {
+		try {
+			return name.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e); //UTF-8 is always supported.
+		}
+	}
+
+	private int storeName(byte[] name) {
+		int needed = name.length+5;
+		if (namePoolUsed+needed > namePool.length) namePool = Arrays.copyOf(namePool, Math.max(namePool.length+namePool.length/2, namePoolUsed+needed));
+		int offset = namePoolUsed;
+		int pos = offset;
+		int length = name.length;
+		while ((length & ~0x7F)!=0) {
+			namePool[pos++] = (byte)((length & 0x7F) | 0x80);
+			length >>>= 7;
+		}
+		namePool[pos++] = (byte)length;
+		System.arraycopy(name, 0, namePool, pos, name.length);
+		namePoolUsed = pos+name.length;
+		return offset;
+	}
+
+	/** Returns the byte length of the name at this offset. The bytes follow the varint length. */
+	private int nameLength(int offset) {
+		int ret = 0;
+		for (int shift=0;; shift+=7) {
+			byte b = namePool[offset++];
+			ret |= (b & 0x7F) << shift;
+			if ((b & 0x80)==0) return ret;
+		}
+	}
+
+	private int nameStart(int offset) {
+		while ((namePool[offset++] & 0x80)!=0);
+		return offset;
+	}
+
+	private String readName(int node) {
+		int offset = nameOffsets[node];
+		try {
+			return new String(namePool, nameStart(offset), nameLength(offset), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private boolean nameEquals(int node, byte[] name) {
+		int offset = nameOffsets[node];
+		if (nameLength(offset)!=name.length) return false;
+		int start = nameStart(offset);
+		for (int i=0; i<name.length; i++) {
+			if (namePool[start+i]!=name[i]) return false;
+		}
+		return true;
+	}
+
+	private static int nameHash(byte[] bytes, int start, int length) {
+		int ret = 1;
+		for (int i=start; i<start+length; i++) ret = 31*ret+bytes[i];
+		return ret;
+	}
+
+	/**
+	 * Rewrites the name pool with only the names of live nodes.
+	 */
+	private void compactNamePool() {
+		byte[] oldPool = namePool;
+		namePool = new byte[Math.max(INITIAL_NODES*16, (namePoolUsed-namePoolGarbage)*3/2)];
+		namePoolUsed = 0;
+		namePoolGarbage = 0;
+		for (int node=0; node<nodesUsed; node++) {
+			if ((flags[node] & IN_USE)==0) continue;
+			int offset = nameOffsets[node];
+			int start = offset;
+			while ((oldPool[start++] & 0x80)!=0);
+			int length = start-offset;
+			length += decodeLength(oldPool, offset);
+			if (namePoolUsed+length > namePool.length) namePool = Arrays.copyOf(namePool, Math.max(namePool.length*2, namePoolUsed+length));
+			System.arraycopy(oldPool, offset, namePool, namePoolUsed, length);
+			nameOffsets[node] = namePoolUsed;
+			namePoolUsed += length;
+		}
+	}
+
+	private static int decodeLength(byte[] pool, int offset) {
+		int ret = 0;
+		for (int shift=0;; shift+=7) {
+			byte b = pool[offset++];
+			ret |= (b & 0x7F) << shift;
+			if ((b & 0x80)==0) return ret;
+		}
+	}
+
+	//--- The (parent, name) -> child table.
+
+	private static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static int childSlotHash(int parent, int nameHash) {
+		return mix(parent*31+nameHash);
+	}
+
+	private int childSlotHash(int node) {
+		int offset = nameOffsets[node];
+		return childSlotHash(parents[node], nameHash(namePool, nameStart(offset), nameLength(offset)));
+	}
+
+	private int findChild(int parent, byte[] name) {
+		int mask = childSlots.length-1;
+		for (int slot=childSlotHash(parent, nameHash(name, 0, name.length)) & mask;; slot=(slot+1) & mask) {
+			int node = childSlots[slot];
+			if (node==EMPTY_SLOT) return NONE;
+			if (node!=DELETED_SLOT && parents[node]==parent && nameEquals(node, name)) return node;
+		}
+	}
+
+	private void insertChild(int node, byte[] name) {
+		if ((childSlotsFilled+1)*4 > childSlots.length*3) childSlots = rehash(childSlots, true);
+		int mask = childSlots.length-1;
+		int slot = childSlotHash(parents[node], nameHash(name, 0, name.length)) & mask;
+		while (childSlots[slot]>=0) slot = (slot+1) & mask;
+		if (childSlots[slot]==EMPTY_SLOT) childSlotsFilled++;
+		childSlots[slot] = node;
+	}
+
+	private void removeChild(int node) {
+		if (parents[node]==NONE) return;
+		int mask = childSlots.length-1;
+		for (int slot=childSlotHash(node) & mask; childSlots[slot]!=EMPTY_SLOT; slot=(slot+1) & mask) {
+			if (childSlots[slot]==node) {
+				childSlots[slot] = DELETED_SLOT;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds one of the tables without deleted slots, at a size suited to the live entries in it.
+	 */
+	private int[] rehash(int[] slots, boolean children) {
+		int live = 0;
+		for (int node : slots) if (node>=0) live++;
+		int size = INITIAL_NODES*2;
+		while (size < live*2) size *= 2;
+		int[] ret = emptySlots(size);
+		int mask = size-1;
+		for (int node : slots) {
+			if (node<0) continue;
+			int slot = (children ? childSlotHash(node) : hashSlotHash(node)) & mask;
+			while (ret[slot]!=EMPTY_SLOT) slot = (slot+1) & mask;
+			ret[slot] = node;
+		}
+		if (children) childSlotsFilled = live; else hashSlotsFilled = live;
+		return ret;
+	}
+
+	//--- The hash -> files table.
+
+	private static long bytesToLong(byte[] bytes, int offset) {
+		long ret = 0L;
+		for (int i=offset; i<offset+8; i++) ret = (ret << 8) | (bytes[i] & 0xFF);
+		return ret;
+	}
+
+	private String hashString(int node) {
+		if (isDirectoryNode(node)) return "";
+		byte[] bytes = new byte[16];
+		for (int half=0; half<2; half++) {
+			long value = hashes[node*2+half];
+			for (int i=7; i>=0; i--) {
+				bytes[half*8+i] = (byte)value;
+				value >>>= 8;
+			}
+		}
+		return Util.bytesToHexString(bytes);
+	}
+
+	private static int hashSlotHash(long hi, long lo) {
+		return mix((int)(hi ^ (hi >>> 32) ^ lo ^ (lo >>> 32)));
+	}
+
+	private int hashSlotHash(int node) {
+		return hashSlotHash(hashes[node*2], hashes[node*2+1]);
+	}
+
+	/** Returns the slot holding the first file with this hash, or the empty slot where it would go. */
+	private int findHashSlot(long hi, long lo) {
+		int mask = hashSlots.length-1;
+		for (int slot=hashSlotHash(hi, lo) & mask;; slot=(slot+1) & mask) {
+			int node = hashSlots[slot];
+			if (node==EMPTY_SLOT) return slot;
+			if (node!=DELETED_SLOT && hashes[node*2]==hi && hashes[node*2+1]==lo) return slot;
+		}
+	}
+
+	private int hashHead(int node) {
+		return hashSlots[findHashSlot(hashes[node*2], hashes[node*2+1])];
+	}
+
+	private void addToHashChain(int node) {
+		if ((hashSlotsFilled+1)*4 > hashSlots.length*3) hashSlots = rehash(hashSlots, false);
+		int slot = findHashSlot(hashes[node*2], hashes[node*2+1]);
+		int head = hashSlots[slot];
+		if (head==EMPTY_SLOT) {
+			//Deleted slots earlier in the probe sequence are not reused, to keep this simple.
+			hashSlots[slot] = node;
+			hashSlotsFilled++;
+			uniqueCount++;
+			uniqueBytes += sizes[node];
+		} else {
+			//Insert after the head so the head (and the unique size) doesn't change:
+			nextSameHash[node] = nextSameHash[head];
+			prevSameHash[node] = head;
+			if (nextSameHash[head]!=NONE) prevSameHash[nextSameHash[head]] = node;
+			nextSameHash[head] = node;
+			popularity.setCount(head, countSameHash(head)+1);
+		}
+	}
+
+	private void removeFromHashChain(int node) {
+		if (prevSameHash[node]!=NONE) {
+			int head = hashHead(node);
+			popularity.setCount(head, countSameHash(head)-1);
+			nextSameHash[prevSameHash[node]] = nextSameHash[node];
+			if (nextSameHash[node]!=NONE) prevSameHash[nextSameHash[node]] = prevSameHash[node];
+			return;
+		}
+		//This is the head:
+		int slot = findHashSlot(hashes[node*2], hashes[node*2+1]);
+		int next = nextSameHash[node];
+		uniqueBytes -= sizes[node];
+		if (next==NONE) {
+			hashSlots[slot] = DELETED_SLOT;
+			uniqueCount--;
+		} else {
+			hashSlots[slot] = next;
+			prevSameHash[next] = NONE;
+			uniqueBytes += sizes[next];
+			//Popularity is kept against the head:
+			popularity.setCount(next, countSameHash(node)-1);
+			popularity.setCount(node, 0);
+		}
+	}
+
+	/**
+	 * Returns the number of files in the chain that starts at this head.
+	 */
+	private int countSameHash(int head) {
+		return Math.max(1, popularity.getCount(head));
+	}
+
+	//--- Shares
+
+	private int shareIdFor(Share share) {
+		if (share==null) return 0;
+		Integer id = shareLookup.get(share);
+		if (id==null) {
+			int free = 1;
+			while (free<shareTable.length && shareTable[free]!=null) free++;
+			if (free==shareTable.length) {
+				shareTable = Arrays.copyOf(shareTable, free*2);
+				shareRefs = Arrays.copyOf(shareRefs, free*2);
+			}
+			shareTable[free] = share;
+			shareLookup.put(share, free);
+			id = free;
+		}
+		shareRefs[id]++;
+		return id;
+	}
+
+	private void releaseShareId(int id) {
+		if (id==0) return;
+		if (--shareRefs[id]==0) {
+			shareLookup.remove(shareTable[id]);
+			shareTable[id] = null;
+		}
+	}
+
+	//--- The filesystem
+
+	@Override
+	protected boolean isImportableFile(String hash, int hashVersion) {
+		return super.isImportableFile(hash, hashVersion) && Util.hexStringToBytes(hash)!=null;
+	}
+
+	@Override
+	public FilesystemEntry getRootEntry() {
+		return root;
+	}
+
+	@Override
+	public int countFiles() {
+		lock.readLock().lock();
+		try {
+			return fileCount;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int countUniqueFiles() {
+		lock.readLock().lock();
+		try {
+			return uniqueCount;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public long uniqueSize() {
+		lock.readLock().lock();
+		try {
+			return uniqueBytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Collection<CompactEntry> searchForHash(String hash) {
+		LinkedList<CompactEntry> ret = new LinkedList<CompactEntry>();
+		byte[] binaryHash = Util.hexStringToBytes(hash);
+		if (binaryHash==null || binaryHash.length!=16) return ret;
+		lock.readLock().lock();
+		try {
+			for (int alt=hashSlots[findHashSlot(bytesToLong(binaryHash, 0), bytesToLong(binaryHash, 8))]; alt>=0; alt=nextSameHash[alt]) {
+				ret.add(view(alt));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return ret;
+	}
+
+	@Override
+	public Collection<CompactEntry> searchForName(String query, int limit) {
+		//The whole search holds the read lock: the ranker reads nodes directly, and the filesystem lock must be
+		//taken before the keyword index's (as it is when entries are indexed) rather than from within it.
+		lock.readLock().lock();
+		try {
+			return nameIndex.search(query, limit, limit*FS2Constants.INDEXNODE_SEARCH_CANDIDATE_FACTOR, new KeywordIndex.Ranker<CompactEntry>() {
+				//Only one copy of identical files is returned, directories are always distinct.
+				HashSet<String> seenHashes = new HashSet<String>();
+
+				@Override
+				public boolean accept(CompactEntry candidate) {
+					int node = candidate.node;
+					if (!candidate.live()) return false;
+					return isDirectoryNode(node) || seenHashes.add(hashes[node*2]+":"+hashes[node*2+1]);
+				}
+
+				@Override
+				public int popularity(CompactEntry candidate) {
+					if (!candidate.live()) return 0;
+					if (isDirectoryNode(candidate.node)) return links[candidate.node];
+					return countSameHash(hashHead(candidate.node));
+				}
+			});
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Collection<CompactEntry> getPopularFiles(int limit) {
+		LinkedList<CompactEntry> ret = new LinkedList<CompactEntry>();
+		lock.readLock().lock();
+		try {
+			for (int head : popularity.getMostPopular(limit)) ret.add(view(head));
+			//Too few files are shared more than once, so make up the numbers with files that are shared once:
+			for (int slot=0; slot<hashSlots.length && ret.size()<limit; slot++) {
+				int head = hashSlots[slot];
+				if (head>=0 && nextSameHash[head]==NONE) ret.add(view(head));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return ret;
+	}
+}
@@ -3,21 +3,24 @@ package indexnode;
 import indexnode.IndexNode.Client;
 import indexnode.IndexNode.Share;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collection;
 
-import org.w3c.dom.Element;
-
+import common.FileListDelta;
 import common.FileList.Item;
 
 public interface Filesystem {
 
 	/**
 	 * Imports a filelist specified by a client into the filesystem.
-	 * This method is for an XML file list.
-	 * @param root The root of the share to import.
+	 * This method is for an XML file list, entries are created as the stream is read.
+	 * @param xmlList The stream containing the XML filelist, it is not closed.
 	 * @param share The share that logically represents this.
+	 * @return the revision of the list imported.
+	 * @throws IOException if the list couldn't be read, in which case nothing is imported.
 	 */
-	public abstract void importShare(Element root, Share share);
+	public abstract int importXMLShare(InputStream xmlList, Share share) throws IOException;
 
 	/**
 	 * Imports a filelist specified by a client into the filesystem.
@@ -27,6 +30,43 @@ public interface Filesystem {
 	 */
 	public abstract void importShare(Item root, Share share);
 	
+	/**
+	 * Imports a filelist specified by a client into the filesystem.
+	 * This method is for a list in the CompactFileList format, entries are created as the stream is read.
+	 * @param compactList The stream containing the list, it is not closed.
+	 * @param share The share that logically represents this.
+	 * @return the revision of the list imported.
+	 * @throws IOException if the list couldn't be read, in which case nothing is imported.
+	 */
+	public abstract int importShare(InputStream compactList, Share share) throws IOException;
+	
+	/**
+	 * Updates a share that is already in the filesystem to match a new FileList.
+	 * Only entries that have changed are recreated. If the share is not yet listed it is imported.
+	 * @param root The root of the new filelist for the share.
+	 * @param share The share that logically represents this.
+	 */
+	public abstract void updateShare(Item root, Share share);
+	
+	/**
+	 * Updates a share that is already in the filesystem to match an XML filelist, as the stream is read.
+	 * Only entries that have changed are recreated. If the share is not yet listed it is imported.
+	 * @param xmlList The stream containing the XML filelist, it is not closed.
+	 * @param share The share that logically represents this.
+	 * @return the revision of the list.
+	 * @throws IOException if the list couldn't be read. The share was then partially updated so it is removed from the filesystem altogether.
+	 */
+	public abstract int updateXMLShare(InputStream xmlList, Share share) throws IOException;
+	
+	/**
+	 * Applies the changes in a delta to a share that is already listed.
+	 * If an exception is thrown the share may have been partially updated, so it should be updated from a full filelist.
+	 * @param delta The changes from the revision of the share listed to a newer revision.
+	 * @param share The share to change.
+	 * @throws IllegalArgumentException if the delta doesn't match the share as listed.
+	 */
+	public abstract void applyShareDelta(FileListDelta delta, Share share);
+	
 	/**
 	 * Removes the specified share from the filesystem.
 	 * @param share
@@ -58,10 +98,13 @@ public interface Filesystem {
 	 * Performs a filesystem search for files that contain all of the keywords specified in their name.
 	 * The keywords are specified by a space or punctuation.
 	 * 
+	 * Results are ranked best first and only one copy of identical files is returned.
+	 * 
 	 * @param query The list of keywords, space-separated in a string.
+	 * @param limit The maximum number of results to return.
 	 * @return
 	 */
-	public abstract Collection<? extends FilesystemEntry> searchForName(String query);
+	public abstract Collection<? extends FilesystemEntry> searchForName(String query, int limit);
 
 	/**
 	 * Returns the most popular files (the files that most people possess)
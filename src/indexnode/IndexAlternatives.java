@@ -2,10 +2,12 @@ package indexnode;
 
 import java.io.IOException;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 
 import common.httpserver.HttpExchange;
 import common.httpserver.HttpHandler;
+import common.FS2Constants;
 import common.HttpUtil;
 import common.Logger;
 import common.Util;
@@ -21,6 +23,10 @@ public class IndexAlternatives implements HttpHandler {
 	 * Enables clients to find all the alternative sources for a particular file on the network.
 	 * It will only return one entry per peer, so these are real alternatives, not just alternative copies of the same file on one client
 	 * 
+	 * Many files can be asked about at once by listing their hashes (comma separated) in the 'hashes' argument, rather than giving one hash in the path.
+	 * The alternatives for every file are then in the same list, and can be told apart by their hashes.
+	 * At most INDEXNODE_MAX_BULK_ALTERNATIVES hashes are answered per request; clients are told this limit when they say hello.
+	 * 
 	 * This not intended to be humanly browsable so will look poor.
 	 */
 	@Override
@@ -29,24 +35,40 @@ public class IndexAlternatives implements HttpHandler {
 			IndexTemplate template = new IndexTemplate(exchange);
 			template.setTitle("Alternative sources...");
 			
-			//Get a copy of the list of all files with the same hash:
-			LinkedList<FilesystemEntry> results = new LinkedList<FilesystemEntry>(fs.searchForHash(HttpUtil.getPathAfterContext(exchange)));
-			
-			//Keep track of the aliases that we've allowed into the result list...
-			final HashSet<String> seenAliases = new HashSet<String>();
-			
-			//Filter the list... neat eh?
-			Util.filterList(results, new Util.Filter<FilesystemEntry>() {
-				@Override
-				public boolean accept(FilesystemEntry item) {
-					return seenAliases.add(item.getOwnerAlias());
+			LinkedHashSet<String> hashes = new LinkedHashSet<String>();
+			String hashesArg = HttpUtil.getArguments(exchange).get("hashes");
+			if (hashesArg!=null) {
+				for (String hash : hashesArg.split(",")) {
+					if (hashes.size()>=FS2Constants.INDEXNODE_MAX_BULK_ALTERNATIVES) break;
+					if (!hash.isEmpty()) hashes.add(hash);
 				}
-			});
+			} else {
+				hashes.add(HttpUtil.getPathAfterContext(exchange));
+			}
 			
-			if (!results.isEmpty()) {
-				Logger.log(exchange.getRequestHeaders().getFirst("fs2-alias")+" requested alts: "+results.getFirst().getName());
-				fs.incrementSent(results.getFirst().getSize());
+			LinkedList<FilesystemEntry> results = new LinkedList<FilesystemEntry>();
+			for (String hash : hashes) {
+				//Get a copy of the list of all files with the same hash:
+				LinkedList<FilesystemEntry> alts = new LinkedList<FilesystemEntry>(fs.searchForHash(hash));
+				
+				//Keep track of the aliases that we've allowed into the result list...
+				final HashSet<String> seenAliases = new HashSet<String>();
+				
+				//Filter the list... neat eh?
+				Util.filterList(alts, new Util.Filter<FilesystemEntry>() {
+					@Override
+					public boolean accept(FilesystemEntry item) {
+						return seenAliases.add(item.getOwnerAlias());
+					}
+				});
+				
+				if (!alts.isEmpty()) {
+					if (hashes.size()==1) Logger.log(exchange.getRequestHeaders().getFirst("fs2-alias")+" requested alts: "+alts.getFirst().getName());
+					fs.incrementSent(alts.getFirst().getSize());
+				}
+				results.addAll(alts);
 			}
+			if (hashes.size()>1) Logger.log(exchange.getRequestHeaders().getFirst("fs2-alias")+" requested alts for "+hashes.size()+" files");
 			
 			template.generateFilelist(results, true, false);
 			
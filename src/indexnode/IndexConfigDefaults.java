@@ -24,6 +24,10 @@ public class IndexConfigDefaults implements ConfigDefaults {
 		public static final String AVATAR_CACHE_PATH = "avatar-cache-path";
 		
 		public static final String FILESYSTEM_UPDATE_POOLSIZE = "tuning/fs_update_poolsize";
+		public static final String FILESYSTEM_IMPLEMENTATION = "tuning/filesystem";
+		
+		public static final String SNAPSHOT_PATH = "snapshots/path";
+		public static final String SNAPSHOT_INTERVAL = "snapshots/save-interval-minutes";
 		
 		public static final String SECURE_MODE = "security/secure-mode";
 		public static final String DHANON_TLS = "security/allow-dh-anon";
@@ -53,6 +57,13 @@ public class IndexConfigDefaults implements ConfigDefaults {
 		
 		defaults.put(IK.FILESYSTEM_UPDATE_POOLSIZE, "2");
 		comments.put(IK.FILESYSTEM_UPDATE_POOLSIZE, "The number of simultanious filesystem share-imports that can happen.");
+		defaults.put(IK.FILESYSTEM_IMPLEMENTATION, "native");
+		comments.put(IK.FILESYSTEM_IMPLEMENTATION, "how the index of shared files is stored: \"native\" uses a java object per file, \"compact\" packs files into arrays and uses much less memory for large indexnodes.");
+		
+		defaults.put(IK.SNAPSHOT_PATH, "snapshots");
+		comments.put(IK.SNAPSHOT_PATH, "specifies where copies of clients' filelists are kept so that they don't all need to be fetched again when the indexnode restarts");
+		defaults.put(IK.SNAPSHOT_INTERVAL, "10");
+		comments.put(IK.SNAPSHOT_INTERVAL, "how often (in minutes) changed shares are snapshotted. Shares are also snapshotted when the indexnode is shut down. 0 disables snapshots.");
 		
 		defaults.put(IK.SECURE_MODE, Boolean.FALSE.toString());
 		comments.put(IK.SECURE_MODE, "when true connections will only be accepted using secure sockets and clients must be registered.");
@@ -18,6 +18,7 @@ import java.net.SocketException;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -39,17 +40,18 @@ import common.httpserver.HttpExchange;
 import common.httpserver.HttpHandler;
 import common.httpserver.HttpServer;
 
+import common.CompactFileList;
 import common.Config;
 import common.FS2Constants;
 import common.FS2Filter;
 import common.FileList;
+import common.FileListDelta;
 import common.HttpUtil;
 import common.Logger;
 import common.NamedThreadFactory;
 import common.SimpleHttpHandler;
 import common.Sxml;
 import common.Util;
-import common.Sxml.SXMLException;
 
 /**
  * An implementation of an IndexNode for FS2.
@@ -106,6 +108,7 @@ public class IndexNode {
 		private void helloSuccess(HttpExchange exchange, Client cl) {
 			try {
 				exchange.getResponseHeaders().add("fs2-avatarhash", cl.getAvatarHash()); //let the client know what we think their avatar is.
+				exchange.getResponseHeaders().add("fs2-bulkalternatives", Integer.toString(FS2Constants.INDEXNODE_MAX_BULK_ALTERNATIVES)); //and how many files' alternatives it may ask for at once.
 				HttpUtil.simpleResponse(exchange, "", 200);
 			} catch (IOException e) {
 				Logger.log("While sending 'welcome' to the ungrateful bastard: "+e);
@@ -388,12 +391,15 @@ public class IndexNode {
 								int thisShareRevision = Integer.parseInt(thisElem.getAttribute("revision"));
 								ShareType type = ShareType.XML;
 								if (thisElem.getAttribute("type").equalsIgnoreCase("filelist")) type = ShareType.FILELIST;
+								//Newer clients list every format they can serve, 'type' is kept for older indexnodes:
+								if (Arrays.asList(thisElem.getAttribute("types").split(" ")).contains(CompactFileList.SHARE_TYPE)) type = ShareType.COMPACT_FILELIST;
 								//a) it still exists, so no need to kill this share
 								sharesToKill.remove(thisShareName);
 								//b) Did it exist already? If it did: update it(if needed), otherwise create it.
 								Share thisShare = shares.get(thisShareName);
 								//Logger.log("Share from client "+alias+" being reconsidered. Share name: "+thisShareName+"object: "+thisShare);
 								if (thisShare != null) {
+									thisShare.type = type;
 									refreshShare(thisShare, thisShareRevision);
 								} else {
 									addShare(thisShareName, thisShareRevision, type);
@@ -471,8 +477,7 @@ public class IndexNode {
 
 				return inS;
 			} finally {
-				InputStream es = connection.getErrorStream();
-				if (es!=null) es.close();
+				HttpUtil.drainAndClose(connection.getErrorStream());
 			}
 		}
 		
@@ -569,7 +574,7 @@ public class IndexNode {
 		}
 	}
 	
-	public enum ShareType {XML, FILELIST};
+	public enum ShareType {XML, FILELIST, COMPACT_FILELIST};
 	
 	/**
 	 * The class to represent a single share from a client.
@@ -585,6 +590,10 @@ public class IndexNode {
 			return shareUID;
 		}
 		private boolean listed = false;
+		/** The revision of the FileList that is currently in the filesystem, deltas are requested from this.*/
+		private int importedRevision = 0;
+		/** The revision of the last snapshot saved or restored of this share.*/
+		private int snapshotRevision = 0;
 
 		//Once delisted this share is defunct and may not be refreshed.
 		private boolean delisted = false;
@@ -623,8 +632,8 @@ public class IndexNode {
 		/**
 		 * Does the hard work of refreshing this share:
 		 * 1) Gets the new file list from the client
-		 * 2) Removes this share's entries from the database
-		 * 3) Adds this share's files to the database
+		 * 2) If this share is already listed, updates only the entries that have changed
+		 * 3) Otherwise adds this share's files to the database
 		 */
 		private synchronized void refreshShare() {
 			//Logger.log("Refreshing share "+name+" on "+owner.getAlias());
@@ -634,16 +643,19 @@ public class IndexNode {
 			/*
 			 * 1) Get/parse the fileList XML from the client.
 			 * 2) Set our revision to that of this filelist
-			 * 3) Remove all existing entries for this share.
-			 *  ) Find the toplevel directory in the fs for this share
-			 * 4) Add (recursively) to the filesystem, keeping a total of this sharesize.
+			 * 3) Find the toplevel directory in the fs for this share
+			 * 4) Add (recursively) to the filesystem or update the changed entries, keeping a total of this sharesize.
 			 * 5) done!
 			 */
 			try {
-				if (type==ShareType.XML) {
-					importXML();
-				} else if (type==ShareType.FILELIST) {
-					importFileList();
+				if (!listed) restoreSnapshot();
+				//A snapshot might already have the revision wanted:
+				if (importedRevision!=revision) {
+					if (type==ShareType.XML) {
+						importXML();
+					} else if (type==ShareType.FILELIST || type==ShareType.COMPACT_FILELIST) {
+						importFileList();
+					}
 				}
 				listed = true;
 			} catch (FileNotFoundException e) { 
@@ -660,8 +672,63 @@ public class IndexNode {
 			Logger.log("Refresh complete (share "+name+" on "+owner.getAlias()+")");
 		}
 		
+		/**
+		 * Lists this share from the newest snapshot we have of it that isn't newer than the client's revision.
+		 * An older snapshot is only used if the client can send us the changes since then.
+		 */
+		private void restoreSnapshot() {
+			if (snapshots==null) return;
+			int found = snapshots.find(this, revision);
+			if (found<=0 || (found!=revision && type==ShareType.XML)) return;
+			try {
+				InputStream is = snapshots.open(this, found);
+				try {
+					importedRevision = fs.importShare(is, this);
+				} finally {
+					is.close();
+				}
+				snapshotRevision = importedRevision;
+				listed = true;
+				Logger.log("Share "+name+" on "+owner.getAlias()+" restored from its snapshot of revision "+found);
+			} catch (IOException e) {
+				Logger.warn("Couldn't restore share "+name+" on "+owner.getAlias()+" from its snapshot: "+e);
+				snapshots.delete(this, -1);
+			}
+		}
+		
+		/**
+		 * Saves a snapshot of this share if it has changed since the last one.
+		 */
+		synchronized void saveSnapshot() {
+			if (snapshots==null || !listed || delisted || importedRevision<=0) return;
+			if (importedRevision==snapshotRevision) {
+				snapshots.touch(this, snapshotRevision);
+				return;
+			}
+			FilesystemEntry me = owner.getFilesystemRoot().getNamedChild(name);
+			if (me==null) return;
+			try {
+				snapshots.save(this, me, importedRevision);
+				snapshotRevision = importedRevision;
+			} catch (IOException e) {
+				Logger.warn("Couldn't save a snapshot of share "+name+" on "+owner.getAlias()+": "+e);
+			}
+		}
+		
 		private void importFileList() throws IOException {
-			URL filelistURL = new URL("http://"+owner.getURLAddress()+"/filelists/"+HttpUtil.urlEncode(name)+".FileList");
+			//If we have a recent revision listed then the changes since then should be much smaller than the whole list:
+			if (listed && importedRevision > 0) {
+				try {
+					if (importDelta()) return;
+				} catch (FileNotFoundException e) {
+					//The client no longer has the changes since our revision, this is normal.
+				} catch (Exception e) {
+					Logger.warn("Couldn't apply a delta to share "+name+" on "+owner.getAlias()+", fetching the whole filelist: "+e);
+				}
+			}
+			
+			boolean compact = (type==ShareType.COMPACT_FILELIST);
+			URL filelistURL = new URL("http://"+owner.getURLAddress()+"/filelists/"+HttpUtil.urlEncode(name)+"."+(compact ? CompactFileList.SHARE_TYPE : "FileList"));
 			if (owner.isSecure()) filelistURL = FS2Filter.getFS2SecureURL(filelistURL);
 			
 			HttpURLConnection conn = (HttpURLConnection) filelistURL.openConnection();
@@ -669,23 +736,69 @@ public class IndexNode {
 			try {
 				fs2Filter.fs2FixupURLConnectionForIndexNode(conn, owner.getCltoken());
 				is = new BufferedInputStream(conn.getInputStream());
-				FileList list = FileList.reconstruct(is);
+				if (compact && !listed) {
+					//A new compact list can go straight into the filesystem without building the whole list first:
+					importedRevision = fs.importShare(is, this);
+					return;
+				}
+				FileList list = (compact ? CompactFileList.reconstruct(is) : FileList.reconstruct(is));
 				//Logger.log("Rx'd filelist: "+list);
 				if (list==null) throw new IllegalArgumentException("A FileList object couldn't be reconstructed.");
-				if (listed) fs.delistShare(this);
-				fs.importShare(list.root, this);
+				if (listed) {
+					fs.updateShare(list.root, this);
+				} else {
+					fs.importShare(list.root, this);
+				}
+				importedRevision = list.revision;
+			} finally {
+				try {
+					if (is!=null) is.close();
+				} finally {
+					HttpUtil.drainAndClose(conn.getErrorStream());
+				}
+			}
+		}
+
+		/**
+		 * Fetches the changes to this share since the revision we have listed, and applies them to the filesystem.
+		 * @return true if the share is now up to date, false if the whole filelist must be imported.
+		 * @throws FileNotFoundException if the client doesn't have the changes since our revision.
+		 */
+		private boolean importDelta() throws IOException {
+			URL deltaURL = new URL("http://"+owner.getURLAddress()+"/filelists/"+HttpUtil.urlEncode(name)+".delta?from="+importedRevision);
+			if (owner.isSecure()) deltaURL = FS2Filter.getFS2SecureURL(deltaURL);
+			
+			HttpURLConnection conn = (HttpURLConnection) deltaURL.openConnection();
+			InputStream is = null;
+			try {
+				fs2Filter.fs2FixupURLConnectionForIndexNode(conn, owner.getCltoken());
+				is = new BufferedInputStream(conn.getInputStream());
+				FileListDelta delta = FileListDelta.reconstruct(is);
+				if (delta==null || delta.fromRevision!=importedRevision) return false;
+				//The delta must lead forward to the revision the client advertised, or we'd claim to have a list we don't:
+				int advertised = revision;
+				if (delta.toRevision<=delta.fromRevision || delta.toRevision!=advertised) {
+					Logger.warn("Delta for share "+name+" on "+owner.getAlias()+" goes from revision "+delta.fromRevision+" to "+delta.toRevision+" but "+advertised+" was advertised.");
+					return false;
+				}
+				try {
+					fs.applyShareDelta(delta, this);
+				} catch (IllegalArgumentException e) {
+					Logger.warn("Delta for share "+name+" on "+owner.getAlias()+" didn't apply: "+e.getMessage());
+					return false;
+				}
+				importedRevision = delta.toRevision;
+				return true;
 			} finally {
 				try {
 					if (is!=null) is.close();
 				} finally {
-					InputStream es = conn.getErrorStream();
-					if (es!=null) es.close();
+					HttpUtil.drainAndClose(conn.getErrorStream());
 				}
 			}
 		}
 
-		private void importXML() throws SXMLException,
-				IOException {
+		private void importXML() throws IOException {
 			URL filelistURL = new URL("http://"+owner.getURLAddress()+"/filelists/"+HttpUtil.urlEncode(name)+".xml");
 			if (owner.isSecure())filelistURL = FS2Filter.getFS2SecureURL(filelistURL);
 			
@@ -693,20 +806,26 @@ public class IndexNode {
 			InputStream is = null;
 			fs2Filter.fs2FixupURLConnectionForIndexNode(conn, owner.getCltoken());
 			try {
-				is = conn.getInputStream();
-				Sxml flXML = null;
-				flXML = new Sxml(is);
-				Element flElement = (Element)flXML.getDocument().getElementsByTagName("filelist").item(0);
-				revision = Integer.parseInt(flElement.getAttribute("revision"));
-				//Mmmm it's easy now.
-				if (listed) fs.delistShare(this);
-				fs.importShare(flElement, this);
+				is = new BufferedInputStream(conn.getInputStream());
+				//The list is parsed as it arrives, so a huge list never needs to be in memory at once:
+				if (listed) {
+					try {
+						revision = fs.updateXMLShare(is, this);
+					} catch (IOException e) {
+						//The half updated share has been removed, so it must be imported afresh:
+						listed = false;
+						importedRevision = 0;
+						throw e;
+					}
+				} else {
+					revision = fs.importXMLShare(is, this);
+				}
+				importedRevision = revision;
 			} finally {
 				try {
 					if (is!=null) is.close();
 				} finally {
-					InputStream es = conn.getErrorStream();
-					if (es!=null) es.close();
+					HttpUtil.drainAndClose(conn.getErrorStream());
 				}
 			}
 		}
@@ -757,6 +876,10 @@ public class IndexNode {
 	 */
 	private HashMap<Integer, Share> allShares = new HashMap<Integer, Share>();
 	
+	/** Copies of shares on disk so that they can be relisted quickly after a restart, null if disabled.*/
+	private ShareSnapshots snapshots;
+	private Timer snapshotTimer;
+	
 	/**
 	 * The pool of threads for refreshing shares.
 	 * It's a fixed thread pool to limit the number of threads thrashing the filesystem with massive updates at once.
@@ -829,7 +952,24 @@ public class IndexNode {
 		this.conf = conf;
 		
 		//Initialise filesystem:
-		fs = new NativeFS();
+		if (conf.getString(IK.FILESYSTEM_IMPLEMENTATION).equalsIgnoreCase("compact")) {
+			fs = new CompactFS();
+		} else {
+			fs = new NativeFS();
+		}
+		
+		//Snapshots must be ready before any clients register:
+		int snapshotInterval = conf.getInt(IK.SNAPSHOT_INTERVAL);
+		if (snapshotInterval>0) {
+			snapshots = new ShareSnapshots(new File(pathPrefix+conf.getString(IK.SNAPSHOT_PATH)));
+			snapshotTimer = new Timer("Share snapshots", true);
+			snapshotTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					saveSnapshots();
+				}
+			}, snapshotInterval*60*1000L, snapshotInterval*60*1000L);
+		}
 		
 		//Setup the the thread pool for refreshing client shares:
 		refreshSharesPool = Executors.newFixedThreadPool(conf.getInt(IK.FILESYSTEM_UPDATE_POOLSIZE), new NamedThreadFactory(true, "Share refresh"));
@@ -949,6 +1089,24 @@ public class IndexNode {
 		}
 		
 		clientLivenessTimer.cancel();
+		
+		if (snapshotTimer!=null) {
+			snapshotTimer.cancel();
+			saveSnapshots();
+		}
+	}
+	
+	/**
+	 * Snapshots every share that has changed since its last snapshot.
+	 */
+	private void saveSnapshots() {
+		ArrayList<Share> toSave;
+		synchronized (allShares) {
+			toSave = new ArrayList<Share>(allShares.values());
+		}
+		for (Share share : toSave) {
+			share.saveSnapshot();
+		}
 	}
 	
 	private void listenOnInterface(NetworkInterface if0) throws IOException, SocketException {
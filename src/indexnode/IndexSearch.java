@@ -1,10 +1,8 @@
 package indexnode;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 
 import common.httpserver.HttpExchange;
@@ -36,22 +34,8 @@ public class IndexSearch implements HttpHandler {
 				String query = args.get("q");
 				Logger.log(exchange.getRequestHeaders().getFirst("fs2-alias")+" searched for: "+query);
 				
-				Collection<? extends FilesystemEntry> res = fs.searchForName(query); //do the search
-				
-				//now we skim off INDEXNODE_SEARCH_MAX_RESULTS results, but only keeping items if they are directories or non-identical files.
-				ArrayList<FilesystemEntry> results = new ArrayList<FilesystemEntry>(FS2Constants.INDEXNODE_SEARCH_MAX_RESULTS);
-				
-				HashSet<String> alreadyHave = new HashSet<String>(FS2Constants.INDEXNODE_SEARCH_MAX_RESULTS*2);
-				
-				int itemsCopied = 0;
-				for (FilesystemEntry item : res) {
-					if (item.isDirectory() || alreadyHave.add(item.getHash())) {  //sexy :)
-						results.add(item);
-						itemsCopied++;
-					} else continue;
-					
-					if (itemsCopied>=FS2Constants.INDEXNODE_SEARCH_MAX_RESULTS) break;
-				}
+				//The filesystem ranks, limits and removes identical files for us:
+				Collection<? extends FilesystemEntry> results = fs.searchForName(query, FS2Constants.INDEXNODE_SEARCH_MAX_RESULTS);
 				
 				template.setSearchHeader(query, results.size());
 				template.generateFilelist(results, false, true);
@@ -6,6 +6,7 @@ package indexnode;
 import indexnode.IndexNode.Client;
 import indexnode.IndexNode.Share;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.Comparator;
@@ -14,6 +15,7 @@ import java.util.LinkedList;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import common.CompactListing;
 import common.FS2Constants;
 import common.HttpUtil;
 import common.Logger;
@@ -30,6 +32,8 @@ public class IndexStatistics implements HttpHandler {
 	private final IndexNode onNode;
 	private volatile long lastGenerated = 0;
 	private String cachedStatsPage = "";
+	private volatile byte[] cachedCompactStats = new byte[0];
+	private CompactListing.Writer compactStats;
 	private Document doc;
 	private Element body;
 	private IndexTemplate template;
@@ -49,6 +53,10 @@ public class IndexStatistics implements HttpHandler {
 				generateStatistics();
 			}
 		}
+		if (IndexTemplate.acceptsCompact(exchange) && cachedCompactStats.length>0) {
+			HttpUtil.simpleBinaryResponse(exchange, cachedCompactStats, 200, CompactListing.CONTENT_TYPE);
+			return;
+		}
 		synchronized (cachedStatsPage) {
 			HttpUtil.simpleResponse(exchange, cachedStatsPage, 200);
 		}
@@ -61,6 +69,8 @@ public class IndexStatistics implements HttpHandler {
 			public void run() {
 				try {
 					template = new IndexTemplate();
+					ByteArrayOutputStream compactPage = new ByteArrayOutputStream();
+					compactStats = new CompactListing.Writer(compactPage);
 					template.setTitle("FS2 statistics");
 					doc = template.doc;
 					body = template.body;
@@ -103,6 +113,8 @@ public class IndexStatistics implements HttpHandler {
 					synchronized (cachedStatsPage) {
 						cachedStatsPage = template.toString();
 					}
+					compactStats.finish();
+					cachedCompactStats = compactPage.toByteArray();
 					lastGenerated = System.currentTimeMillis();
 					
 				} catch (Exception e) {
@@ -143,14 +155,22 @@ public class IndexStatistics implements HttpHandler {
 		return ret;
 	}
 	
-	private void clientSizes(Element section) {
+	private void clientSizes(Element section) throws IOException {
 		int rank = 1;
 		for (Client client : sortedClientsBySize()) {
 			addClientStatistic(Integer.toString(rank++)+") "+client.getAlias(), Util.niceSize(getTotalClientSize(client)),Long.toString(getTotalClientSize(client)),"client-"+client.getAlias()+"-size", section, client.getAlias(), client.getAvatarHash());
 		}
 	}
 	
-	private void addClientStatistic(String name, String content, String machineReadableValue, String id, Element section, String alias, String avatarhash) {
+	/**
+	 * Adds a statistic to the page, and to the compact statistics for clients that would rather have them.
+	 */
+	private void addClientStatistic(String name, String content, String machineReadableValue, String id, Element section, String alias, String avatarhash) throws IOException {
+		if (alias!=null) {
+			compactStats.client(alias, avatarhash, Long.parseLong(machineReadableValue));
+		} else {
+			compactStats.value(id, Long.parseLong(machineReadableValue));
+		}
 		if (avatarhash!=null && !avatarhash.equals("")) {
 			Element img = doc.createElement("img");
 			img.setAttribute("src", "/avatars/"+avatarhash+".png");
@@ -169,7 +189,7 @@ public class IndexStatistics implements HttpHandler {
 		section.appendChild(doc.createElement("br"));
 	}
 	
-	private void addStatistic(String name, String content, String machineReadableValue, String id, Element section) {
+	private void addStatistic(String name, String content, String machineReadableValue, String id, Element section) throws IOException {
 		addClientStatistic(name, content, machineReadableValue, id, section, null, null);
 	}
 	
@@ -1,15 +1,16 @@
 package indexnode;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.LinkedList;
 
-import javax.xml.transform.TransformerException;
-
 import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -17,15 +18,22 @@ import org.w3c.dom.Element;
 import common.httpserver.HttpExchange;
 
 import common.ChatMessage;
+import common.CompactListing;
 import common.FS2Constants;
 import common.HttpUtil;
 import common.Logger;
 import common.Sxml;
+import common.SxmlWriter;
 import common.Util;
 import common.Sxml.SXMLException;
 
 /**
  * An output template for the indexnode.
+ * 
+ * The page is a DOM, except for filelists which are kept as rows of text and written straight out when the page is sent,
+ * as they are most of a page and would otherwise be thousands of DOM nodes.
+ * 
+ * If the request accepts CompactListing.CONTENT_TYPE then only the filelists are sent, in that format, instead of the page.
  * @author gary
  */
 public class IndexTemplate {
@@ -39,11 +47,29 @@ public class IndexTemplate {
 	private Element generationTime;
 	private Date startedGeneration = new Date();
 	private SimpleDateFormat dateFormat = new SimpleDateFormat("s.SSS");
+	private ByteArrayOutputStream compactPage;
+	private CompactListing.Writer compact;
 	
 	public IndexTemplate(HttpExchange exchange) throws SXMLException {
 		this();
 		linkBase = HttpUtil.getClientURLToServerRoot(exchange);
 		footer.appendChild(doc.createTextNode(FS2Constants.FS2_PROTOCOL_VERSION+" at "+linkBase+" on "+new Date()));
+		if (acceptsCompact(exchange)) {
+			try {
+				compactPage = new ByteArrayOutputStream(FS2Constants.ARBITRARY_BUFFER_SIZE);
+				compact = new CompactListing.Writer(compactPage);
+			} catch (IOException e) {
+				throw new SXMLException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Returns true if the client would rather have the compact listing than the page.
+	 */
+	static boolean acceptsCompact(HttpExchange exchange) {
+		String accept = exchange.getRequestHeaders().getFirst("Accept");
+		return accept!=null && accept.contains(CompactListing.CONTENT_TYPE);
 	}
 	
 	public IndexTemplate() throws SXMLException {
@@ -128,18 +154,28 @@ public class IndexTemplate {
 	 */
 	public Element linkToEntry(FilesystemEntry entry, boolean directURLs) throws UnsupportedEncodingException {
 		Element retElem = doc.createElement("a");
+		ArrayList<String> attributes = new ArrayList<String>();
+		linkAttributes(entry, directURLs, attributes);
+		for (int i=0; i<attributes.size(); i+=2) {
+			retElem.setAttribute(attributes.get(i), attributes.get(i+1));
+		}
+		return retElem;
+	}
+	
+	/**
+	 * Adds the attributes of a link to an entry to the list given, as alternating names and values.
+	 */
+	private void linkAttributes(FilesystemEntry entry, boolean directURLs, ArrayList<String> attributes) throws UnsupportedEncodingException {
 		if (entry.isDirectory()) {
 			String entryPath = entry.getPath(true, true);
-			retElem.setAttribute("href", linkBase+"browse/"+entryPath);
-			retElem.setAttribute("fs2-path", entryPath);
+			attributes.add("fs2-path");
+			attributes.add(entryPath);
+			attributes.add("href");
+			attributes.add(linkBase+"browse/"+entryPath);
 		} else {
-			if (directURLs) {
-				retElem.setAttribute("href", entry.getURL());
-			} else {
-				retElem.setAttribute("href", linkBase+"download/"+entry.getHash());
-			}
+			attributes.add("href");
+			attributes.add(directURLs ? entry.getURL() : linkBase+"download/"+entry.getHash());
 		}
-		return retElem;
 	}
 	
 	/**
@@ -179,7 +215,7 @@ public class IndexTemplate {
 	/**
 	 * Append a fileList to the body of the page:
 	 */
-	public void generateFilelist(Collection<? extends FilesystemEntry> collection, boolean directDownload, boolean parentLinkForEach) throws DOMException, UnsupportedEncodingException, SQLException {
+	public void generateFilelist(Collection<? extends FilesystemEntry> collection, boolean directDownload, boolean parentLinkForEach) throws DOMException, IOException, SQLException {
 		generateFilelist(collection, directDownload, parentLinkForEach, body);
 	}
 	
@@ -218,69 +254,138 @@ public class IndexTemplate {
 	
 	/**
 	 * Generates a filelist in the section of the page supplied.
+	 * The entries are read immediately, so the collection may be locked only for the duration of this call.
 	 * 
 	 * @param collection The files in the list
 	 * @param directDownload Direct links to clients if this is true
 	 * @param parentLinkForEach Each item has a link to its parents if this is true.
 	 * @param inSection the section to add the list to.
-	 * @throws UnsupportedEncodingException 
+	 * @throws IOException 
 	 */
-	public void generateFilelist(Collection<? extends FilesystemEntry> collection, boolean directDownload, boolean parentLinkForEach, Element inSection) throws UnsupportedEncodingException  {
+	public void generateFilelist(Collection<? extends FilesystemEntry> collection, boolean directDownload, boolean parentLinkForEach, Element inSection) throws IOException  {
+		if (compact!=null) {
+			for (FilesystemEntry file : collection) {
+				if (file.isDirectory()) {
+					compact.directory(file.getName(), file.getSize(), file.getPath(true, true), file.getLinkCount());
+				} else {
+					compact.file(file.getName(), file.getSize(), file.getHash(), file.getOwnerAlias(), file.getAlternatives().size(), directDownload ? file.getURL() : "");
+				}
+			}
+			return;
+		}
 		Element fl = doc.createElement("div");
 		inSection.appendChild(fl);
 		fl.setAttribute("id", "fs2-filelist");
 		if (collection.size() > 0) {
+			Filelist rows = new Filelist(collection.size());
 			for (FilesystemEntry file : collection) {
-				Element ForD = doc.createElement("b");
-				fl.appendChild(ForD);
-				Element newLink = linkToEntry(file, directDownload);
-				if (file.isDirectory()) {
-					newLink.setAttribute("fs2-type", "directory");
-					newLink.setAttribute("fs2-linkcount", Integer.toString(file.getLinkCount()));
-					ForD.setTextContent(">>");
-					fl.appendChild(newLink);
-				} else {
-					newLink.setAttribute("fs2-type", "file");
-					newLink.setAttribute("fs2-hash", file.getHash()); //mandatory for files
-					newLink.setAttribute("fs2-clientalias", file.getOwnerAlias());
-					int altsCount = file.getAlternatives().size();
-					newLink.setAttribute("fs2-alternativescount", Integer.toString(altsCount));
-					ForD.setTextContent("("+altsCount+")");
-					fl.appendChild(newLink);
-				}
-				newLink.setAttribute("fs2-size", Long.toString(file.getSize()));
-				newLink.setAttribute("fs2-name", file.getName());
-				newLink.setTextContent(file.getName());
-				Element info = doc.createElement("span");
-				info.setTextContent(describeEntry(file));
-				fl.appendChild(info);
-				if (parentLinkForEach) {
-					Element pLink = linkToEntry(file.getParent(), directDownload);
-					pLink.setTextContent("(parent)");
-					fl.appendChild(pLink);
-				}
-				fl.appendChild(doc.createElement("br"));
+				rows.add(file, directDownload, parentLinkForEach);
 			}
+			fl.setUserData(SxmlWriter.CONTENT_KEY, rows, null);
 		} else {
 			fl.setTextContent("There is nothing to list.");
 		}
 	}
 	
+	/**
+	 * The rows of a filelist, which are written out as they would have been if built in the DOM.
+	 */
+	private class Filelist implements SxmlWriter.Content {
+		private class Row {
+			String marker;
+			String name;
+			String[] link;
+			String info;
+			String[] parentLink;
+		}
+		
+		private ArrayList<Row> rows;
+		
+		Filelist(int size) {
+			rows = new ArrayList<Row>(size);
+		}
+		
+		void add(FilesystemEntry file, boolean directDownload, boolean parentLink) throws UnsupportedEncodingException {
+			Row row = new Row();
+			ArrayList<String> link = new ArrayList<String>(16);
+			if (file.isDirectory()) {
+				row.marker = ">>";
+				link.add("fs2-linkcount");
+				link.add(Integer.toString(file.getLinkCount()));
+				link.add("fs2-type");
+				link.add("directory");
+			} else {
+				int altsCount = file.getAlternatives().size();
+				row.marker = "("+altsCount+")";
+				link.add("fs2-alternativescount");
+				link.add(Integer.toString(altsCount));
+				link.add("fs2-clientalias");
+				link.add(file.getOwnerAlias());
+				link.add("fs2-hash");
+				link.add(file.getHash()); //mandatory for files
+				link.add("fs2-type");
+				link.add("file");
+			}
+			row.name = file.getName();
+			link.add("fs2-size");
+			link.add(Long.toString(file.getSize()));
+			link.add("fs2-name");
+			link.add(row.name);
+			linkAttributes(file, directDownload, link);
+			row.link = link.toArray(new String[link.size()]);
+			row.info = describeEntry(file);
+			if (parentLink) {
+				link.clear();
+				linkAttributes(file.getParent(), directDownload, link);
+				row.parentLink = link.toArray(new String[link.size()]);
+			}
+			rows.add(row);
+		}
+		
+		@Override
+		public void write(SxmlWriter out) throws IOException {
+			for (Row row : rows) {
+				out.element("b", row.marker);
+				out.element("a", row.name, row.link);
+				out.element("span", row.info);
+				if (row.parentLink!=null) out.element("a", "(parent)", row.parentLink);
+				out.element("br", null);
+			}
+		}
+	}
+	
 	/**
 	 * Send this template to the client with a success code and close the connections.
 	 * @param exchange
 	 * @throws IOException
-	 * @throws TransformerException
 	 */
 	public void sendToClient(HttpExchange exchange) throws IOException {
-		HttpUtil.simpleResponse(exchange, toString(), 200);
+		if (compact!=null) {
+			compact.finish();
+			HttpUtil.simpleBinaryResponse(exchange, compactPage.toByteArray(), 200, CompactListing.CONTENT_TYPE);
+			return;
+		}
+		ByteArrayOutputStream page = new ByteArrayOutputStream(FS2Constants.ARBITRARY_BUFFER_SIZE);
+		write(page);
+		HttpUtil.simpleBinaryResponse(exchange, page.toByteArray(), 200);
 	}
 	
-	public String toString() {
+	/**
+	 * Writes this page to the stream given as UTF-8.
+	 * @param os
+	 * @throws IOException
+	 */
+	public void write(OutputStream os) throws IOException {
 		String generationTime = ", generation time: " + dateFormat.format(new Date((new Date()).getTime() - startedGeneration.getTime())) +"s";
 		this.generationTime.setTextContent(generationTime);
+		new SxmlWriter(os, true, xml.getIndentAmount()).writeDocument(doc, xml.getDoctypePublic(), xml.getDoctypeSystem());
+	}
+	
+	public String toString() {
 		try {
-			return xml.generateString(true);
+			ByteArrayOutputStream page = new ByteArrayOutputStream(FS2Constants.ARBITRARY_BUFFER_SIZE);
+			write(page);
+			return page.toString("UTF-8");
 		} catch (Exception e) {
 			Logger.log(e);
 			return "";
@@ -0,0 +1,398 @@
+package indexnode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An inverted index from filename keywords onto the entries that contain them.
+ *
+ * Every indexed entry is given a document id. Ids are handed out in ascending order and never reused until the
+ * whole index is renumbered, so each posting list is a sorted int array that is only ever appended to.
+ * Removals are lazy: the document slot is cleared and the posting lists are compacted once they are mostly dead.
+ * Renumbering the whole index is prepared without blocking searches.
+ *
+ * Searches intersect the posting lists smallest first, stop once enough candidates have been found,
+ * and then rank those candidates.
+ *
+ * Documents are held in an object array by default. Subclasses can store them more compactly by overriding the
+ * document storage methods.
+ *
+ * @author gary
+ * @param <E> The type of entry indexed.
+ */
+public class KeywordIndex<E extends KeywordIndex.Indexable> {
+
+	/**
+	 * Something that can be placed into a keyword index.
+	 * The document id is owned by the index, implementors should just store it.
+	 */
+	public interface Indexable {
+		/** The text to extract keywords from. */
+		String getIndexName();
+		int getDocId();
+		void setDocId(int docId);
+	}
+
+	/**
+	 * Supplies the information the index needs to filter and rank search candidates.
+	 * @param <E>
+	 */
+	public interface Ranker<E> {
+		/**
+		 * Returns true if this candidate may appear in the results.
+		 * This is called on candidates in document order and may keep state (to remove duplicates for example)
+		 */
+		boolean accept(E candidate);
+
+		/**
+		 * Returns the popularity of an entry. More popular entries are ranked higher when they are equally relevant.
+		 */
+		int popularity(E candidate);
+	}
+
+	/** The id used by entries that are not in the index. */
+	public static final int NO_DOC = -1;
+
+	/** Posting lists with fewer entries than this are never compacted, it's not worth it. */
+	private static final int MIN_COMPACTION_SIZE = 32;
+
+	private static final String KEYWORD_SPLIT_REGEX = "\\p{Punct}|[ \\t]";
+
+	/**
+	 * A sorted list of document ids for a single keyword.
+	 */
+	private static class Postings {
+		int[] ids = new int[4];
+		int size = 0;
+		/** the number of ids in this list that belong to removed documents. */
+		int dead = 0;
+
+		void append(int id) {
+			if (size==ids.length) ids = Arrays.copyOf(ids, size*2);
+			ids[size++] = id;
+		}
+
+		int live() {
+			return size-dead;
+		}
+
+		/**
+		 * Returns the position of the first id >= target, starting at from.
+		 * Gallops forward then binary searches, so skipping through a long list is cheap.
+		 */
+		int seek(int from, int target) {
+			if (from>=size || ids[from]>=target) return from;
+			int lo = from;
+			int step = 1;
+			while (lo+step < size && ids[lo+step] < target) {
+				lo += step;
+				step *= 2;
+			}
+			//ids[lo] is too small, the answer is in (lo, hi]
+			int hi = Math.min(lo+step, size);
+			lo++;
+			while (lo < hi) {
+				int mid = (lo+hi) >>> 1;
+				if (ids[mid] < target) lo = mid+1; else hi = mid;
+			}
+			return lo;
+		}
+	}
+
+	private final HashMap<String, Postings> terms = new HashMap<String, Postings>();
+	/** The number of document slots an index starts with. Subclasses storing documents must start with this many.*/
+	protected static final int INITIAL_DOCS = 1024;
+
+	private Object[] docs = new Object[INITIAL_DOCS];
+	/** The number of distinct keywords in each document, used to score coverage.*/
+	private short[] docTermCounts = new short[INITIAL_DOCS];
+	private int nextDoc = 0;
+	private int liveDocs = 0;
+	/** Readers hold the read lock. Writers hold the writeMutex throughout and the write lock while changing anything readers see.*/
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Object writeMutex = new Object();
+
+	/**
+	 * Gets the distinct, non-empty keywords from a filename or a query.
+	 * @param input
+	 * @return
+	 */
+	public static String[] getKeywords(String input) {
+		LinkedHashSet<String> ret = new LinkedHashSet<String>();
+		for (String keyword : input.toLowerCase().split(KEYWORD_SPLIT_REGEX)) {
+			if (keyword.length()>0) ret.add(keyword);
+		}
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	/**
+	 * Adds an entry to the index under the keywords of its name.
+	 * The entry must not already be in the index.
+	 * @param entry
+	 */
+	public void add(E entry) {
+		String[] keywords = getKeywords(entry.getIndexName());
+		synchronized (writeMutex) {
+			if (nextDoc==docTermCounts.length) makeRoom();
+			addLocked(entry, keywords);
+		}
+	}
+
+	private void addLocked(E entry, String[] keywords) {
+		lock.writeLock().lock();
+		try {
+			int id = nextDoc++;
+			storeDoc(id, entry);
+			docTermCounts[id] = (short)Math.min(keywords.length, Short.MAX_VALUE);
+			liveDocs++;
+			entry.setDocId(id);
+			for (String keyword : keywords) {
+				Postings p = terms.get(keyword);
+				if (p==null) {
+					p = new Postings();
+					terms.put(keyword, p);
+				}
+				p.append(id);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes an entry from the index. The entry's name must not have changed since it was added.
+	 * Does nothing if the entry is not indexed.
+	 * @param entry
+	 */
+	public void remove(E entry) {
+		String[] keywords = getKeywords(entry.getIndexName());
+		synchronized (writeMutex) {
+			removeLocked(entry, keywords);
+		}
+	}
+
+	private void removeLocked(E entry, String[] keywords) {
+		lock.writeLock().lock();
+		try {
+			int id = entry.getDocId();
+			if (id==NO_DOC || !isLiveDoc(id) || !entry.equals(loadDoc(id))) return;
+			clearDoc(id);
+			liveDocs--;
+			entry.setDocId(NO_DOC);
+			for (String keyword : keywords) {
+				Postings p = terms.get(keyword);
+				if (p==null) continue;
+				p.dead++;
+				if (p.live()==0) {
+					terms.remove(keyword);
+				} else if (p.size>=MIN_COMPACTION_SIZE && p.dead*2>p.size) {
+					compact(p);
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of distinct keywords in the index.
+	 */
+	public int countKeywords() {
+		lock.readLock().lock();
+		try {
+			return terms.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Searches for entries that contain every keyword in the query.
+	 *
+	 * At most candidateLimit accepted matches are considered, these are ranked by the fraction of each entry's
+	 * keywords that the query covered, then by popularity, and the best 'limit' of them are returned.
+	 * The full set of matches is never built.
+	 *
+	 * @param query The keywords, separated by spaces or punctuation.
+	 * @param limit The maximum number of results to return.
+	 * @param candidateLimit How many matches to consider for ranking. Must be at least limit.
+	 * @param ranker filters and ranks the candidates.
+	 * @return The ranked results, best first.
+	 */
+	public List<E> search(String query, int limit, int candidateLimit, final Ranker<? super E> ranker) {
+		String[] keywords = getKeywords(query);
+		final int queryTerms = keywords.length;
+		ArrayList<E> candidates = new ArrayList<E>();
+		final HashMap<E, Float> coverage = new HashMap<E, Float>();
+		if (queryTerms==0) return candidates;
+
+		lock.readLock().lock();
+		try {
+			Postings[] lists = new Postings[queryTerms];
+			for (int i=0; i<queryTerms; i++) {
+				lists[i] = terms.get(keywords[i]);
+				//A keyword that matches nothing means the whole query matches nothing.
+				if (lists[i]==null) return candidates;
+			}
+			//Intersect from the shortest list so that the driving loop is as short as possible:
+			Arrays.sort(lists, new Comparator<Postings>() {
+				@Override
+				public int compare(Postings o1, Postings o2) {
+					return o1.size-o2.size;
+				}
+			});
+			int[] cursors = new int[queryTerms];
+			Postings driver = lists[0];
+
+			nextCandidate:
+			for (int d=0; d<driver.size && candidates.size()<candidateLimit; d++) {
+				int id = driver.ids[d];
+				if (!isLiveDoc(id)) continue;
+				for (int l=1; l<queryTerms; l++) {
+					Postings p = lists[l];
+					cursors[l] = p.seek(cursors[l], id);
+					//One list has been exhausted so there can be no more matches at all.
+					if (cursors[l]==p.size) break nextCandidate;
+					if (p.ids[cursors[l]]!=id) continue nextCandidate;
+				}
+				E candidate = loadDoc(id);
+				if (!ranker.accept(candidate)) continue;
+				candidates.add(candidate);
+				coverage.put(candidate, (float)queryTerms/Math.max(queryTerms, docTermCounts[id]));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		//Rank outside of the lock, popularity might be expensive.
+		final HashMap<E, Integer> popularity = new HashMap<E, Integer>();
+		for (E candidate : candidates) popularity.put(candidate, ranker.popularity(candidate));
+		Collections.sort(candidates, new Comparator<E>() {
+			@Override
+			public int compare(E o1, E o2) {
+				int c = Float.compare(coverage.get(o2), coverage.get(o1));
+				if (c!=0) return c;
+				return popularity.get(o2)-popularity.get(o1);
+			}
+		});
+
+		return (candidates.size()>limit ? new ArrayList<E>(candidates.subList(0, limit)) : candidates);
+	}
+
+	/**
+	 * Removes the ids of removed documents from a posting list.
+	 * Must hold the write lock.
+	 */
+	private void compact(Postings p) {
+		int out = 0;
+		for (int i=0; i<p.size; i++) {
+			if (isLiveDoc(p.ids[i])) p.ids[out++] = p.ids[i];
+		}
+		p.size = out;
+		p.dead = 0;
+		if (p.ids.length > Math.max(4, out*2)) p.ids = Arrays.copyOf(p.ids, Math.max(4, out));
+	}
+
+	/**
+	 * Called when the document table is full: either grows it or, if most of it is dead,
+	 * renumbers all live documents (preserving order) and rewrites every posting list.
+	 *
+	 * Must hold the writeMutex but not the lock: the posting lists are rewritten into new arrays while searches
+	 * carry on with the old ones, then the lock is only held to move the documents and swap the arrays in.
+	 */
+	private void makeRoom() {
+		if (liveDocs*2 > docTermCounts.length) {
+			lock.writeLock().lock();
+			try {
+				growDocs(docTermCounts.length*2);
+				docTermCounts = Arrays.copyOf(docTermCounts, docTermCounts.length*2);
+			} finally {
+				lock.writeLock().unlock();
+			}
+			return;
+		}
+		//Renumber: old ids map onto new ids in the same order, so posting lists stay sorted.
+		int[] newIds = new int[nextDoc];
+		int out = 0;
+		for (int i=0; i<nextDoc; i++) {
+			newIds[i] = (isLiveDoc(i) ? out++ : NO_DOC);
+		}
+		ArrayList<Postings> lists = new ArrayList<Postings>(terms.values());
+		int[][] rewritten = new int[lists.size()][];
+		int[] rewrittenSizes = new int[lists.size()];
+		for (int l=0; l<rewritten.length; l++) {
+			Postings p = lists.get(l);
+			int[] ids = new int[Math.max(4, p.live())];
+			int pout = 0;
+			for (int i=0; i<p.size; i++) {
+				int mapped = newIds[p.ids[i]];
+				if (mapped!=NO_DOC) ids[pout++] = mapped;
+			}
+			rewritten[l] = ids;
+			rewrittenSizes[l] = pout;
+		}
+
+		lock.writeLock().lock();
+		try {
+			for (int i=0; i<nextDoc; i++) {
+				if (newIds[i]==NO_DOC || newIds[i]==i) continue;
+				E entry = loadDoc(i);
+				storeDoc(newIds[i], entry);
+				docTermCounts[newIds[i]] = docTermCounts[i];
+				entry.setDocId(newIds[i]);
+			}
+			for (int i=out; i<nextDoc; i++) clearDoc(i);
+			nextDoc = out;
+			for (int l=0; l<rewritten.length; l++) {
+				Postings p = lists.get(l);
+				p.ids = rewritten[l];
+				p.size = rewrittenSizes[l];
+				p.dead = 0;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Puts an entry into a document slot. Called with the write lock held.
+	 */
+	protected void storeDoc(int id, E entry) {
+		docs[id] = entry;
+	}
+
+	/**
+	 * Gets the entry in a live document slot. Called with at least the read lock held.
+	 */
+	@SuppressWarnings("unchecked")
+	protected E loadDoc(int id) {
+		return (E)docs[id];
+	}
+
+	/**
+	 * Returns true if the document slot holds an entry. Called with at least the read lock held.
+	 */
+	protected boolean isLiveDoc(int id) {
+		return docs[id]!=null;
+	}
+
+	/**
+	 * Empties a document slot. Called with the write lock held.
+	 */
+	protected void clearDoc(int id) {
+		docs[id] = null;
+	}
+
+	/**
+	 * Makes room for at least this many document slots. Called with the write lock held.
+	 */
+	protected void growDocs(int capacity) {
+		docs = Arrays.copyOf(docs, capacity);
+	}
+}
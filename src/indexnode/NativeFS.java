@@ -1,36 +1,38 @@
 package indexnode;
 
-import indexnode.IndexNode.Client;
 import indexnode.IndexNode.Share;
 
 import java.io.UnsupportedEncodingException;
-import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
-
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import common.FS2Constants;
 import common.HttpUtil;
 import common.Logger;
 import common.Util;
-import common.FileList.Item;
 
 /**
  * An implementation of a FS2 filesystem that uses native java objects for storage and search.
  * 
- * TODO: remove grand mutexes and replace with ReadWriteLocks. (mostly for indices)
+ * The hash index is a concurrent map of concurrent sets and the keyword index uses a read/write lock,
+ * so searches and downloads are not blocked by shares being imported.
  * 
  * @author gary
  *
  */
-public class NativeFS implements Filesystem {
+public class NativeFS extends AbstractFilesystem {
+
+	private static final int HASH_LOCK_STRIPES = 64;
 
 	/**
 	 * An implementation of Filesystem entry that does not involve SQL.
@@ -38,7 +40,7 @@ public class NativeFS implements Filesystem {
 	 * @author gary
 	 *
 	 */
-	public class NativeEntry implements FilesystemEntry {
+	public class NativeEntry implements FilesystemEntry, KeywordIndex.Indexable {
 
 		private HashMap<String, NativeEntry> children = new HashMap<String, NativeEntry>();
 		private String name = "";
@@ -47,6 +49,7 @@ public class NativeFS implements Filesystem {
 		private NativeEntry parent = null;
 		private String hash = "";
 		private Share share = null;
+		private int docId = KeywordIndex.NO_DOC;
 		
 		public NativeEntry(NativeEntry parent) {
 			this.parent = parent;
@@ -84,12 +87,10 @@ public class NativeFS implements Filesystem {
 			//Now update the indices for this filesystem:
 			if (!newChild.isDirectory()) {
 				addHashIndex(newChild);
-				synchronized(count) {
-					count++;
-				}
+				count.incrementAndGet();
 			}
 			
-			addToNameIndex(newChild);
+			nameIndex.add(newChild);
 			
 			//Child is now in the filesystem.
 			
@@ -105,7 +106,7 @@ public class NativeFS implements Filesystem {
 			synchronized (parent.children) {
 				parent.children.remove(this.name);
 			}
-			removeFromNameIndex(this);
+			nameIndex.remove(this);
 			if (isDirectory()) {
 				Object[] childs = null;
 				//Copy the list of children because they will remove themselves from our hashtable when they are erased.
@@ -117,17 +118,14 @@ public class NativeFS implements Filesystem {
 				}
 			} else {
 				removeFromHashIndex(this);
-				synchronized (count) {
-					count--;
-				}
+				count.decrementAndGet();
 			}
 		}
 
 		@Override
 		public Collection<NativeEntry> getAlternatives() {
-			synchronized (hashIndex) {
-				return hashIndex.get(hash);
-			}
+			HashFiles hf = hashIndex.get(hash);
+			return (hf == null ? null : hf.files);
 		}
 
 		@Override
@@ -228,328 +226,168 @@ public class NativeFS implements Filesystem {
 				parent.children.remove(name);
 				parent.children.put(newName, this);
 			}
-			removeFromNameIndex(this);
+			nameIndex.remove(this);
 			name = newName;
-			addToNameIndex(this);
+			nameIndex.add(this);
 		}
 
-	}
+		@Override
+		public String getIndexName() {
+			return name;
+		}
 
-	/**Used to lookup files by hash quickly:*/
-	private HashMap<String, HashSet<NativeEntry>> hashIndex  = new HashMap<String, HashSet<NativeEntry>>();
-	private void addHashIndex(NativeEntry entry) {
-		//Initialise this hash entry if it doesn't have a set yet:
-		synchronized (hashIndex) {
-			HashSet<NativeEntry> set = hashIndex.get(entry.hash);
-			if (set == null) {
-				set = new HashSet<NativeEntry>();
-				hashIndex.put(entry.hash,set);
-			}
-			set.add(entry);
+		@Override
+		public int getDocId() {
+			return docId;
 		}
-	}
-	
-	private void removeFromHashIndex(NativeEntry entry) {
-		synchronized (hashIndex) {
-			HashSet<NativeEntry> set = hashIndex.get(entry.hash);
-			set.remove(entry);
-			//Remove empty sets so that they may be garbage collected later:
-			if (set.size() == 0) hashIndex.remove(entry.hash);
+
+		@Override
+		public void setDocId(int docId) {
+			this.docId = docId;
 		}
+
 	}
-	
-	/** maps keywords onto sets of entries. */
-	private HashMap<String, HashSet<NativeEntry>> nameIndex  = new HashMap<String, HashSet<NativeEntry>>();
-	private final String keywordSplitRegex = "\\p{Punct}|[ \\t]";
-	/**
-	 * Gets an array of keywords from a filename or a query.
-	 * @param input
-	 * @return
-	 */
-	private String[] getKeywords(String input) {
-		return input.toLowerCase().split(keywordSplitRegex);
-	}
+
 	/**
-	 * Adds the keywords expressed by the filename of this entry to the keyword index.
-	 * @param entry
+	 * The files with one hash. The set is concurrent, so lookups never lock and adding or removing a file doesn't copy the others,
+	 * however many files share the hash.
 	 */
-	private void addToNameIndex(NativeEntry entry) {
-		synchronized (nameIndex) {
-			for (String keyword : getKeywords(entry.getName())) {
-				HashSet<NativeEntry> set = nameIndex.get(keyword);
-				if (set == null) {
-					set = new HashSet<NativeEntry>();
-					nameIndex.put(keyword, set);
-				}
-				set.add(entry);
-			}
+	private static class HashFiles {
+		final Set<NativeEntry> files = Collections.newSetFromMap(new ConcurrentHashMap<NativeEntry, Boolean>());
+		/** The size counted towards the unique size for this hash: that of the first file added.*/
+		final long size;
+		
+		HashFiles(long size) {
+			this.size = size;
 		}
 	}
 	
 	/**
-	 * Removes this entry from the name index.
-	 * @param entry
+	 * Used to lookup files by hash quickly.
 	 */
-	private synchronized void removeFromNameIndex(NativeEntry entry) {
-		synchronized (nameIndex) {
-			for (String keyword : getKeywords(entry.getName())) {
-				HashSet<NativeEntry> set = nameIndex.get(keyword);
-				if (set != null) {
-					set.remove(entry);
-					if (set.size() == 0) nameIndex.remove(keyword);
-				}
-			}
-		}
+	private ConcurrentHashMap<String, HashFiles> hashIndex = new ConcurrentHashMap<String, HashFiles>();
+	/** Changes to the files of a hash are serialised by one of these locks, chosen by the hash.*/
+	private Object[] hashLocks = new Object[HASH_LOCK_STRIPES];
+	{
+		for (int i=0; i<hashLocks.length; i++) hashLocks[i] = new Object();
 	}
+	/** Hashes with more than one file, by their number of files. Updated with the hash's lock held.*/
+	private PopularityIndex<String> popularity = new PopularityIndex<String>(2);
+	/** The total size of one file of each hash.*/
+	private AtomicLong uniqueSize = new AtomicLong();
 	
-	private NativeEntry root = new NativeEntry(null);
-	private Integer count = new Integer(0);
-	
-	@Override
-	public int countFiles() {
-		return count;
-	}
-
-	@Override
-	public void delistShare(Share share) {
-		//Logger.log("Delisting share: "+share.getName());
-		
-		FilesystemEntry clientRoot = share.getOwner().getFilesystemRoot();
-		FilesystemEntry shareRoot = clientRoot.getNamedChild(share.getName());
-		//Decrease the client's total sharesize:
-		clientRoot.adjustSize(-shareRoot.getSize());
-		clientRoot.adjustLinkCount(-1);
-		root.adjustSize(-shareRoot.getSize());
-		shareRoot.erase();
-	}
-
-	@Override
-	public void deregisterClient(FilesystemEntry entry) {
-		root.adjustSize(-entry.getSize());
-		root.adjustLinkCount(-1);
-		entry.erase();
-	}
-
-	class FilePopularityComparator implements Comparator<HashSet<NativeEntry>> {
-		@Override
-		public int compare(HashSet<NativeEntry> o2,
-				HashSet<NativeEntry> o1) {
-			if (o1.size() == o2.size()) return 0;
-			if (o1.size() > o2.size()) return 1;
-			return -1;
-		}
+	private Object hashLock(String hash) {
+		return hashLocks[(hash.hashCode() & Integer.MAX_VALUE) % hashLocks.length];
 	}
 	
-	@Override
-	/**
-	 * Expensive! so don't do this often!
-	 */
-	public Collection<NativeEntry> getPopularFiles(int limit) {
-		LinkedList<HashSet<NativeEntry>> fileList;
-		synchronized (hashIndex) {
-			fileList = new LinkedList<HashSet<NativeEntry>>(hashIndex.values());
-		}
-		Collections.sort(fileList, new FilePopularityComparator());
-		LinkedList<NativeEntry> res = new LinkedList<NativeEntry>();
-		while (limit-- != 0 && fileList.size() != 0) {
-			for (NativeEntry entry : fileList.pop()) {
-				res.add(entry);
-				break;
+	private void addHashIndex(NativeEntry entry) {
+		synchronized (hashLock(entry.hash)) {
+			HashFiles hf = hashIndex.get(entry.hash);
+			if (hf == null) {
+				hf = new HashFiles(entry.size);
+				hf.files.add(entry);
+				hashIndex.put(entry.hash, hf);
+				uniqueSize.addAndGet(hf.size);
+			} else if (hf.files.add(entry)) {
+				popularity.setCount(entry.hash, hf.files.size());
 			}
 		}
-		return res;
-	}
-
-	@Override
-	public FilesystemEntry getRootEntry() {
-		return root;
-	}
-
-	@Override
-	public void importShare(Element root, Share share) {
-		FilesystemEntry shareRoot = share.getOwner().getFilesystemRoot().createChildDirectory(share.getName(), share);
-		importXMLIntoFilesystem(root, shareRoot, share);
-		share.getOwner().getFilesystemRoot().adjustLinkCount(1);
-		share.getOwner().getFilesystemRoot().adjustSize(shareRoot.getSize());
-		this.root.adjustSize(shareRoot.getSize());
-	}
-
-
-	@Override
-	public void importShare(Item root, Share share) {
-		//Logger.log("Adding to filesystem:"+root.name);
-		FilesystemEntry shareRoot = share.getOwner().getFilesystemRoot().createChildDirectory(share.getName(), share);
-		importFileListIntoFilesystem(root, shareRoot, share);
-		share.getOwner().getFilesystemRoot().adjustLinkCount(1);
-		share.getOwner().getFilesystemRoot().adjustSize(shareRoot.getSize());
-		this.root.adjustSize(shareRoot.getSize());
 	}
 	
-	/**
-	 * Returns the filesize size of all items it contains.
-	 * @param xmlItem
-	 * @param fsItem
-	 * @return
-	 */
-	private long importFileListIntoFilesystem(Item onItem, FilesystemEntry fsItem, Share share) {
-		int linksAcc = 0;
-		long sizeAcc = 0L;
-		
-		for (Item childItem : onItem.children.values()) {
-			if (childItem.children!=null) {
-				sizeAcc += importFileListIntoFilesystem(childItem, fsItem.createChildDirectory(childItem.name, share), share);
-				linksAcc+=1;
+	private void removeFromHashIndex(NativeEntry entry) {
+		synchronized (hashLock(entry.hash)) {
+			HashFiles hf = hashIndex.get(entry.hash);
+			if (hf == null || !hf.files.remove(entry)) return;
+			if (hf.files.isEmpty()) {
+				//Remove empty sets so that they may be garbage collected later:
+				hashIndex.remove(entry.hash);
+				uniqueSize.addAndGet(-hf.size);
 			} else {
-				if (childItem.hashVersion!=FS2Constants.FILE_DIGEST_VERSION_INT) continue;
-				if (childItem.hash==null || childItem.hash.length()!=32) continue;
-				sizeAcc += childItem.size;
-				fsItem.createChildEntry(childItem.name, childItem.hash, childItem.size, 1, share);
+				popularity.setCount(entry.hash, hf.files.size());
 			}
 		}
-		
-		fsItem.adjustLinkCount(linksAcc);
-		fsItem.adjustSize(sizeAcc);
-		return sizeAcc;
 	}
 	
 	/**
-	 * Returns the filesize size of all items it contains.
-	 * @param xmlItem
-	 * @param fsItem
-	 * @return
-	 * @throws SQLException 
+	 * Returns one of the files with the hash given, or null if there are none.
 	 */
-	private long importXMLIntoFilesystem(Element xmlItem, FilesystemEntry fsItem, Share share) {
-		int linksAcc = 0;
-		long sizeAcc = 0L;
-		Node onNode = xmlItem.getFirstChild();
-		while (onNode != null) {
-			try {
-				if (onNode.getNodeType() == Element.ELEMENT_NODE) {
-					Element onElement = (Element)onNode;
-					if (onElement.getTagName() == "directory") {
-						sizeAcc += importXMLIntoFilesystem(onElement, fsItem.createChildDirectory(onElement.getAttribute("name"), share), share);
-						linksAcc += 1;
-					} else if (onElement.getTagName() == "file"){
-						if (!onElement.getAttribute("hash-version").equals(FS2Constants.FILE_DIGEST_VERSION_XML)) continue;
-						//OooP! Hardcoded constant: (one on of many (^_^) 
-						if (onElement.getAttribute("hash").length() != 32) continue;
-						long thisFileSize = Long.parseLong(onElement.getAttribute("size"));
-						String hash = onElement.getAttribute("hash");
-						sizeAcc += thisFileSize;
-						fsItem.createChildEntry(onElement.getAttribute("name"), hash, thisFileSize, 1, share);
-					}
-				}
-			} finally {
-				onNode = onNode.getNextSibling();
-			}
-		}
-		fsItem.adjustLinkCount(linksAcc);
-		fsItem.adjustSize(sizeAcc);
-		return sizeAcc;
+	private NativeEntry anyFile(HashFiles hf) {
+		if (hf == null) return null;
+		Iterator<NativeEntry> it = hf.files.iterator();
+		return (it.hasNext() ? it.next() : null); //it might have just been emptied.
 	}
 	
+	/** maps keywords onto the entries whose names contain them. */
+	private KeywordIndex<NativeEntry> nameIndex = new KeywordIndex<NativeEntry>();
+	
+	private NativeEntry root = new NativeEntry(null);
+	private AtomicInteger count = new AtomicInteger();
+	
 	@Override
-	public FilesystemEntry lookupFromPath(String path) {
-		String[] splitString = path.split("/");
-		FilesystemEntry ret = root;
-		
-		int onIndex = 0;
-		while (onIndex < splitString.length) {
-			try {
-				if (splitString[onIndex].equals("")) {
-					continue;
+	public int countFiles() {
+		return count.get();
+	}
+
+	@Override
+	public Collection<NativeEntry> getPopularFiles(int limit) {
+		LinkedList<NativeEntry> res = new LinkedList<NativeEntry>();
+		for (String hash : popularity.getMostPopular(limit)) {
+			NativeEntry file = anyFile(hashIndex.get(hash));
+			if (file != null) res.add(file);
+		}
+		//Too few files are shared more than once, so make up the numbers with files that are shared once:
+		if (res.size() < limit) {
+			for (HashFiles hf : hashIndex.values()) {
+				if (res.size() >= limit) break;
+				if (hf.files.size() == 1) {
+					NativeEntry file = anyFile(hf);
+					if (file != null) res.add(file);
 				}
-				ret = ret.getNamedChild(splitString[onIndex]);
-				//If any path element is not found then just return "not found"
-				if (ret == null) return null;
-			} finally {
-				onIndex++;
 			}
 		}
-		
-		return ret;
+		return res;
 	}
 
 	@Override
-	public FilesystemEntry registerClient(Client client){
-		root.adjustLinkCount(1);
-		return root.createChildDirectory(client.getAlias(),null);
+	public FilesystemEntry getRootEntry() {
+		return root;
 	}
 
 	@Override
 	public Collection<NativeEntry> searchForHash(String hash)  {
-		synchronized (hashIndex) {
-			Collection<NativeEntry> res = hashIndex.get(hash);
-			return (res == null ? new LinkedList<NativeEntry>() : res);
-		}
+		HashFiles hf = hashIndex.get(hash);
+		//A copy, so that it doesn't change while the caller uses it:
+		return (hf == null ? new LinkedList<NativeEntry>() : new ArrayList<NativeEntry>(hf.files));
 	}
 
 	@Override
-	public Collection<NativeEntry> searchForName(String query) {
-		HashSet<NativeEntry> results = new HashSet<NativeEntry>();
-		boolean firstKeyword = true;
-		for (String keyword : getKeywords(query)) {
-			HashSet<NativeEntry> itemResults;
-			synchronized (nameIndex) {
-				itemResults = nameIndex.get(keyword);
-			}
-			//Null indicates this keyword matched nothing at all.
-			if (itemResults == null) {
-				results.clear();
-				return results;
+	public Collection<NativeEntry> searchForName(String query, int limit) {
+		return nameIndex.search(query, limit, limit*FS2Constants.INDEXNODE_SEARCH_CANDIDATE_FACTOR, new KeywordIndex.Ranker<NativeEntry>() {
+			//Only one copy of identical files is returned, directories are always distinct.
+			HashSet<String> seenHashes = new HashSet<String>();
+			
+			@Override
+			public boolean accept(NativeEntry candidate) {
+				return candidate.isDirectory() || seenHashes.add(candidate.hash);
 			}
-			if (firstKeyword) {
-				results = new HashSet<NativeEntry>(itemResults);
-				firstKeyword = false;
-			} else {
-				results.retainAll(itemResults);
+			
+			@Override
+			public int popularity(NativeEntry candidate) {
+				if (candidate.isDirectory()) return candidate.linkCount;
+				Collection<NativeEntry> alts = candidate.getAlternatives();
+				return (alts==null ? 0 : alts.size());
 			}
-		}
-		return results;
-	}
-
-	@Override
-	public long totalSize() {
-		return root.getSize();
+		});
 	}
 
 	@Override
 	public int countUniqueFiles() {
-		synchronized (hashIndex) {
-			return hashIndex.size();
-		}
+		return hashIndex.size();
 	}
 
 	@Override
-	//Pretty expensive really!
 	public long uniqueSize() {
-		long ret = 0;
-		synchronized (hashIndex) {
-			for (HashSet<NativeEntry> entries : hashIndex.values()) {
-				for (NativeEntry file : entries) {
-					ret+=file.getSize();
-					break; //We only want a single item from this set.
-				}
-			}
-		}
-		return ret;
-	}
-
-	private Long estimatedTransfer = 0L;
-	
-	@Override
-	public long getEstimatedTransfer() {
-		synchronized (estimatedTransfer) {
-			return estimatedTransfer;
-		}
-	}
-
-	@Override
-	public void incrementSent(long addSize) {
-		synchronized (estimatedTransfer) {
-			estimatedTransfer+=addSize;
-		}
+		return uniqueSize.get();
 	}
 
 }
@@ -0,0 +1,86 @@
+package indexnode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps keys in buckets by their count so that the keys with the highest counts can be listed without sorting.
+ *
+ * Changing a count is O(log distinct counts) and listing the top K is O(K). Keys with a count below the minimum
+ * are not stored at all, so the many keys with small counts cost nothing.
+ *
+ * @author gary
+ * @param <K> The type of key counted.
+ */
+public class PopularityIndex<K> {
+
+	private final int minimumCount;
+	private final HashMap<K, Integer> counts = new HashMap<K, Integer>();
+	private final TreeMap<Integer, LinkedHashSet<K>> buckets = new TreeMap<Integer, LinkedHashSet<K>>();
+
+	/**
+	 * @param minimumCount keys with counts below this are not tracked.
+	 */
+	public PopularityIndex(int minimumCount) {
+		this.minimumCount = minimumCount;
+	}
+
+	/**
+	 * Sets the count of a key, moving it into the right bucket. A count below the minimum removes the key.
+	 * @param key
+	 * @param count
+	 */
+	public synchronized void setCount(K key, int count) {
+		Integer old = counts.get(key);
+		if (old!=null) {
+			if (old==count) return;
+			LinkedHashSet<K> bucket = buckets.get(old);
+			bucket.remove(key);
+			if (bucket.isEmpty()) buckets.remove(old);
+		}
+		if (count < minimumCount) {
+			counts.remove(key);
+			return;
+		}
+		counts.put(key, count);
+		LinkedHashSet<K> bucket = buckets.get(count);
+		if (bucket==null) {
+			bucket = new LinkedHashSet<K>();
+			buckets.put(count, bucket);
+		}
+		bucket.add(key);
+	}
+
+	/**
+	 * Returns the count of a key, or zero if it is not tracked.
+	 */
+	public synchronized int getCount(K key) {
+		Integer ret = counts.get(key);
+		return (ret==null ? 0 : ret);
+	}
+
+	/**
+	 * Returns up to limit keys, highest count first.
+	 */
+	public synchronized List<K> getMostPopular(int limit) {
+		ArrayList<K> ret = new ArrayList<K>(Math.max(0, Math.min(limit, counts.size())));
+		for (Map.Entry<Integer, LinkedHashSet<K>> bucket : buckets.descendingMap().entrySet()) {
+			for (K key : bucket.getValue()) {
+				if (ret.size()>=limit) return ret;
+				ret.add(key);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the number of keys tracked.
+	 */
+	public synchronized int size() {
+		return counts.size();
+	}
+}
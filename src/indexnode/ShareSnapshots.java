@@ -0,0 +1,212 @@
+package indexnode;
+
+import indexnode.IndexNode.Share;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import common.CompactFileList;
+import common.FS2Constants;
+import common.Logger;
+import common.Util;
+
+/**
+ * Keeps a compact filelist on disk of each share in the filesystem, so that a restarted indexnode can relist
+ * shares from local disk rather than fetching every filelist from its client again.
+ *
+ * Snapshots are named by the share's owner, its name and the revision they contain.
+ * A snapshot that is older than the share can still be brought up to date with a delta from the client.
+ *
+ * @author gary
+ */
+public class ShareSnapshots {
+
+	private static final String SUFFIX = ".snapshot";
+	private static final String WORKING_SUFFIX = ".working";
+	/** Matches the names of every file this class writes, so nothing else in the directory is ever touched.*/
+	private static final Pattern OUR_FILES = Pattern.compile("[0-9a-f]{32}-[0-9a-f]{32}\\.[0-9]+"+Pattern.quote(SUFFIX)+"("+Pattern.quote(WORKING_SUFFIX)+")?");
+
+	private final File directory;
+
+	public ShareSnapshots(File directory) throws IOException {
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Couldn't create share snapshot directory");
+		}
+		prune();
+	}
+
+	/**
+	 * The start of the filenames of all snapshots of this share.
+	 */
+	private String prefix(Share share) {
+		return Util.md5(share.getOwner().getAlias())+"-"+Util.md5(share.getName())+".";
+	}
+
+	private File snapshotFile(Share share, int revision) {
+		return new File(directory, prefix(share)+revision+SUFFIX);
+	}
+
+	/**
+	 * Returns the newest revision of this share that has a snapshot no newer than the revision given, or -1 if there is none.
+	 */
+	public int find(Share share, int maxRevision) {
+		String prefix = prefix(share);
+		int best = -1;
+		String[] names = directory.list();
+		if (names==null) return best;
+		for (String name : names) {
+			if (!name.startsWith(prefix) || !name.endsWith(SUFFIX)) continue;
+			try {
+				int revision = Integer.parseInt(name.substring(prefix.length(), name.length()-SUFFIX.length()));
+				if (revision<=maxRevision && revision>best) best = revision;
+			} catch (NumberFormatException e) {
+				//not one of ours.
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Opens a snapshot as a compact filelist. The file is memory mapped so reading it doesn't copy it through the heap.
+	 */
+	public InputStream open(Share share, int revision) throws IOException {
+		FileInputStream fis = new FileInputStream(snapshotFile(share, revision));
+		try {
+			FileChannel channel = fis.getChannel();
+			return new MappedInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			//The mapping remains valid after the channel is closed.
+			fis.close();
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the share's entries in the filesystem, and then removes its older snapshots.
+	 * The share must not be modified while this happens.
+	 *
+	 * @param shareRoot the directory of the share in the filesystem.
+	 * @param revision the revision of the share that is in the filesystem.
+	 */
+	public void save(Share share, FilesystemEntry shareRoot, int revision) throws IOException {
+		File done = snapshotFile(share, revision);
+		File working = new File(directory, done.getName()+WORKING_SUFFIX);
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(working), FS2Constants.ARBITRARY_BUFFER_SIZE);
+		try {
+			TreeMap<String, FilesystemEntry> children = sortedChildren(shareRoot);
+			CompactFileList.Writer writer = new CompactFileList.Writer(os, share.getName(), revision, 0L, children.size());
+			writeChildren(writer, children);
+			writer.finish();
+		} finally {
+			os.close();
+		}
+		if (!working.renameTo(done)) {
+			//Windows won't rename over an existing file:
+			done.delete();
+			if (!working.renameTo(done)) {
+				working.delete();
+				throw new IOException("Couldn't move the snapshot into place: "+done.getName());
+			}
+		}
+		delete(share, revision);
+	}
+
+	private TreeMap<String, FilesystemEntry> sortedChildren(FilesystemEntry entry) {
+		Map<String, ? extends FilesystemEntry> children = entry.getChildren();
+		synchronized (children) {
+			return new TreeMap<String, FilesystemEntry>(children);
+		}
+	}
+
+	private void writeChildren(CompactFileList.Writer writer, TreeMap<String, FilesystemEntry> children) throws IOException {
+		for (FilesystemEntry child : children.values()) {
+			if (child.isDirectory()) {
+				TreeMap<String, FilesystemEntry> grandchildren = sortedChildren(child);
+				writer.startDirectory(child.getName(), 0L, grandchildren.size());
+				writeChildren(writer, grandchildren);
+				writer.endDirectory();
+			} else {
+				//Only files of the current digest version are ever in the filesystem:
+				writer.file(child.getName(), child.getHash(), FS2Constants.FILE_DIGEST_VERSION_INT, child.getSize(), 0L);
+			}
+		}
+	}
+
+	/**
+	 * Deletes every snapshot of this share except the revision given.
+	 * @param keepRevision the revision to keep, or -1 to delete them all.
+	 */
+	public void delete(Share share, int keepRevision) {
+		String prefix = prefix(share);
+		String keep = prefix+keepRevision+SUFFIX;
+		File[] files = directory.listFiles();
+		if (files==null) return;
+		for (File f : files) {
+			if (f.getName().startsWith(prefix) && OUR_FILES.matcher(f.getName()).matches() && !f.getName().equals(keep)) f.delete();
+		}
+	}
+
+	/**
+	 * Marks the snapshot of a share as still in use, so that it isn't pruned.
+	 */
+	public void touch(Share share, int revision) {
+		snapshotFile(share, revision).setLastModified(System.currentTimeMillis());
+	}
+
+	/**
+	 * Removes snapshots of shares that haven't been seen for a long time, and any half-written snapshots.
+	 * Files that aren't snapshots are left alone, in case the directory is shared with something else.
+	 * This must only be done before any snapshots are being saved.
+	 */
+	private void prune() {
+		File[] files = directory.listFiles();
+		if (files==null) return;
+		long cutoff = System.currentTimeMillis()-FS2Constants.INDEXNODE_SNAPSHOT_MAX_AGE_MS;
+		for (File f : files) {
+			if (!OUR_FILES.matcher(f.getName()).matches()) continue;
+			if (f.getName().endsWith(WORKING_SUFFIX) || f.lastModified()<cutoff) {
+				if (!f.delete()) Logger.warn("Couldn't remove old share snapshot: "+f.getName());
+			}
+		}
+	}
+
+	/**
+	 * Reads from a mapped file.
+	 */
+	private static class MappedInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		MappedInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len==0) return 0;
+			if (!buffer.hasRemaining()) return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return buffer.remaining();
+		}
+	}
+}